@@ -5,34 +5,47 @@ import hudson.Launcher;
 import hudson.Proc;
 import hudson.model.Action;
 import hudson.model.BuildListener;
+import hudson.model.Hudson;
 import hudson.model.Items;
 import hudson.model.Result;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Cause;
 import hudson.model.Cause.UpstreamCause;
-import hudson.model.Hudson;
-import hudson.model.Run;
+import hudson.model.CauseAction;
+import hudson.model.Queue;
+import hudson.model.StreamBuildListener;
 import hudson.plugins.parameterizedtrigger.BuildTriggerConfig;
 import hudson.remoting.Channel;
 import hudson.tasks.BuildStep;
+import hudson.util.LogTaskListener;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import diamond.DiamondJoinTrigger.TimeoutPolicy;
 import diamond.util.FakeRun;
-import diamond.util.ProjectsHelper;
+import diamond.util.TriggerGraph;
 
 /**
  * Build action that allow to trigger build of joined project and make some
  * extra actions after all downstream project build hierarchy was completed.
+ * <p>
+ * Join plan and countdown of an action are released once join resolves, so
+ * that builds keep only names and joined result of their actions.
  * 
  * @author Julien Bouyoud
  */
@@ -43,30 +56,44 @@ public class DiamondJoinAction implements Action {
 	private static final Logger LOGGER = Logger
 	        .getLogger(DiamondJoinAction.class.getName());
 	
+	/**
+	 * Name of join tasks log file in master build directory.
+	 */
+	public static final String JOIN_LOG = "diamond-join.log";
+	
 	/**
 	 * Project that start build.
 	 */
 	private transient final String masterJoinProjectName;
+	/**
+	 * Full name of project that owns diamondTrigger.
+	 */
+	private transient final String triggerProjectName;
+	/**
+	 * Full name of project that start build.
+	 */
+	private transient final String masterJoinProjectFullName;
 	/**
 	 * Build Id of root project.
 	 */
 	private transient final int masterJoinProjectBuildId;
 	/**
-	 * Diamond join Trigger that contains all needed infos for join Action.
+	 * Live state of this action, <code>null</code> once join resolved
 	 */
-	private transient final DiamondJoinTrigger diamondTrigger;
+	private transient volatile JoinState liveState;
 	/**
-	 * List of all pending downstream projects
+	 * Joined Result, set once join resolved
 	 */
-	private transient final List<AbstractProject<?, ?>> pendingDownstreamProjects;
+	private transient volatile Result joinResult;
 	/**
-	 * Flag indicates if Join Actions has ran
+	 * Fingerprint of master build, of trigger owner and of trigger
+	 * configuration
 	 */
-	private transient final AtomicBoolean isJoinActionRan;
+	private transient final String fingerprint;
 	/**
-	 * Joined Result
+	 * Time this action started to wait for downstream projects
 	 */
-	private transient Result globalResult = Result.SUCCESS;
+	private transient final long startTime;
 	
 	/**
 	 * Create a new JoinAction for specified build hierarchy
@@ -83,27 +110,93 @@ public class DiamondJoinAction implements Action {
 	public DiamondJoinAction(
 	        final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> masterJoinBuild,
 	        final DiamondJoinTrigger diamondTrigger) {
+		this(masterJoinBuild, masterJoinBuild == null ? null : masterJoinBuild
+		        .getProject(), diamondTrigger);
+	}
+	
+	/**
+	 * Create a new JoinAction for specified build hierarchy
+	 * 
+	 * @param masterJoinBuild
+	 *            master build to take care of
+	 * @param triggerProject
+	 *            project that owns diamondTrigger
+	 * @param diamondTrigger
+	 *            {@link DiamondJoinTrigger} that contains all needed
+	 *            configuration
+	 */
+	public DiamondJoinAction(
+	        final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> masterJoinBuild,
+	        final AbstractProject<?, ?> triggerProject,
+	        final DiamondJoinTrigger diamondTrigger) {
+		this(masterJoinBuild, triggerProject, diamondTrigger, null,
+		        Result.SUCCESS, 0L);
+	}
+	
+	/**
+	 * Create a JoinAction restored from {@link JoinJournal}
+	 * 
+	 * @param masterJoinBuild
+	 *            master build to take care of
+	 * @param triggerProject
+	 *            project that owns diamondTrigger
+	 * @param diamondTrigger
+	 *            {@link DiamondJoinTrigger} that contains all needed
+	 *            configuration
+	 * @param pendingProjectNames
+	 *            full names of pending projects, <code>null</code> to wait
+	 *            for whole join plan
+	 * @param result
+	 *            combined result of completed projects
+	 * @param startTime
+	 *            time join started, <code>0</code> to start it now
+	 */
+	DiamondJoinAction(
+	        final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> masterJoinBuild,
+	        final AbstractProject<?, ?> triggerProject,
+	        final DiamondJoinTrigger diamondTrigger,
+	        final Collection<String> pendingProjectNames, final Result result,
+	        final long startTime) {
 		if (masterJoinBuild == null) {
 			throw new IllegalArgumentException("masterJoinBuild == null");
 		}
+		if (triggerProject == null) {
+			throw new IllegalArgumentException("triggerProject == null");
+		}
 		if (diamondTrigger == null) {
 			throw new IllegalArgumentException("diamondTrigger == null");
 		}
-		final List<AbstractProject<?, ?>> downstreamProjectsHierarchy = ProjectsHelper
-		        .getDownstreamProjectsHierarchy(masterJoinBuild.getProject(),
-		                false, false);
-		downstreamProjectsHierarchy.add(masterJoinBuild.getProject());
-		pendingDownstreamProjects = new CopyOnWriteArrayList<AbstractProject<?, ?>>(
-		        downstreamProjectsHierarchy);
-		for (final AbstractProject<?, ?> project : pendingDownstreamProjects) {
-			if (project.isDisabled() || !project.isBuildable()) {
-				pendingDownstreamProjects.remove(project);
+		if (result == null) {
+			throw new IllegalArgumentException("result == null");
+		}
+		final JoinPlan joinPlan = JoinPlan.get(diamondTrigger,
+		        masterJoinBuild.getProject());
+		final TriggerGraph triggerGraph = joinPlan.getTriggerGraph();
+		BitSet pendingProjects = joinPlan.newPendingProjects();
+		if (pendingProjectNames != null) {
+			// Projects deleted since are no longer waited for
+			pendingProjects = new BitSet(triggerGraph.size());
+			for (final String projectName : pendingProjectNames) {
+				final int projectId = triggerGraph.getId(Hudson.getInstance()
+				        .getItemByFullName(projectName, AbstractProject.class));
+				if (projectId >= 0) {
+					pendingProjects.set(projectId);
+				}
 			}
 		}
+		// Countdown only tracks hierarchy of master project
+		liveState = new JoinState(diamondTrigger, joinPlan, new JoinCountdown(
+		        joinPlan.getTrackedProjects(pendingProjects), pendingProjects,
+		        result));
 		masterJoinProjectName = masterJoinBuild.getProject().getName();
+		masterJoinProjectFullName = masterJoinBuild.getProject().getFullName();
 		masterJoinProjectBuildId = masterJoinBuild.getNumber();
-		this.diamondTrigger = diamondTrigger;
-		isJoinActionRan = new AtomicBoolean(false);
+		triggerProjectName = triggerProject.getFullName();
+		// Triggers of distinct projects may share a same configuration
+		fingerprint = getMasterBuildKey() + '|' + triggerProjectName + '|'
+		        + joinPlan.getFingerprint();
+		this.startTime = startTime > 0 ? startTime : System
+		        .currentTimeMillis();
 	}
 	
 	/*
@@ -139,7 +232,71 @@ public class DiamondJoinAction implements Action {
 	 * @return <code>true</code> if this action is run, <code>false</code> else.
 	 */
 	public final boolean isCompleted() {
-		return isJoinActionRan.get();
+		final JoinState state = liveState;
+		return state == null || state.countdown.isJoined();
+	}
+	
+	/**
+	 * Return combined result of completed projects, or joined result once
+	 * join resolved.
+	 * 
+	 * @return combined result of completed projects
+	 */
+	public final Result getResult() {
+		final JoinState state = liveState;
+		return state == null ? joinResult : state.countdown.getResult();
+	}
+	
+	/**
+	 * Release live state once join resolved, so that master build no longer
+	 * pins join plan and countdown. Must be called after
+	 * {@link DiamondJoinRegistry#evict(DiamondJoinAction)}.
+	 * 
+	 * @param result
+	 *            joined result
+	 */
+	private void release(final Result result) {
+		joinResult = result;
+		liveState = null;
+	}
+	
+	/**
+	 * Return key of master build, see
+	 * {@link DiamondJoinRegistry#getBuildKey(String, int)}
+	 * 
+	 * @return key of master build
+	 */
+	final String getMasterBuildKey() {
+		return DiamondJoinRegistry.getBuildKey(masterJoinProjectFullName,
+		        masterJoinProjectBuildId);
+	}
+	
+	/**
+	 * Return fingerprint of this action. Two actions with same fingerprint
+	 * join same master build for same trigger owner, to same join projects
+	 * with same threshold.
+	 * 
+	 * @return fingerprint of this action
+	 */
+	public final String getFingerprint() {
+		return fingerprint;
+	}
+	
+	/**
+	 * Return journal state of this action
+	 * 
+	 * @param buildKeys
+	 *            keys of builds of join hierarchy
+	 * @return journal state of this action
+	 */
+	final JoinJournal.Entry toJournalEntry(final Collection<String> buildKeys) {
+		final List<String> pendingProjectNames = new ArrayList<String>();
+		for (final AbstractProject<?, ?> project : getPendingDownstreamProjects()) {
+			pendingProjectNames.add(project.getFullName());
+		}
+		return new JoinJournal.Entry(fingerprint, triggerProjectName,
+		        masterJoinProjectFullName, masterJoinProjectBuildId, startTime,
+		        pendingProjectNames, buildKeys, getResult());
 	}
 	
 	/**
@@ -151,22 +308,34 @@ public class DiamondJoinAction implements Action {
 	 *         that points to a joined project, <code>false</code> else
 	 */
 	public final boolean pointsItself() {
-		boolean result = false;
-		final List<AbstractProject> allJoinedProjects = diamondTrigger
-		        .getAllJoinProjects();
 		// Est-ce que la chaine de dépendence contient un des projet joinné ( en
 		// vérifiant bien dans toute l arbre de dépendances)
-		for (final AbstractProject<?, ?> pendingDownStreamProject : pendingDownstreamProjects) {
-			for (final AbstractProject<?, ?> joinedProject : allJoinedProjects) {
-				if (ProjectsHelper.getDownstreamProjectsHierarchy(
-				        joinedProject, false, true).contains(
-				        pendingDownStreamProject)) {
-					result = true;
-					break;
-				}
-			}
+		final JoinState state = liveState;
+		return state != null
+		        && state.joinPlan.isInJoinedHierarchy(state.countdown
+		                .getPendingProjects());
+	}
+	
+	/**
+	 * Return all pending downstream projects
+	 * 
+	 * @return list of all pending downstream projects
+	 */
+	public List<AbstractProject<?, ?>> getPendingDownstreamProjects() {
+		final JoinState state = liveState;
+		if (state == null) {
+			return Collections.emptyList();
 		}
-		return result;
+		final TriggerGraph triggerGraph = state.joinPlan.getTriggerGraph();
+		final BitSet pendingDownstreamProjects = state.countdown
+		        .getPendingProjects();
+		final List<AbstractProject<?, ?>> projects = new ArrayList<AbstractProject<?, ?>>(
+		        pendingDownstreamProjects.cardinality());
+		for (int projectId = pendingDownstreamProjects.nextSetBit(0); projectId >= 0; projectId = pendingDownstreamProjects
+		        .nextSetBit(projectId + 1)) {
+			projects.add(triggerGraph.getProject(projectId));
+		}
+		return projects;
 	}
 	
 	/**
@@ -180,6 +349,10 @@ public class DiamondJoinAction implements Action {
 		if (upstreamJoinActions == null) {
 			throw new IllegalArgumentException("upstreamJoinActions == null");
 		}
+		final JoinState state = liveState;
+		if (state == null) {
+			return;
+		}
 		
 		for (final DiamondJoinAction nestedJoinAction : upstreamJoinActions) {
 			if (LOGGER.isLoggable(Level.FINE)) {
@@ -188,17 +361,11 @@ public class DiamondJoinAction implements Action {
 				        + "' has now upstreamJoinDependency to"
 				        + nestedJoinAction.masterJoinProjectName + "["
 				        + nestedJoinAction.masterJoinProjectBuildId + "] "
-				        + " join to " + diamondTrigger.getJoinProjectsValue());
-			}
-			for (final AbstractProject<?, ?> project : diamondTrigger
-			        .getJoinProjects()) {
-				if (!project.isDisabled() && project.isBuildable()) {
-					nestedJoinAction
-					        .addNestedJoinProjectsDependencies(ProjectsHelper
-					                .getDownstreamProjectsHierarchy(project,
-					                        false, false));
-				}
+				        + " join to "
+				        + state.diamondTrigger.getJoinProjectsValue());
 			}
+			nestedJoinAction.addNestedJoinProjectsDependencies(state.joinPlan
+			        .getNestedJoinProjects());
 		}
 	}
 	
@@ -210,6 +377,10 @@ public class DiamondJoinAction implements Action {
 	 */
 	protected void addNestedJoinProjectsDependencies(
 	        final Collection<? extends AbstractProject> nestedJoinProjects) {
+		final JoinState state = liveState;
+		if (state == null) {
+			return;
+		}
 		if (LOGGER.isLoggable(Level.FINE)) {
 			LOGGER.fine(new StringBuilder(DiamondJoinAction.class
 			        .getSimpleName()).append(" on build [")
@@ -218,9 +389,101 @@ public class DiamondJoinAction implements Action {
 			        .append("] has new project dependencies ")
 			        .append(Items.toNameList(nestedJoinProjects)).toString());
 		}
+		final TriggerGraph triggerGraph = state.joinPlan.getTriggerGraph();
 		for (final AbstractProject<?, ?> joinProject : nestedJoinProjects) {
-			if (!pendingDownstreamProjects.contains(joinProject)) {
-				pendingDownstreamProjects.add(joinProject);
+			if (state.countdown.add(triggerGraph.getId(joinProject))) {
+				DiamondJoinRegistry.addWaiting(this, joinProject);
+				JoinJournal.get().waiting(fingerprint, joinProject.getFullName());
+			}
+		}
+	}
+	
+	/**
+	 * Notify action of start of a build of its hierarchy
+	 * 
+	 * @param build
+	 *            started build
+	 */
+	final void notifyBuildStarted(final AbstractBuild<?, ?> build) {
+		final JoinState state = liveState;
+		if (state != null) {
+			state.countdown.started(state.joinPlan.getTriggerGraph().getId(
+			        build.getProject()));
+		}
+	}
+	
+	/**
+	 * Notify action a build of a pending project of its hierarchy was
+	 * scheduled
+	 * 
+	 * @param project
+	 *            scheduled project
+	 */
+	final void notifyBuildQueued(final AbstractProject<?, ?> project) {
+		final JoinState state = liveState;
+		if (state == null) {
+			return;
+		}
+		final int projectId = state.joinPlan.getTriggerGraph().getId(project);
+		if (state.countdown.isPending(projectId)) {
+			state.countdown.queued(projectId, project.getNextBuildNumber());
+		}
+	}
+	
+	/**
+	 * Settle pending projects whose queued build left queue without being
+	 * started, with {@link DiamondJoinTrigger#getCancelledResult()}.
+	 * 
+	 * @param queue
+	 *            build queue
+	 * @param listener
+	 *            listener where dropped builds are reported
+	 */
+	final void checkQueuedBuilds(final Queue queue, final TaskListener listener) {
+		if (queue == null) {
+			throw new IllegalArgumentException("queue == null");
+		}
+		if (listener == null) {
+			throw new IllegalArgumentException("listener == null");
+		}
+		final JoinState state = liveState;
+		if (state == null) {
+			return;
+		}
+		final TriggerGraph triggerGraph = state.joinPlan.getTriggerGraph();
+		final JoinCountdown countdown = state.countdown;
+		final Result cancelledResult = state.diamondTrigger
+		        .getCancelledResult();
+		final BitSet pendingProjects = countdown.getPendingProjects();
+		for (int projectId = pendingProjects.nextSetBit(0); projectId >= 0; projectId = pendingProjects
+		        .nextSetBit(projectId + 1)) {
+			if (!countdown.isQueued(projectId)
+			        || countdown.getRunning(projectId) > 0) {
+				continue;
+			}
+			final AbstractProject<?, ?> project = triggerGraph
+			        .getProject(projectId);
+			// A build of another hierarchy may have absorbed queued build
+			if (queue.getItem(project) != null || project.isBuilding()) {
+				countdown.found(projectId);
+			} else if (countdown.missing(projectId,
+			        project.getNextBuildNumber())
+			        && countdown.getRunning(projectId) == 0
+			        && countdown.complete(projectId, cancelledResult)) {
+				DiamondJoinRegistry.removeWaiting(this, project);
+				JoinJournal.get().branchCompleted(fingerprint,
+				        project.getFullName(), "", cancelledResult);
+				listener.getLogger().println(
+				        "Queued build of " + project.getName()
+				                + " was cancelled, join of "
+				                + masterJoinProjectName + "#"
+				                + masterJoinProjectBuildId
+				                + " settles it as " + cancelledResult);
+				pruneUnreachable(state, projectId, listener);
+				if (tryResolve(state)) {
+					startJoin(state, listener);
+					return;
+				}
 			}
 		}
 	}
@@ -228,7 +491,9 @@ public class DiamondJoinAction implements Action {
 	/**
 	 * Notify action of build completion.
 	 * <p>
-	 * Build must be in root build hierarchy.
+	 * Build must be in root build hierarchy, builds of other hierarchies are
+	 * ignored. A project with several running builds in hierarchy completes
+	 * with its last build.
 	 * <p>
 	 * If pendingDownstreamProjectsHierarchy doesn't contains any pending
 	 * project, start triggering Join Actions
@@ -247,66 +512,498 @@ public class DiamondJoinAction implements Action {
 		if (listener == null) {
 			throw new IllegalArgumentException("listener == null");
 		}
-		if (pendingDownstreamProjects.contains(build.getProject())) {
-			pendingDownstreamProjects.remove(build.getProject());
-			globalResult = globalResult.combine(build.getResult());
+		// Builds of a concurrent run of same diamond never satisfy this join
+		final JoinState state = liveState;
+		if (state == null || !DiamondJoinRegistry.contains(this, build)) {
+			return;
+		}
+		final TriggerGraph triggerGraph = state.joinPlan.getTriggerGraph();
+		final JoinCountdown countdown = state.countdown;
+		final Result cancelledResult = state.diamondTrigger
+		        .getCancelledResult();
+		final int projectId = triggerGraph.getId(build.getProject());
+		// Children must be marked before project is no longer pending
+		if (projectId >= 0) {
+			for (int kind = 0; kind < TriggerGraph.getEdgeKinds(); kind++) {
+				for (int index = 0; index < triggerGraph.getChildCount(
+				        projectId, kind); index++) {
+					if (triggerGraph.isTriggered(projectId, kind, index,
+					        build.getResult())) {
+						countdown.markTriggered(triggerGraph.getChild(
+						        projectId, kind, index));
+					}
+				}
+			}
+		}
+		if (countdown.finished(projectId) > 0) {
+			countdown.combine(build.getResult() == Result.ABORTED ? cancelledResult
+			        : build.getResult());
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Join Build : " + masterJoinProjectName + "["
+				        + masterJoinProjectBuildId + "] => "
+				        + build.getFullDisplayName()
+				        + " completed, waiting for other builds of project");
+			}
+			return;
+		}
+		final Result result = build.getResult() == Result.ABORTED ? cancelledResult
+		        : build.getResult();
+		if (countdown.complete(projectId, result)) {
+			// Only state changes are journaled
+			JoinJournal.get().branchCompleted(fingerprint,
+			        build.getProject().getFullName(),
+			        DiamondJoinRegistry.getBuildKey(build), result);
+			DiamondJoinRegistry.removeWaiting(this, build.getProject());
 			if (LOGGER.isLoggable(Level.FINE)) {
 				LOGGER.fine("Join Build : " + masterJoinProjectName + "["
 				        + masterJoinProjectBuildId + "] => Removing project "
 				        + build.getProject().getName() + ", "
-				        + pendingDownstreamProjects.size() + " project left.");
+				        + countdown.getRemaining() + " project left.");
 			}
 		}
+		if (projectId >= 0) {
+			pruneUnreachable(state, projectId, listener);
+		}
 		
-		if (pendingDownstreamProjects.isEmpty() && !isJoinActionRan.get()) {
-			isJoinActionRan.getAndSet(true);
-			if (LOGGER.isLoggable(Level.FINE)) {
-				LOGGER.fine("Join Build : "
-				        + masterJoinProjectName
-				        + "["
-				        + masterJoinProjectBuildId
-				        + "] => All downstream projects complete! Start joinning tasks");
+		if (tryResolve(state)) {
+			startJoin(state, build, listener);
+		}
+	}
+	
+	/**
+	 * Switch countdown to joined state if no project is left, or if threshold
+	 * can no longer be met and join fails fast.
+	 * 
+	 * @param state
+	 *            live state of this action
+	 * @return <code>true</code> if this call switched countdown to joined
+	 *         state, <code>false</code> else.
+	 */
+	private static boolean tryResolve(final JoinState state) {
+		// Only one completion can switch countdown to joined state. Results
+		// are only combined to worse ones, so fail fast once threshold is
+		// missed
+		return state.countdown.tryJoin()
+		        || state.diamondTrigger.isFailFast()
+		        && state.countdown.getResult().isWorseThan(
+		                state.diamondTrigger.getThreshold())
+		        && state.countdown.forceJoin();
+	}
+	
+	/**
+	 * Prune pending downstream projects of a completed project that no
+	 * upstream build can trigger anymore, then their own downstream projects.
+	 * <p>
+	 * A project is unreachable once none of its parents is pending and no
+	 * completed parent build triggered it. Parents are checked before
+	 * triggered mark, which is set before parent completion, so that a
+	 * concurrent completion can not be missed.
+	 * 
+	 * @param state
+	 *            live state of this action
+	 * @param projectId
+	 *            id of completed project
+	 * @param listener
+	 *            listener where pruned projects are reported
+	 */
+	private void pruneUnreachable(final JoinState state, final int projectId,
+	        final TaskListener listener) {
+		final TriggerGraph triggerGraph = state.joinPlan.getTriggerGraph();
+		final JoinCountdown countdown = state.countdown;
+		final List<Integer> settledIds = new ArrayList<Integer>();
+		settledIds.add(Integer.valueOf(projectId));
+		while (!settledIds.isEmpty()) {
+			final int settledId = settledIds.remove(settledIds.size() - 1)
+			        .intValue();
+			for (int kind = 0; kind < TriggerGraph.getEdgeKinds(); kind++) {
+				for (int index = 0; index < triggerGraph.getChildCount(
+				        settledId, kind); index++) {
+					final int childId = triggerGraph.getChild(settledId, kind,
+					        index);
+					if (countdown.isPending(childId)
+					        && !hasPendingParent(state, childId)
+					        && !countdown.isTriggered(childId)
+					        && countdown.complete(childId, null)) {
+						final AbstractProject<?, ?> child = triggerGraph
+						        .getProject(childId);
+						DiamondJoinRegistry.removeWaiting(this, child);
+						JoinJournal.get().pruned(fingerprint,
+						        child.getFullName());
+						listener.getLogger().println(
+						        "Project " + child.getName()
+						                + " will not be triggered, join of "
+						                + masterJoinProjectName + "#"
+						                + masterJoinProjectBuildId
+						                + " no longer waits for it");
+						settledIds.add(Integer.valueOf(childId));
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Return if any parent of a project is pending
+	 * 
+	 * @param state
+	 *            live state of this action
+	 * @param projectId
+	 *            project id
+	 * @return <code>true</code> if any parent is pending, <code>false</code>
+	 *         else.
+	 */
+	private static boolean hasPendingParent(final JoinState state,
+	        final int projectId) {
+		final TriggerGraph triggerGraph = state.joinPlan.getTriggerGraph();
+		for (int index = 0; index < triggerGraph.getParentCount(projectId); index++) {
+			if (state.countdown.isPending(triggerGraph.getParent(projectId, index))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Return if this action waits for downstream projects for longer than
+	 * join timeout of its trigger.
+	 * 
+	 * @param now
+	 *            current time in milliseconds
+	 * @return <code>true</code> if join timed out, <code>false</code> else.
+	 */
+	final boolean isExpired(final long now) {
+		final JoinState state = liveState;
+		if (state == null) {
+			return false;
+		}
+		final long timeout = state.diamondTrigger
+		        .getEffectiveJoinTimeoutMillis();
+		return timeout > 0 && now - startTime >= timeout;
+	}
+	
+	/**
+	 * Resolve this action with timeout policy of its trigger, see
+	 * {@link DiamondJoinTrigger#getTimeoutPolicy()}.
+	 * 
+	 * @param listener
+	 *            listener where join is reported
+	 * @return <code>true</code> if this call resolved join, <code>false</code>
+	 *         if join was already resolved.
+	 */
+	final boolean expire(final TaskListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener == null");
+		}
+		final JoinState state = liveState;
+		if (state == null || !state.countdown.forceJoin()) {
+			return false;
+		}
+		final JoinCountdown countdown = state.countdown;
+		final TimeoutPolicy policy = state.diamondTrigger.getTimeoutPolicy();
+		listener.getLogger().println(
+		        "Join of " + masterJoinProjectName + "#"
+		                + masterJoinProjectBuildId + " timed out waiting for "
+		                + countdown.getRemaining()
+		                + " downstream projects, policy is " + policy);
+		switch (policy) {
+		case FIRE:
+			startJoin(state, listener);
+			break;
+		case FAIL:
+			countdown.combine(Result.FAILURE);
+			startJoin(state, listener);
+			break;
+		default:
+			DiamondJoinRegistry.evict(this);
+			release(countdown.getResult());
+			JoinJournal.get().joined(fingerprint);
+			break;
+		}
+		return true;
+	}
+	
+	/**
+	 * Settle pending projects of a recovered action that have no live build,
+	 * then start join tasks if no project is left.
+	 * <p>
+	 * Builds running at restart never complete, so a pending project that is
+	 * neither queued nor building, and that no live pending project can
+	 * trigger, is settled with its last build started since join start, or
+	 * pruned if it has none.
+	 * 
+	 * @param listener
+	 *            listener where join is reported
+	 */
+	final void resume(final TaskListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener == null");
+		}
+		final JoinState state = liveState;
+		if (state == null) {
+			return;
+		}
+		final TriggerGraph triggerGraph = state.joinPlan.getTriggerGraph();
+		final JoinCountdown countdown = state.countdown;
+		final BitSet pendingProjects = countdown.getPendingProjects();
+		// Pending projects that are live or that a live project can trigger
+		final BitSet liveProjects = new BitSet(triggerGraph.size());
+		final Queue queue = Hudson.getInstance().getQueue();
+		final List<Integer> liveIds = new ArrayList<Integer>();
+		for (int projectId = pendingProjects.nextSetBit(0); projectId >= 0; projectId = pendingProjects
+		        .nextSetBit(projectId + 1)) {
+			final AbstractProject<?, ?> project = triggerGraph
+			        .getProject(projectId);
+			if (queue.getItem(project) != null || project.isBuilding()) {
+				liveProjects.set(projectId);
+				liveIds.add(Integer.valueOf(projectId));
+			}
+		}
+		while (!liveIds.isEmpty()) {
+			final int liveId = liveIds.remove(liveIds.size() - 1).intValue();
+			for (int kind = 0; kind < TriggerGraph.getEdgeKinds(); kind++) {
+				for (int index = 0; index < triggerGraph.getChildCount(liveId,
+				        kind); index++) {
+					final int childId = triggerGraph.getChild(liveId, kind,
+					        index);
+					if (pendingProjects.get(childId)
+					        && !liveProjects.get(childId)) {
+						liveProjects.set(childId);
+						liveIds.add(Integer.valueOf(childId));
+					}
+				}
+			}
+		}
+		final Result cancelledResult = state.diamondTrigger
+		        .getCancelledResult();
+		for (int projectId = pendingProjects.nextSetBit(0); projectId >= 0; projectId = pendingProjects
+		        .nextSetBit(projectId + 1)) {
+			if (liveProjects.get(projectId)) {
+				continue;
 			}
-			listener.getLogger().println("All downstream projects complete!");
+			final AbstractProject<?, ?> project = triggerGraph
+			        .getProject(projectId);
+			final AbstractBuild<?, ?> lastBuild = project.getLastBuild();
+			if (lastBuild != null
+			        && lastBuild.getTimeInMillis() >= startTime) {
+				// Build interrupted by restart has no result
+				final Result result = lastBuild.getResult() == null
+				        || lastBuild.getResult() == Result.ABORTED ? cancelledResult
+				        : lastBuild.getResult();
+				if (countdown.complete(projectId, result)) {
+					JoinJournal.get().branchCompleted(fingerprint,
+					        project.getFullName(),
+					        DiamondJoinRegistry.getBuildKey(lastBuild), result);
+					listener.getLogger().println(
+					        "Build " + lastBuild.getFullDisplayName()
+					                + " no longer runs, join of "
+					                + masterJoinProjectName + "#"
+					                + masterJoinProjectBuildId
+					                + " settles it as " + result);
+				}
+			} else if (countdown.complete(projectId, null)) {
+				JoinJournal.get().pruned(fingerprint, project.getFullName());
+				listener.getLogger().println(
+				        "Project " + project.getName()
+				                + " was not triggered before restart, join of "
+				                + masterJoinProjectName + "#"
+				                + masterJoinProjectBuildId
+				                + " no longer waits for it");
+			}
+			DiamondJoinRegistry.removeWaiting(this, project);
+		}
+		if (tryResolve(state)) {
+			startJoin(state, listener);
+		}
+	}
+	
+	/**
+	 * Start join tasks on master build once countdown switched to joined
+	 * state without a completed build.
+	 * 
+	 * @param state
+	 *            live state of this action
+	 * @param listener
+	 *            listener where join is reported
+	 */
+	@SuppressWarnings("unchecked")
+	private void startJoin(final JoinState state, final TaskListener listener) {
+		final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> masterBuild = (AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>>) state.joinPlan
+		        .getMasterProject().getBuildByNumber(masterJoinProjectBuildId);
+		if (masterBuild == null) {
+			DiamondJoinRegistry.evict(this);
+			release(state.countdown.getResult());
+			JoinJournal.get().joined(fingerprint);
+		} else {
+			startJoin(state, masterBuild, listener);
+		}
+	}
+	
+	/**
+	 * Start join tasks once countdown switched to joined state.
+	 * 
+	 * @param state
+	 *            live state of this action
+	 * @param build
+	 *            project build that completed last
+	 * @param listener
+	 *            listener where join is reported
+	 */
+	private void startJoin(
+	        final JoinState state,
+	        final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> build,
+	        final TaskListener listener) {
+		final Set<String> buildKeys = DiamondJoinRegistry.getBuildKeys(this);
+		DiamondJoinRegistry.evict(this);
+		final JoinCountdown countdown = state.countdown;
+		final DiamondJoinTrigger diamondTrigger = state.diamondTrigger;
+		final Result globalResult = countdown.getResult();
+		release(globalResult);
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Join Build : "
+			        + masterJoinProjectName
+			        + "["
+			        + masterJoinProjectBuildId
+			        + "] => All downstream projects complete! Start joinning tasks");
+		}
+		listener.getLogger().println("All downstream projects complete!");
+		listener.getLogger().println(
+		        " All projects results was : " + globalResult.toString());
+		if (globalResult.isWorseThan(diamondTrigger.getThreshold())) {
 			listener.getLogger().println(
-			        " All projects results was : " + globalResult.toString());
-			if (globalResult.isWorseThan(diamondTrigger.getThreshold())) {
+			        "Minimum result threshold not met for join project");
+			if (countdown.getRemaining() > 0) {
 				listener.getLogger().println(
-				        "Minimum result threshold not met for join project");
-			} else {
-				startJoinningTasks(build, listener);
+				        "Stop waiting for " + countdown.getRemaining()
+				                + " remaining downstream projects");
+				if (diamondTrigger.isAbortRemaining()) {
+					abortRemainingBuilds(state, buildKeys, listener);
+				}
 			}
+			JoinJournal.get().joined(fingerprint);
+		} else {
+			listener.getLogger().println(
+			        "Dispatching join tasks, see Diamond Join Log of build "
+			                + masterJoinProjectName + "#"
+			                + masterJoinProjectBuildId);
+			buildKeys.remove(getMasterBuildKey());
+			JoinDispatcher.dispatch(fingerprint, new JoinTask(state.joinPlan
+			        .getMasterProject(), diamondTrigger, build, globalResult,
+			        buildKeys.size(), countdown.getRemaining()));
 		}
 	}
 	
+	/**
+	 * Dequeue and abort builds of pending projects that belong to this join
+	 * hierarchy.
+	 * 
+	 * @param state
+	 *            live state of this action
+	 * @param buildKeys
+	 *            keys of builds of join hierarchy
+	 * @param listener
+	 *            listener where aborted builds are reported
+	 */
+	private static void abortRemainingBuilds(final JoinState state,
+	        final Set<String> buildKeys, final TaskListener listener) {
+		final TriggerGraph triggerGraph = state.joinPlan.getTriggerGraph();
+		final JoinCountdown countdown = state.countdown;
+		final Hudson hudson = Hudson.getInstance();
+		// Queued builds triggered by a build of this join
+		final Queue queue = hudson.getQueue();
+		for (final Queue.Item item : queue.getItems()) {
+			if (item.task instanceof AbstractProject
+			        && countdown.isPending(triggerGraph
+			                .getId((AbstractProject<?, ?>) item.task))
+			        && isTriggeredBy(item, buildKeys) && queue.cancel(item)) {
+				listener.getLogger().println(
+				        "Dequeued " + item.task.getFullDisplayName());
+			}
+		}
+		// Running builds of this join
+		for (final String buildKey : buildKeys) {
+			final int separator = buildKey.lastIndexOf('#');
+			final AbstractProject<?, ?> project = hudson.getItemByFullName(
+			        buildKey.substring(0, separator), AbstractProject.class);
+			if (project == null
+			        || !countdown.isPending(triggerGraph.getId(project))) {
+				continue;
+			}
+			final AbstractBuild<?, ?> runningBuild = project
+			        .getBuildByNumber(Integer.parseInt(buildKey
+			                .substring(separator + 1)));
+			if (runningBuild != null && runningBuild.isBuilding()
+			        && runningBuild.getExecutor() != null) {
+				runningBuild.getExecutor().interrupt();
+				listener.getLogger().println(
+				        "Aborted " + runningBuild.getFullDisplayName());
+			}
+		}
+	}
+	
+	/**
+	 * Return if a queued build was triggered by a build of this join
+	 * 
+	 * @param item
+	 *            queued build
+	 * @param buildKeys
+	 *            keys of builds of join hierarchy
+	 * @return <code>true</code> if an upstream cause of item is a build of
+	 *         join hierarchy, <code>false</code> else.
+	 */
+	private static boolean isTriggeredBy(final Queue.Item item,
+	        final Set<String> buildKeys) {
+		final CauseAction causeAction = item.getAction(CauseAction.class);
+		if (causeAction == null) {
+			return false;
+		}
+		for (final Cause cause : causeAction.getCauses()) {
+			if (cause instanceof UpstreamCause
+			        && buildKeys.contains(DiamondJoinRegistry.getBuildKey(
+			                ((UpstreamCause) cause).getUpstreamProject(),
+			                ((UpstreamCause) cause).getUpstreamBuild()))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Start Join tasks if pending downstream build list is empty and if Join
 	 * tasks was not already run.
 	 * 
+	 * @param diamondTrigger
+	 *            trigger that contains join projects and post-join actions
 	 * @param build
 	 *            project build that completed
+	 * @param masterBuild
+	 *            master build
 	 * @param listener
-	 *            build listener
+	 *            join tasks listener
+	 * @param cause
+	 *            cause of join builds, with joined Result
 	 */
 	@SuppressWarnings("unchecked")
-	private final void startJoinningTasks(
+	private static void startJoinningTasks(
+	        final DiamondJoinTrigger diamondTrigger,
 	        final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> build,
-	        final TaskListener listener) {
+	        final AbstractBuild<?, ?> masterBuild,
+	        final BuildListener listener, final DiamondJoinCause cause) {
+		if (diamondTrigger == null) {
+			throw new IllegalArgumentException("diamondTrigger == null");
+		}
 		if (build == null) {
 			throw new IllegalArgumentException("build == null");
 		}
+		if (masterBuild == null) {
+			throw new IllegalArgumentException("masterBuild == null");
+		}
 		if (listener == null) {
 			throw new IllegalArgumentException("listener == null");
 		}
+		if (cause == null) {
+			throw new IllegalArgumentException("cause == null");
+		}
 		try {
-			final AbstractProject masterProject = Hudson.getInstance()
-			        .getItemByFullName(masterJoinProjectName,
-			                AbstractProject.class);
-			final FakeRun run = new FakeRun(
-			        (AbstractBuild<?, ?>) masterProject
-			                .getBuildByNumber(masterJoinProjectBuildId),
-			        globalResult);
-			
 			// Start Join Projects
 			for (final AbstractProject<?, ?> joinProject : diamondTrigger
 			        .getAllJoinProjects()) {
@@ -320,34 +1017,66 @@ public class DiamondJoinAction implements Action {
 					                "Scheduling join project: "
 					                        + joinProject.getName());
 					joinProject.scheduleBuild(joinProject.getQuietPeriod(),
-					        new UpstreamCause((Run<?, ?>) run));
+					        cause);
 				}
 			}
+			if (diamondTrigger.getPostJoinActions().isEmpty()) {
+				return;
+			}
 			// Start Post Build Actions...
 			final Launcher launcher = new NoopLauncher(listener, build);
+			// Publishers only accept builds, so post-join actions get a view
+			// of master build with joined result
+			final FakeRun run = new FakeRun(masterBuild, cause.getJoinResult());
 			
 			listener.getLogger().println("Start post-build Actions...");
+			final List<PostJoinRunner.Unit> units = new ArrayList<PostJoinRunner.Unit>();
+			int configNumber = 0;
+			final Map<String, Integer> publisherCounts = new HashMap<String, Integer>();
 			for (final BuildStep pub : diamondTrigger.getPostJoinActions()) {
-				try {
-					// Sad but parameterizedtrigger didn't start job. so
-					// do
-					// it manually
-					if (pub instanceof hudson.plugins.parameterizedtrigger.BuildTrigger) {
-						final hudson.plugins.parameterizedtrigger.BuildTrigger trigger = (hudson.plugins.parameterizedtrigger.BuildTrigger) pub;
-						for (final BuildTriggerConfig config : trigger
-						        .getConfigs()) {
-							config.perform(run, launcher,
-							        (BuildListener) listener);
-						}
-					} else {
-						pub.perform(run, launcher, (BuildListener) listener);
+				// Sad but parameterizedtrigger didn't start job. so
+				// do
+				// it manually
+				if (pub instanceof hudson.plugins.parameterizedtrigger.BuildTrigger) {
+					final hudson.plugins.parameterizedtrigger.BuildTrigger trigger = (hudson.plugins.parameterizedtrigger.BuildTrigger) pub;
+					for (final BuildTriggerConfig config : trigger.getConfigs()) {
+						units.add(new PostJoinRunner.Unit(
+						        BuildTriggerConfig.class.getSimpleName() + "#"
+						                + ++configNumber) {
+							@Override
+							void perform(final BuildListener unitListener)
+							        throws InterruptedException, IOException {
+								config.perform(run, launcher, unitListener);
+							}
+						});
 					}
-				} catch (final InterruptedException e) {
-					listener.getLogger().print(e.toString());
-				} catch (final IOException e) {
-					listener.getLogger().print(e.toString());
+				} else {
+					// Publishers of a same class are named Name, Name#2...
+					final String name = pub.getClass().getSimpleName();
+					final Integer previousCount = publisherCounts.get(name);
+					final int count = previousCount == null ? 1
+					        : previousCount.intValue() + 1;
+					publisherCounts.put(name, Integer.valueOf(count));
+					units.add(new PostJoinRunner.Unit(count == 1 ? name : name
+					        + "#" + count) {
+						@Override
+						void perform(final BuildListener unitListener)
+						        throws InterruptedException, IOException {
+							pub.perform(run, launcher, unitListener);
+						}
+					});
 				}
 			}
+			final PostJoinRunner runner = new PostJoinRunner(units);
+			if (diamondTrigger.isParallelPostJoinActions()) {
+				runner.runConcurrently(listener,
+				        diamondTrigger.getPostJoinConcurrency(),
+				        diamondTrigger.getPostJoinDependencies());
+			} else {
+				runner.runSequentially(listener);
+			}
+		} catch (final InterruptedException e) {
+			listener.getLogger().print(e.toString());
 		} catch (final IOException e) {
 			listener.getLogger().print(e.toString());
 		}
@@ -359,10 +1088,7 @@ public class DiamondJoinAction implements Action {
 	 */
 	@Override
 	public int hashCode() {
-		return masterJoinProjectName.hashCode() + masterJoinProjectBuildId
-		        + diamondTrigger.getJoinProjectsValue().hashCode()
-		        + diamondTrigger.getThreshold().hashCode()
-		        + diamondTrigger.getPostJoinActions().hashCode();
+		return fingerprint.hashCode();
 	}
 	
 	/*
@@ -372,16 +1098,7 @@ public class DiamondJoinAction implements Action {
 	@Override
 	public boolean equals(final Object obj) {
 		if (obj instanceof DiamondJoinAction) {
-			final DiamondJoinAction otherAction = (DiamondJoinAction) obj;
-			return otherAction.masterJoinProjectName
-			        .equals(masterJoinProjectName)
-			        && otherAction.masterJoinProjectBuildId == masterJoinProjectBuildId
-			        && otherAction.diamondTrigger.getJoinProjectsValue()
-			                .equals(diamondTrigger.getJoinProjectsValue())
-			        && otherAction.diamondTrigger.getThreshold().equals(
-			                diamondTrigger.getThreshold())
-			        && otherAction.diamondTrigger.getPostJoinActions().equals(
-			                diamondTrigger.getPostJoinActions());
+			return ((DiamondJoinAction) obj).fingerprint.equals(fingerprint);
 		}
 		return super.equals(obj);
 	}
@@ -392,13 +1109,152 @@ public class DiamondJoinAction implements Action {
 	 */
 	@Override
 	public String toString() {
-		return new StringBuilder(DiamondJoinAction.class.getSimpleName())
-		        .append(" on build [").append(masterJoinProjectName)
-		        .append("#").append(masterJoinProjectBuildId)
-		        .append("] wait completion of ")
-		        .append(Items.toNameList(pendingDownstreamProjects))
+		final JoinState state = liveState;
+		final StringBuilder builder = new StringBuilder(
+		        DiamondJoinAction.class.getSimpleName()).append(" on build [")
+		        .append(masterJoinProjectName).append("#")
+		        .append(masterJoinProjectBuildId);
+		if (state == null) {
+			return builder.append("] joined with result ").append(joinResult)
+			        .toString();
+		}
+		return builder.append("] wait completion of ")
+		        .append(Items.toNameList(getPendingDownstreamProjects()))
 		        .append(" before start new build of : ")
-		        .append(diamondTrigger.getAllJoinProjectsValue()).toString();
+		        .append(state.diamondTrigger.getAllJoinProjectsValue())
+		        .toString();
+	}
+	
+	/**
+	 * Live state of an active join, released once join resolves
+	 */
+	private static final class JoinState {
+		
+		/** Diamond join Trigger that contains all needed infos for join Action */
+		final DiamondJoinTrigger diamondTrigger;
+		/** Compiled join plan of diamondTrigger */
+		final JoinPlan joinPlan;
+		/** Countdown of all pending downstream projects and of joined Result */
+		final JoinCountdown countdown;
+		
+		/**
+		 * Create a new JoinState
+		 * 
+		 * @param diamondTrigger
+		 *            diamond join Trigger
+		 * @param joinPlan
+		 *            compiled join plan of diamondTrigger
+		 * @param countdown
+		 *            countdown of all pending downstream projects
+		 */
+		JoinState(final DiamondJoinTrigger diamondTrigger,
+		        final JoinPlan joinPlan, final JoinCountdown countdown) {
+			this.diamondTrigger = diamondTrigger;
+			this.joinPlan = joinPlan;
+			this.countdown = countdown;
+		}
+	}
+	
+	/**
+	 * Join tasks of this action, run by {@link JoinDispatcher}. Output is
+	 * written to {@link DiamondJoinAction#JOIN_LOG} of master build, linked by
+	 * its {@link JoinLogAction}, or to Hudson log if it can not be written.
+	 */
+	private final class JoinTask implements Runnable {
+		
+		/** Project that start build */
+		private final AbstractProject<?, ?> masterProject;
+		/** Trigger that contains join projects and post-join actions */
+		private final DiamondJoinTrigger diamondTrigger;
+		/** Project build that completed */
+		private final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> build;
+		/** Joined Result */
+		private final Result globalResult;
+		/** Number of downstream builds of join hierarchy */
+		private final int downstreamBuildCount;
+		/** Number of downstream projects join stopped waiting for */
+		private final int skippedProjectCount;
+		
+		/**
+		 * Create a new JoinTask
+		 * 
+		 * @param masterProject
+		 *            project that start build
+		 * @param diamondTrigger
+		 *            trigger that contains join projects and post-join actions
+		 * @param build
+		 *            project build that completed
+		 * @param globalResult
+		 *            joined Result
+		 * @param downstreamBuildCount
+		 *            number of downstream builds of join hierarchy
+		 * @param skippedProjectCount
+		 *            number of downstream projects join stopped waiting for
+		 */
+		JoinTask(
+		        final AbstractProject<?, ?> masterProject,
+		        final DiamondJoinTrigger diamondTrigger,
+		        final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> build,
+		        final Result globalResult, final int downstreamBuildCount,
+		        final int skippedProjectCount) {
+			this.masterProject = masterProject;
+			this.diamondTrigger = diamondTrigger;
+			this.build = build;
+			this.globalResult = globalResult;
+			this.downstreamBuildCount = downstreamBuildCount;
+			this.skippedProjectCount = skippedProjectCount;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			final AbstractBuild<?, ?> masterBuild = masterProject
+			        .getBuildByNumber(masterJoinProjectBuildId);
+			if (masterBuild == null) {
+				LOGGER.warning("Master build " + masterJoinProjectName + "#"
+				        + masterJoinProjectBuildId
+				        + " no longer exists, skip join tasks");
+				JoinJournal.get().joined(fingerprint);
+				return;
+			}
+			OutputStream out = null;
+			try {
+				BuildListener listener;
+				try {
+					out = new FileOutputStream(new File(
+					        masterBuild.getRootDir(), JOIN_LOG), true);
+					listener = new StreamBuildListener(out);
+					JoinLogAction.attach(masterBuild);
+				} catch (final IOException e) {
+					LOGGER.log(Level.WARNING, "Unable to write join log of "
+					        + masterBuild.getFullDisplayName()
+					        + ", join tasks output goes to Hudson log", e);
+					listener = new StreamBuildListener(new LogTaskListener(
+					        LOGGER, Level.INFO).getLogger());
+				}
+				listener.getLogger().println(
+				        "Join tasks started by " + build.getFullDisplayName()
+				                + ", all projects results was : "
+				                + globalResult);
+				startJoinningTasks(diamondTrigger, build, masterBuild, listener,
+				        new DiamondJoinCause(masterBuild, globalResult,
+				                downstreamBuildCount, skippedProjectCount));
+				listener.getLogger().flush();
+			} finally {
+				if (out != null) {
+					try {
+						out.close();
+					} catch (final IOException e) {
+						LOGGER.log(Level.FINE, "Unable to close join log", e);
+					}
+				}
+				// Join tasks ran, nothing to recover
+				JoinJournal.get().joined(fingerprint);
+			}
+		}
 	}
 	
 	/**
@@ -0,0 +1,95 @@
+package diamond;
+
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.Cause.UpstreamCause;
+
+/**
+ * Cause of join project builds scheduled by a {@link DiamondJoinAction}.
+ * <p>
+ * Upstream build is master build of join, so that join builds are still
+ * recognized as started by upstream projects. Combined result of downstream
+ * builds and a summary of join are carried along, since master build result
+ * is not the joined one.
+ * 
+ * @author Julien Bouyoud
+ */
+public class DiamondJoinCause extends UpstreamCause {
+	
+	/** Combined result of downstream builds */
+	private final Result joinResult;
+	/** Number of downstream builds of join hierarchy */
+	private final int downstreamBuildCount;
+	/** Number of downstream projects join stopped waiting for */
+	private final int skippedProjectCount;
+	
+	/**
+	 * Create a new DiamondJoinCause
+	 * 
+	 * @param masterBuild
+	 *            master build of join
+	 * @param joinResult
+	 *            combined result of downstream builds
+	 * @param downstreamBuildCount
+	 *            number of downstream builds of join hierarchy
+	 * @param skippedProjectCount
+	 *            number of downstream projects join stopped waiting for
+	 */
+	public DiamondJoinCause(final Run<?, ?> masterBuild,
+	        final Result joinResult, final int downstreamBuildCount,
+	        final int skippedProjectCount) {
+		super(masterBuild);
+		if (joinResult == null) {
+			throw new IllegalArgumentException("joinResult == null");
+		}
+		this.joinResult = joinResult;
+		this.downstreamBuildCount = downstreamBuildCount;
+		this.skippedProjectCount = skippedProjectCount;
+	}
+	
+	/**
+	 * Return combined result of downstream builds
+	 * 
+	 * @return combined result of downstream builds
+	 */
+	public Result getJoinResult() {
+		return joinResult;
+	}
+	
+	/**
+	 * Return number of downstream builds of join hierarchy
+	 * 
+	 * @return number of downstream builds
+	 */
+	public int getDownstreamBuildCount() {
+		return downstreamBuildCount;
+	}
+	
+	/**
+	 * Return number of downstream projects join stopped waiting for, on
+	 * timeout
+	 * 
+	 * @return number of skipped downstream projects
+	 */
+	public int getSkippedProjectCount() {
+		return skippedProjectCount;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.Cause.UpstreamCause#getShortDescription()
+	 */
+	@Override
+	public String getShortDescription() {
+		final StringBuilder description = new StringBuilder(
+		        "Started by diamond join of ").append(getUpstreamProject())
+		        .append(" build number ").append(getUpstreamBuild())
+		        .append(", ").append(downstreamBuildCount)
+		        .append(" downstream builds ").append(joinResult);
+		if (skippedProjectCount > 0) {
+			description.append(", ").append(skippedProjectCount)
+			        .append(" downstream projects skipped");
+		}
+		return description.toString();
+	}
+}
@@ -0,0 +1,412 @@
+package diamond;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Cause.UpstreamCause;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory registry of all active {@link DiamondJoinAction}.
+ * <p>
+ * Active joins are indexed by master build, by build that belongs to their
+ * hierarchy and by project they still wait for, so that routing a build
+ * completion to its joins is a hash lookup instead of an {@link UpstreamCause}
+ * walk that may load old builds from disk. Joins are evicted as soon as they
+ * fire.
+ * 
+ * @author Julien Bouyoud
+ */
+public final class DiamondJoinRegistry {
+	
+	/** Active joins by master build key */
+	private static final Map<String, Set<DiamondJoinAction>> MASTER_JOINS = new ConcurrentHashMap<String, Set<DiamondJoinAction>>();
+	/** Active joins by key of builds that belongs to their hierarchy */
+	private static final Map<String, Set<DiamondJoinAction>> BUILD_JOINS = new ConcurrentHashMap<String, Set<DiamondJoinAction>>();
+	/** Active joins by project they wait for */
+	private static final Map<AbstractProject<?, ?>, Set<DiamondJoinAction>> WAITING_JOINS = new ConcurrentHashMap<AbstractProject<?, ?>, Set<DiamondJoinAction>>();
+	/** Keys of builds that belongs to hierarchy by active join */
+	private static final Map<DiamondJoinAction, Set<String>> JOIN_BUILDS = new ConcurrentHashMap<DiamondJoinAction, Set<String>>();
+	
+	/**
+	 * Utility class
+	 */
+	private DiamondJoinRegistry() {
+		// Nothing to do
+	}
+	
+	/**
+	 * Return key of a build
+	 * 
+	 * @param projectName
+	 *            full name of build project
+	 * @param number
+	 *            build number
+	 * @return key of build
+	 */
+	static String getBuildKey(final String projectName, final int number) {
+		return projectName + '#' + number;
+	}
+	
+	/**
+	 * Return key of a build
+	 * 
+	 * @param build
+	 *            a build
+	 * @return key of build
+	 */
+	static String getBuildKey(final AbstractBuild<?, ?> build) {
+		return getBuildKey(build.getProject().getFullName(), build.getNumber());
+	}
+	
+	/**
+	 * Register a new active join on its master build
+	 * 
+	 * @param masterBuild
+	 *            build where join action was added
+	 * @param joinAction
+	 *            join action to register
+	 */
+	public static void register(final AbstractBuild<?, ?> masterBuild,
+	        final DiamondJoinAction joinAction) {
+		if (masterBuild == null) {
+			throw new IllegalArgumentException("masterBuild == null");
+		}
+		if (joinAction == null) {
+			throw new IllegalArgumentException("joinAction == null");
+		}
+		restore(masterBuild, joinAction, Collections.<String> emptySet());
+	}
+	
+	/**
+	 * Register an active join on its master build, with keys of builds that
+	 * already belong to its hierarchy, and record it in {@link JoinJournal}
+	 * 
+	 * @param masterBuild
+	 *            build where join action was added
+	 * @param joinAction
+	 *            join action to register
+	 * @param buildKeys
+	 *            keys of builds that belong to join hierarchy
+	 */
+	static void restore(final AbstractBuild<?, ?> masterBuild,
+	        final DiamondJoinAction joinAction,
+	        final Collection<String> buildKeys) {
+		if (masterBuild == null) {
+			throw new IllegalArgumentException("masterBuild == null");
+		}
+		if (joinAction == null) {
+			throw new IllegalArgumentException("joinAction == null");
+		}
+		if (buildKeys == null) {
+			throw new IllegalArgumentException("buildKeys == null");
+		}
+		if (joinAction.isCompleted()) {
+			return;
+		}
+		final String masterKey = getBuildKey(masterBuild);
+		final Set<String> joinBuildKeys = newSet(String.class);
+		JOIN_BUILDS.put(joinAction, joinBuildKeys);
+		add(MASTER_JOINS, masterKey, joinAction);
+		for (final String buildKey : buildKeys) {
+			joinBuildKeys.add(buildKey);
+			add(BUILD_JOINS, buildKey, joinAction);
+		}
+		for (final AbstractProject<?, ?> project : joinAction
+		        .getPendingDownstreamProjects()) {
+			addWaiting(joinAction, project);
+		}
+		JoinJournal.get().created(joinAction.toJournalEntry(buildKeys));
+	}
+	
+	/**
+	 * Register a started build into hierarchy of all active joins of its
+	 * upstream builds and of its own joins.
+	 * 
+	 * @param build
+	 *            started build
+	 * @return list of all active joins build belongs to
+	 */
+	public static List<DiamondJoinAction> onStarted(
+	        final AbstractBuild<?, ?> build) {
+		if (build == null) {
+			throw new IllegalArgumentException("build == null");
+		}
+		final List<DiamondJoinAction> joinActions = getUpstreamJoinActions(build);
+		final Set<DiamondJoinAction> masterJoins = MASTER_JOINS
+		        .get(getBuildKey(build));
+		if (masterJoins != null) {
+			for (final DiamondJoinAction joinAction : masterJoins) {
+				if (!joinActions.contains(joinAction)) {
+					joinActions.add(joinAction);
+				}
+			}
+		}
+		final String buildKey = getBuildKey(build);
+		for (final DiamondJoinAction joinAction : joinActions) {
+			final Set<String> buildKeys = JOIN_BUILDS.get(joinAction);
+			if (buildKeys != null && buildKeys.add(buildKey)) {
+				add(BUILD_JOINS, buildKey, joinAction);
+				joinAction.notifyBuildStarted(build);
+			}
+		}
+		return joinActions;
+	}
+	
+	/**
+	 * Return all active joins of upstream builds of a build
+	 * 
+	 * @param build
+	 *            a build
+	 * @return list of all active joins of upstream builds
+	 */
+	public static List<DiamondJoinAction> getUpstreamJoinActions(
+	        final AbstractBuild<?, ?> build) {
+		if (build == null) {
+			throw new IllegalArgumentException("build == null");
+		}
+		final List<DiamondJoinAction> joinActions = new ArrayList<DiamondJoinAction>();
+		for (final Cause cause : build.getCauses()) {
+			if (cause instanceof UpstreamCause) {
+				final UpstreamCause upstreamCause = (UpstreamCause) cause;
+				addActive(
+				        joinActions,
+				        BUILD_JOINS.get(getBuildKey(
+				                upstreamCause.getUpstreamProject(),
+				                upstreamCause.getUpstreamBuild())));
+			}
+		}
+		return joinActions;
+	}
+	
+	/**
+	 * Return all active joins a build belongs to
+	 * 
+	 * @param build
+	 *            a build
+	 * @return list of all active joins build belongs to
+	 */
+	public static List<DiamondJoinAction> getJoinActions(
+	        final AbstractBuild<?, ?> build) {
+		if (build == null) {
+			throw new IllegalArgumentException("build == null");
+		}
+		final List<DiamondJoinAction> joinActions = new ArrayList<DiamondJoinAction>();
+		addActive(joinActions, BUILD_JOINS.get(getBuildKey(build)));
+		return joinActions;
+	}
+	
+	/**
+	 * Return all active joins a build belongs to
+	 * 
+	 * @param projectName
+	 *            full name of build project
+	 * @param number
+	 *            build number
+	 * @return list of all active joins build belongs to
+	 */
+	static List<DiamondJoinAction> getJoinActions(final String projectName,
+	        final int number) {
+		final List<DiamondJoinAction> joinActions = new ArrayList<DiamondJoinAction>();
+		addActive(joinActions, BUILD_JOINS.get(getBuildKey(projectName, number)));
+		return joinActions;
+	}
+	
+	/**
+	 * Return all active joins that wait for a project
+	 * 
+	 * @param project
+	 *            a project
+	 * @return list of all active joins that wait for project
+	 */
+	public static List<DiamondJoinAction> getWaitingJoinActions(
+	        final AbstractProject<?, ?> project) {
+		if (project == null) {
+			throw new IllegalArgumentException("project == null");
+		}
+		final List<DiamondJoinAction> joinActions = new ArrayList<DiamondJoinAction>();
+		addActive(joinActions, WAITING_JOINS.get(project));
+		return joinActions;
+	}
+	
+	/**
+	 * Return all active joins
+	 * 
+	 * @return list of all active joins
+	 */
+	public static List<DiamondJoinAction> getActiveJoinActions() {
+		final List<DiamondJoinAction> joinActions = new ArrayList<DiamondJoinAction>();
+		addActive(joinActions, JOIN_BUILDS.keySet());
+		return joinActions;
+	}
+	
+	/**
+	 * Return if a build belongs to hierarchy of an active join
+	 * 
+	 * @param joinAction
+	 *            an active join
+	 * @param build
+	 *            a build
+	 * @return <code>true</code> if build belongs to join hierarchy,
+	 *         <code>false</code> else.
+	 */
+	static boolean contains(final DiamondJoinAction joinAction,
+	        final AbstractBuild<?, ?> build) {
+		final Set<String> buildKeys = JOIN_BUILDS.get(joinAction);
+		return buildKeys != null && buildKeys.contains(getBuildKey(build));
+	}
+	
+	/**
+	 * Return keys of all builds that belong to hierarchy of an active join
+	 * 
+	 * @param joinAction
+	 *            an active join
+	 * @return keys of builds of join hierarchy, empty if join is not active
+	 */
+	static Set<String> getBuildKeys(final DiamondJoinAction joinAction) {
+		final Set<String> buildKeys = JOIN_BUILDS.get(joinAction);
+		if (buildKeys == null) {
+			return Collections.emptySet();
+		}
+		return new HashSet<String>(buildKeys);
+	}
+	
+	/**
+	 * Index a project an active join waits for
+	 * 
+	 * @param joinAction
+	 *            an active join
+	 * @param project
+	 *            project to wait for
+	 */
+	static void addWaiting(final DiamondJoinAction joinAction,
+	        final AbstractProject<?, ?> project) {
+		if (JOIN_BUILDS.containsKey(joinAction)) {
+			add(WAITING_JOINS, project, joinAction);
+		}
+	}
+	
+	/**
+	 * Remove a project an active join no longer waits for
+	 * 
+	 * @param joinAction
+	 *            an active join
+	 * @param project
+	 *            completed project
+	 */
+	static void removeWaiting(final DiamondJoinAction joinAction,
+	        final AbstractProject<?, ?> project) {
+		remove(WAITING_JOINS, project, joinAction);
+	}
+	
+	/**
+	 * Evict a join from all indexes
+	 * 
+	 * @param joinAction
+	 *            join that fired or was dropped
+	 */
+	static void evict(final DiamondJoinAction joinAction) {
+		final Set<String> buildKeys = JOIN_BUILDS.remove(joinAction);
+		if (buildKeys == null) {
+			return;
+		}
+		for (final String buildKey : buildKeys) {
+			remove(BUILD_JOINS, buildKey, joinAction);
+		}
+		remove(MASTER_JOINS, joinAction.getMasterBuildKey(), joinAction);
+		for (final AbstractProject<?, ?> project : joinAction
+		        .getPendingDownstreamProjects()) {
+			remove(WAITING_JOINS, project, joinAction);
+		}
+	}
+	
+	/**
+	 * Add all active joins of a set to a list
+	 * 
+	 * @param joinActions
+	 *            list where joins are added
+	 * @param candidates
+	 *            joins to add, may be <code>null</code>
+	 */
+	private static void addActive(final List<DiamondJoinAction> joinActions,
+	        final Collection<DiamondJoinAction> candidates) {
+		if (candidates == null) {
+			return;
+		}
+		for (final DiamondJoinAction joinAction : candidates) {
+			if (!joinAction.isCompleted() && !joinActions.contains(joinAction)) {
+				joinActions.add(joinAction);
+			}
+		}
+	}
+	
+	/**
+	 * Add a join to an index
+	 * 
+	 * @param <K>
+	 *            key type
+	 * @param index
+	 *            index where join is added
+	 * @param key
+	 *            key of join
+	 * @param joinAction
+	 *            join to add
+	 */
+	private static <K> void add(final Map<K, Set<DiamondJoinAction>> index,
+	        final K key, final DiamondJoinAction joinAction) {
+		synchronized (index) {
+			Set<DiamondJoinAction> joinActions = index.get(key);
+			if (joinActions == null) {
+				joinActions = newSet(DiamondJoinAction.class);
+				index.put(key, joinActions);
+			}
+			joinActions.add(joinAction);
+		}
+	}
+	
+	/**
+	 * Remove a join from an index, drop key if no join is left
+	 * 
+	 * @param <K>
+	 *            key type
+	 * @param index
+	 *            index where join is removed
+	 * @param key
+	 *            key of join
+	 * @param joinAction
+	 *            join to remove
+	 */
+	private static <K> void remove(final Map<K, Set<DiamondJoinAction>> index,
+	        final K key, final DiamondJoinAction joinAction) {
+		synchronized (index) {
+			final Set<DiamondJoinAction> joinActions = index.get(key);
+			if (joinActions != null) {
+				joinActions.remove(joinAction);
+				if (joinActions.isEmpty()) {
+					index.remove(key);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Create a new concurrent set
+	 * 
+	 * @param <E>
+	 *            element type
+	 * @param type
+	 *            element class
+	 * @return a new concurrent set
+	 */
+	private static <E> Set<E> newSet(final Class<E> type) {
+		return Collections.newSetFromMap(new ConcurrentHashMap<E, Boolean>());
+	}
+}
@@ -4,6 +4,7 @@ import hudson.Extension;
 import hudson.Launcher;
 import hudson.Plugin;
 import hudson.Util;
+import hudson.XmlFile;
 import hudson.model.AutoCompletionCandidates;
 import hudson.model.BuildListener;
 import hudson.model.DependecyDeclarer;
@@ -16,9 +17,8 @@ import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
-import hudson.model.Job;
-import hudson.model.Project;
 import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.SaveableListener;
 import hudson.plugins.parameterizedtrigger.BuildTriggerConfig;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
@@ -31,9 +31,15 @@ import hudson.util.FormValidation;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -45,7 +51,7 @@ import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 
-import diamond.util.ProjectsHelper;
+import diamond.util.TriggerGraph;
 
 /**
  * Trigger Build of join projects after all downstream hierarchy was executed.
@@ -59,6 +65,17 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 	/** Class Logger */
 	protected static final Logger LOGGER = Logger
 	        .getLogger(DiamondJoinTrigger.class.getName());
+	
+	/** Default maximum number of concurrent post-join actions */
+	public static final int DEFAULT_POST_JOIN_CONCURRENCY = 4;
+	
+	/**
+	 * Generation of Hudson items, incremented on each item creation, rename
+	 * or deletion, so that resolved join projects of all triggers are
+	 * outdated.
+	 */
+	private static final AtomicInteger ITEMS_GENERATION = new AtomicInteger();
+	
 	/**
 	 * Comma-separated list of join projects to be scheduled.
 	 */
@@ -84,6 +101,59 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 	 */
 	private final DescribableList<Publisher, Descriptor<Publisher>> postJoinActions;
 	
+	/**
+	 * Flag indicates if join is resolved as soon as threshold can no longer be
+	 * met.
+	 */
+	private boolean failFast;
+	
+	/**
+	 * Flag indicates if remaining downstream builds are aborted or dequeued
+	 * when join is resolved early.
+	 */
+	private boolean abortRemaining;
+	
+	/**
+	 * Result of downstream builds cancelled from queue or aborted,
+	 * {@link Result#ABORTED} if <code>null</code>.
+	 */
+	private Result cancelledResult;
+	
+	/**
+	 * Maximum time in minutes a join waits for its downstream projects, global
+	 * default is used if not positive.
+	 */
+	private int joinTimeout;
+	
+	/**
+	 * Policy applied to a join that timed out, {@link TimeoutPolicy#SKIP} if
+	 * <code>null</code>.
+	 */
+	private TimeoutPolicy timeoutPolicy;
+	
+	/**
+	 * Flag indicates if independent post-join actions run concurrently.
+	 */
+	private boolean parallelPostJoinActions;
+	
+	/**
+	 * Maximum number of concurrent post-join actions, default value is used if
+	 * not positive.
+	 */
+	private int postJoinConcurrency;
+	
+	/**
+	 * Post-join actions ordering, one <code>A -&gt; B</code> declaration by
+	 * line.
+	 */
+	private String postJoinDependencies;
+	
+	/**
+	 * Join projects resolved from their names, <code>null</code> until first
+	 * use.
+	 */
+	private transient volatile ResolvedProjects resolvedProjects;
+	
 	/**
 	 * Construct a new {@link DiamondJoinTrigger}.
 	 * 
@@ -127,6 +197,124 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 		return evenIfBuildStartedOnDownstream;
 	}
 	
+	/**
+	 * Return a flag that indicates if join is resolved as soon as threshold
+	 * can no longer be met.
+	 * 
+	 * @return <code>true</code> if join is resolved at first downstream result
+	 *         worse than threshold, <code>false</code> if join waits for all
+	 *         downstream projects.
+	 */
+	public boolean isFailFast() {
+		return failFast;
+	}
+	
+	/**
+	 * Set if join is resolved as soon as threshold can no longer be met.
+	 * 
+	 * @param failFast
+	 *            <code>true</code> to resolve join at first downstream result
+	 *            worse than threshold.
+	 */
+	public void setFailFast(final boolean failFast) {
+		this.failFast = failFast;
+	}
+	
+	/**
+	 * Return a flag that indicates if remaining downstream builds are aborted
+	 * or dequeued when join is resolved early.
+	 * 
+	 * @return <code>true</code> if remaining downstream builds are aborted,
+	 *         <code>false</code> else.
+	 */
+	public boolean isAbortRemaining() {
+		return abortRemaining;
+	}
+	
+	/**
+	 * Set if remaining downstream builds are aborted or dequeued when join is
+	 * resolved early.
+	 * 
+	 * @param abortRemaining
+	 *            <code>true</code> to abort remaining downstream builds.
+	 */
+	public void setAbortRemaining(final boolean abortRemaining) {
+		this.abortRemaining = abortRemaining;
+	}
+	
+	/**
+	 * Return result of downstream builds cancelled from queue or aborted.
+	 * 
+	 * @return result that settles cancelled or aborted downstream builds
+	 */
+	public Result getCancelledResult() {
+		return cancelledResult == null ? Result.ABORTED : cancelledResult;
+	}
+	
+	/**
+	 * Set result of downstream builds cancelled from queue or aborted.
+	 * 
+	 * @param cancelledResult
+	 *            result that settles cancelled or aborted downstream builds,
+	 *            <code>null</code> for {@link Result#ABORTED}
+	 */
+	public void setCancelledResult(final Result cancelledResult) {
+		this.cancelledResult = cancelledResult;
+	}
+	
+	/**
+	 * Return maximum time in minutes a join waits for its downstream projects.
+	 * 
+	 * @return maximum time in minutes, global default is used if not positive
+	 */
+	public int getJoinTimeout() {
+		return joinTimeout;
+	}
+	
+	/**
+	 * Set maximum time in minutes a join waits for its downstream projects.
+	 * 
+	 * @param joinTimeout
+	 *            maximum time in minutes, global default is used if not
+	 *            positive
+	 */
+	public void setJoinTimeout(final int joinTimeout) {
+		this.joinTimeout = joinTimeout;
+	}
+	
+	/**
+	 * Return maximum time a join waits for its downstream projects, from this
+	 * trigger or from global configuration.
+	 * 
+	 * @return maximum time in milliseconds, <code>0</code> if joins never
+	 *         time out
+	 */
+	public long getEffectiveJoinTimeoutMillis() {
+		final int minutes = joinTimeout > 0 ? joinTimeout
+		        : ((DescriptorImpl) getDescriptor()).getJoinTimeout();
+		return minutes > 0 ? minutes * 60 * 1000L : 0L;
+	}
+	
+	/**
+	 * Return policy applied to a join that timed out.
+	 * 
+	 * @return policy applied to a join that timed out
+	 */
+	public TimeoutPolicy getTimeoutPolicy() {
+		return timeoutPolicy == null ? TimeoutPolicy.SKIP : timeoutPolicy;
+	}
+	
+	/**
+	 * Set policy applied to a join that timed out.
+	 * 
+	 * @param timeoutPolicy
+	 *            policy applied to a join that timed out, <code>null</code>
+	 *            for {@link TimeoutPolicy#SKIP}
+	 */
+	public void setTimeoutPolicy(final TimeoutPolicy timeoutPolicy) {
+		this.timeoutPolicy = timeoutPolicy;
+	}
+	
 	/**
 	 * Return a comma-separated list of join projects to be scheduled.
 	 * 
@@ -142,10 +330,33 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 	 * @return list of join {@link AbstractProject} to be scheduled.
 	 */
 	public List<AbstractProject> getJoinProjects() {
-		if (joinProjects == null || "".equals(joinProjects.trim())) {
-			return Collections.emptyList();
+		return getResolvedProjects().joinProjects;
+	}
+	
+	/**
+	 * Return join projects resolved for current generation of Hudson items,
+	 * resolving them if needed.
+	 * 
+	 * @return resolved join projects
+	 */
+	private ResolvedProjects getResolvedProjects() {
+		// Generation is read first, so that a concurrent item change always
+		// triggers a new resolution
+		final int generation = ITEMS_GENERATION.get();
+		ResolvedProjects resolved = resolvedProjects;
+		if (resolved == null || resolved.generation != generation) {
+			resolved = new ResolvedProjects(generation);
+			resolvedProjects = resolved;
 		}
-		return Items.fromNameList(joinProjects, AbstractProject.class);
+		return resolved;
+	}
+	
+	/**
+	 * Outdate resolved join projects of all triggers. Called when an item is
+	 * created, renamed or deleted.
+	 */
+	static void invalidateResolvedProjects() {
+		ITEMS_GENERATION.incrementAndGet();
 	}
 	
 	/**
@@ -176,6 +387,70 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 		return postJoinActions != null && postJoinActions.size() > 0;
 	}
 	
+	/**
+	 * Return a flag that indicates if independent post-join actions run
+	 * concurrently.
+	 * 
+	 * @return <code>true</code> if independent post-join actions run
+	 *         concurrently, <code>false</code> else.
+	 */
+	public boolean isParallelPostJoinActions() {
+		return parallelPostJoinActions;
+	}
+	
+	/**
+	 * Set if independent post-join actions run concurrently.
+	 * 
+	 * @param parallelPostJoinActions
+	 *            <code>true</code> if independent post-join actions run
+	 *            concurrently.
+	 */
+	public void setParallelPostJoinActions(final boolean parallelPostJoinActions) {
+		this.parallelPostJoinActions = parallelPostJoinActions;
+	}
+	
+	/**
+	 * Return maximum number of concurrent post-join actions.
+	 * 
+	 * @return maximum number of concurrent post-join actions.
+	 */
+	public int getPostJoinConcurrency() {
+		return postJoinConcurrency > 0 ? postJoinConcurrency
+		        : DEFAULT_POST_JOIN_CONCURRENCY;
+	}
+	
+	/**
+	 * Set maximum number of concurrent post-join actions.
+	 * 
+	 * @param postJoinConcurrency
+	 *            maximum number of concurrent post-join actions, default value
+	 *            is used if not positive.
+	 */
+	public void setPostJoinConcurrency(final int postJoinConcurrency) {
+		this.postJoinConcurrency = postJoinConcurrency;
+	}
+	
+	/**
+	 * Return post-join actions ordering declarations.
+	 * 
+	 * @return post-join actions ordering, one <code>A -&gt; B</code>
+	 *         declaration by line.
+	 */
+	public String getPostJoinDependencies() {
+		return postJoinDependencies == null ? "" : postJoinDependencies;
+	}
+	
+	/**
+	 * Set post-join actions ordering declarations.
+	 * 
+	 * @param postJoinDependencies
+	 *            post-join actions ordering, one <code>A -&gt; B</code>
+	 *            declaration by line.
+	 */
+	public void setPostJoinDependencies(final String postJoinDependencies) {
+		this.postJoinDependencies = postJoinDependencies;
+	}
+	
 	/**
 	 * Compute Collection of all joined project through "project list" and post
 	 * Join actions
@@ -184,7 +459,7 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 	 *         and post Join actions
 	 */
 	public String getAllJoinProjectsValue() {
-		return Items.toNameList(getAllJoinProjects());
+		return getResolvedProjects().allJoinProjectsValue;
 	}
 	
 	/**
@@ -195,25 +470,7 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 	 *         post Join actions
 	 */
 	public List<AbstractProject> getAllJoinProjects() {
-		final List<AbstractProject> allJoinProjectsList = new ArrayList<AbstractProject>();
-		allJoinProjectsList.addAll(getJoinProjects());
-		if (Hudson.getInstance().getPlugin("parameterized-trigger") != null) {
-			final hudson.plugins.parameterizedtrigger.BuildTrigger parametizedBuildTrigger = postJoinActions
-			        .get(hudson.plugins.parameterizedtrigger.BuildTrigger.class);
-			if (parametizedBuildTrigger != null) {
-				for (final BuildTriggerConfig config : parametizedBuildTrigger
-				        .getConfigs()) {
-					for (final AbstractProject<?, ?> childProject : Items
-					        .fromNameList(config.getProjects(),
-					                AbstractProject.class)) {
-						if (!allJoinProjectsList.contains(childProject)) {
-							allJoinProjectsList.add(childProject);
-						}
-					}
-				}
-			}
-		}
-		return Collections.unmodifiableList(allJoinProjectsList);
+		return getResolvedProjects().allJoinProjects;
 	}
 	
 	/*
@@ -275,94 +532,220 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 		if (graph == null) {
 			throw new IllegalArgumentException("graph == null");
 		}
+		// Hierarchies computed for previous graph may be outdated
+		TriggerGraph.onDependencyGraphRebuild(graph);
+		final TriggerGraph triggerGraph = TriggerGraph.get(owner);
+		final int ownerId = triggerGraph.getId(owner);
 		
 		if (LOGGER.isLoggable(Level.FINE)) {
 			LOGGER.fine(owner.getName()
 			        + " ==> "
-			        + Items.toNameList(ProjectsHelper
-			                .getDownstreamProjectsHierarchy(owner, false, true)));
+			        + Items.toNameList(triggerGraph.asProjectList(triggerGraph
+			                .getDownstreamHierarchy(ownerId, false, true))));
 		}
+		// Joined projects and their direct hierarchy never depend on owner
+		final int[] allJoinedProjects = triggerGraph
+		        .getIds(getAllJoinProjects());
+		final BitSet joinedHierarchy = triggerGraph.getDownstreamSet(
+		        allJoinedProjects, true, true, true);
 		// Build Child Projects Dependencies
-		buildChildDependencyGraph(owner, owner, graph, getAllJoinProjects());
+		final BitSet joinedProjects = buildChildDependencyGraph(ownerId,
+		        triggerGraph, joinedHierarchy);
+		JoinDependencies.forGraph(graph).add(owner, triggerGraph,
+		        joinedProjects, allJoinedProjects);
+		// Compile join plan once, builds only clone it
+		JoinPlan.get(this, owner);
+		final BitSet dependencyProjects = ((DescriptorImpl) getDescriptor())
+		        .isCompactJoinDependencies() ? getLastJoinedProjects(
+		        triggerGraph, joinedProjects) : joinedProjects;
+		for (int projectId = dependencyProjects.nextSetBit(0); projectId >= 0; projectId = dependencyProjects
+		        .nextSetBit(projectId + 1)) {
+			addUnionDependency(owner, projectId, graph, triggerGraph,
+			        allJoinedProjects);
+		}
 	}
 	
 	/**
-	 * Recursive method to compute dependency graph of all projects hierarchy
+	 * Compute all projects hierarchy that must be joined. Each project of
+	 * hierarchy is visited once, even if it can be reached through many paths.
 	 * 
-	 * @param masterProject
-	 *            project that contains {@link DiamondJoinTrigger} dependency
-	 * @param project
-	 *            project to inspect
-	 * @param graph
-	 *            dependency graph where {@link UnionDependency} added
-	 * @param list
+	 * @param masterProjectId
+	 *            id of project that contains {@link DiamondJoinTrigger}
+	 *            dependency
+	 * @param triggerGraph
+	 *            trigger graph snapshot where ids are defined
+	 * @param joinedHierarchy
+	 *            ids of joined projects and of their direct hierarchy
+	 * @return ids of all projects that must be completed before join
 	 */
-	private void buildChildDependencyGraph(
-	        final AbstractProject<?, ?> masterProject,
-	        final AbstractProject<?, ?> project, final DependencyGraph graph,
-	        final List<AbstractProject> allJoinedProjects) {
-		if (masterProject == null) {
-			throw new IllegalArgumentException("masterProject == null");
+	private BitSet buildChildDependencyGraph(final int masterProjectId,
+	        final TriggerGraph triggerGraph, final BitSet joinedHierarchy) {
+		if (triggerGraph == null) {
+			throw new IllegalArgumentException("triggerGraph == null");
 		}
-		if (project == null) {
-			throw new IllegalArgumentException("project == null");
+		if (joinedHierarchy == null) {
+			throw new IllegalArgumentException("joinedHierarchy == null");
 		}
-		if (graph == null) {
-			throw new IllegalArgumentException("graph == null");
+		final BitSet visitedProjects = new BitSet(triggerGraph.size());
+		final LinkedList<Integer> pendingProjects = new LinkedList<Integer>();
+		visitedProjects.set(masterProjectId);
+		pendingProjects.add(Integer.valueOf(masterProjectId));
+		while (!pendingProjects.isEmpty()) {
+			final int projectId = pendingProjects.removeFirst().intValue();
+			for (final int childProjectId : triggerGraph
+			        .getDownstreamHierarchy(projectId, true, true)) {
+				if (!visitedProjects.get(childProjectId)) {
+					visitedProjects.set(childProjectId);
+					pendingProjects.addFirst(Integer.valueOf(childProjectId));
+				}
+			}
 		}
-		if (allJoinedProjects == null) {
-			throw new IllegalArgumentException("allJoinedProjects == null");
+		// Check if project not points to joined projects hierarchy
+		visitedProjects.andNot(joinedHierarchy);
+		return visitedProjects;
+	}
+	
+	/**
+	 * Compute minimal set of joined projects where {@link UnionDependency}
+	 * must be added. All other joined projects are upstream of one of them, so
+	 * that join projects are still blocked and ordered after whole hierarchy.
+	 * <p>
+	 * Last projects are one project of each terminal strongly connected
+	 * component of joined projects : projects that do not trigger any other
+	 * joined project, and one project of each cycle that triggers nothing
+	 * outside itself. Components are found in a single iterative Tarjan walk,
+	 * so that each joined project and each of its edges is visited once.
+	 * 
+	 * @param triggerGraph
+	 *            trigger graph snapshot where ids are defined
+	 * @param joinedProjects
+	 *            ids of all projects that must be completed before join
+	 * @return ids of last joined projects
+	 */
+	private static BitSet getLastJoinedProjects(
+	        final TriggerGraph triggerGraph, final BitSet joinedProjects) {
+		if (triggerGraph == null) {
+			throw new IllegalArgumentException("triggerGraph == null");
 		}
-		for (final AbstractProject<?, ?> childProject : ProjectsHelper
-		        .getDownstreamProjectsHierarchy(project, true, true)) {
-			buildChildDependencyGraph(masterProject, childProject, graph,
-			        allJoinedProjects);
+		if (joinedProjects == null) {
+			throw new IllegalArgumentException("joinedProjects == null");
 		}
-		addUnionDependency(masterProject, project, graph, allJoinedProjects);
+		final int size = triggerGraph.size();
+		final BitSet lastProjects = new BitSet(size);
+		// Visit order of each project, starting at 1, 0 if not visited
+		final int[] visitOrders = new int[size];
+		final int[] lowLinks = new int[size];
+		// Projects of components that are not complete yet
+		final int[] componentStack = new int[size];
+		int componentSize = 0;
+		final BitSet onComponentStack = new BitSet(size);
+		// Projects that trigger a project of another component
+		final BitSet leavingProjects = new BitSet(size);
+		// Stack of (project, next child index)
+		final int[] walkStack = new int[2 * size];
+		int visitOrder = 0;
+		for (int rootId = joinedProjects.nextSetBit(0); rootId >= 0; rootId = joinedProjects
+		        .nextSetBit(rootId + 1)) {
+			if (visitOrders[rootId] != 0) {
+				continue;
+			}
+			int walkSize = 0;
+			visitOrders[rootId] = lowLinks[rootId] = ++visitOrder;
+			componentStack[componentSize++] = rootId;
+			onComponentStack.set(rootId);
+			walkStack[walkSize++] = rootId;
+			walkStack[walkSize++] = 0;
+			while (walkSize > 0) {
+				final int projectId = walkStack[walkSize - 2];
+				final int[] children = triggerGraph.getDownstreamHierarchy(
+				        projectId, true, true);
+				int index = walkStack[walkSize - 1];
+				while (index < children.length
+				        && (children[index] == projectId || !joinedProjects
+				                .get(children[index]))) {
+					index++;
+				}
+				if (index < children.length) {
+					final int childId = children[index];
+					walkStack[walkSize - 1] = index + 1;
+					if (visitOrders[childId] == 0) {
+						visitOrders[childId] = lowLinks[childId] = ++visitOrder;
+						componentStack[componentSize++] = childId;
+						onComponentStack.set(childId);
+						walkStack[walkSize++] = childId;
+						walkStack[walkSize++] = 0;
+					} else if (onComponentStack.get(childId)) {
+						lowLinks[projectId] = Math.min(lowLinks[projectId],
+						        visitOrders[childId]);
+					} else {
+						// Child belongs to a complete component
+						leavingProjects.set(projectId);
+					}
+					continue;
+				}
+				walkSize -= 2;
+				if (lowLinks[projectId] == visitOrders[projectId]) {
+					// Pop component of projectId, terminal if nothing leaves it
+					boolean terminal = true;
+					int memberId;
+					do {
+						memberId = componentStack[--componentSize];
+						onComponentStack.clear(memberId);
+						terminal &= !leavingProjects.get(memberId);
+					} while (memberId != projectId);
+					if (terminal) {
+						lastProjects.set(projectId);
+					}
+				}
+				if (walkSize > 0) {
+					final int parentId = walkStack[walkSize - 2];
+					if (onComponentStack.get(projectId)) {
+						lowLinks[parentId] = Math.min(lowLinks[parentId],
+						        lowLinks[projectId]);
+					} else {
+						leavingProjects.set(parentId);
+					}
+				}
+			}
+		}
+		return lastProjects;
 	}
 	
 	/**
-	 * Add {@link UnionDependency} only if project parameters was not in all
-	 * joined projects
+	 * Add {@link UnionDependency} from a joined project to all join projects
 	 * 
 	 * @param masterProject
 	 *            project that contains {@link DiamondJoinTrigger} dependency
-	 * @param project
-	 *            project where dependency is issued
+	 * @param projectId
+	 *            id of project where dependency is issued
 	 * @param graph
 	 *            dependency graph where {@link UnionDependency} added
+	 * @param triggerGraph
+	 *            trigger graph snapshot where ids are defined
+	 * @param allJoinedProjects
+	 *            ids of all joined projects
 	 */
 	private void addUnionDependency(final AbstractProject<?, ?> masterProject,
-	        final AbstractProject<?, ?> project, final DependencyGraph graph,
-	        final List<AbstractProject> allJoinedProjects) {
+	        final int projectId, final DependencyGraph graph,
+	        final TriggerGraph triggerGraph, final int[] allJoinedProjects) {
 		if (masterProject == null) {
 			throw new IllegalArgumentException("masterProject == null");
 		}
-		if (project == null) {
-			throw new IllegalArgumentException("project == null");
-		}
 		if (graph == null) {
 			throw new IllegalArgumentException("graph == null");
 		}
+		if (triggerGraph == null) {
+			throw new IllegalArgumentException("triggerGraph == null");
+		}
 		if (allJoinedProjects == null) {
 			throw new IllegalArgumentException("allJoinedProjects == null");
 		}
-		// Check if project not points to joined projects hierarchy
-		for (final AbstractProject<?, ?> joinedProject : allJoinedProjects) {
-			if (joinedProject.equals(project)) {
-				return;
-			}
-			for (final AbstractProject<?, ?> downstreamJoinedProject : ProjectsHelper
-			        .getDownstreamProjectsHierarchy(joinedProject, true, true)) {
-				if (downstreamJoinedProject.equals(project)) {
-					return;
-				}
-			}
-		}
+		final AbstractProject<?, ?> project = triggerGraph
+		        .getProject(projectId);
 		if (LOGGER.isLoggable(Level.FINE)) {
 			LOGGER.fine("Add Dependency \t\t==>\t" + project.getName()
 			        + " to all join Projects : "
-			        + Items.toNameList(allJoinedProjects));
+			        + Items.toNameList(triggerGraph.asProjectList(allJoinedProjects)));
 		}
 		
 		// Add all join Project to current project
@@ -371,28 +754,92 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 			        joinProject));
 		}
 		// Add all parameterized join projects if needed
-		final Plugin parameterizedTrigger = Hudson.getInstance().getPlugin(
-		        "parameterized-trigger");
-		if (parameterizedTrigger != null) {
+		for (final AbstractProject<?, ?> joinProject : getResolvedProjects().parameterizedJoinProjects) {
+			graph.addDependency(new UnionDependency(masterProject, project,
+			        joinProject));
+		}
+	}
+	
+	/**
+	 * Return names of all projects referenced by this trigger, as join
+	 * projects or as parameterized post-join targets, even if they do not
+	 * exist.
+	 * 
+	 * @return names of referenced projects
+	 */
+	public Set<String> getReferencedProjectNames() {
+		final Set<String> projectNames = new HashSet<String>();
+		addProjectNames(projectNames, joinProjects);
+		if (Hudson.getInstance().getPlugin("parameterized-trigger") != null) {
 			for (final hudson.plugins.parameterizedtrigger.BuildTrigger buildTrigger : postJoinActions
 			        .getAll(hudson.plugins.parameterizedtrigger.BuildTrigger.class)) {
-				for (final BuildTriggerConfig buildConfig : buildTrigger
+				for (final BuildTriggerConfig config : buildTrigger
 				        .getConfigs()) {
-					for (final AbstractProject<?, ?> joinProject : Items
-					        .fromNameList(buildConfig.getProjects(),
-					                AbstractProject.class)) {
-						graph.addDependency(new UnionDependency(masterProject,
-						        project, joinProject));
-					}
+					addProjectNames(projectNames, config.getProjects());
+				}
+			}
+		}
+		return projectNames;
+	}
+	
+	/**
+	 * Add names of a comma-separated list of projects to a set
+	 * 
+	 * @param projectNames
+	 *            set where names are added
+	 * @param projects
+	 *            comma-separated list of projects, can be <code>null</code>
+	 */
+	private static void addProjectNames(final Set<String> projectNames,
+	        final String projects) {
+		if (projects == null) {
+			return;
+		}
+		final StringTokenizer tokens = new StringTokenizer(projects, ",");
+		while (tokens.hasMoreTokens()) {
+			final String projectName = tokens.nextToken().trim();
+			if (projectName.length() > 0) {
+				projectNames.add(projectName);
+			}
+		}
+	}
+	
+	/**
+	 * Called from {@link ItemListenerImpl} when a job is deleted.
+	 * 
+	 * @param name
+	 *            deleted Project name
+	 * @return true if this {@link DiamondJoinTrigger} is changed and needs to
+	 *         be saved.
+	 */
+	public boolean onJobDeleted(final String name) {
+		if (!joinProjects.contains(name)) {
+			return false;
+		}
+		final StringBuilder b = new StringBuilder();
+		boolean changed = false;
+		for (final String p : joinProjects.split(",")) {
+			if (p.trim().equals(name)) {
+				changed = true;
+			} else {
+				if (b.length() > 0) {
+					b.append(',');
 				}
+				b.append(p);
 			}
 		}
+		if (changed) {
+			joinProjects = b.toString();
+			resolvedProjects = null;
+		}
+		return changed;
 	}
 	
 	/**
 	 * Called from {@link ItemListenerImpl} when a job is renamed.
 	 * <p>
-	 * Copied from {@link BuildTrigger}
+	 * Copied from {@link BuildTrigger}, parameterized post-join targets are
+	 * renamed too.
 	 * 
 	 * @param oldName
 	 *            old Project name
@@ -402,11 +849,23 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 	 *         be saved.
 	 */
 	public boolean onJobRenamed(final String oldName, final String newName) {
+		boolean changed = false;
+		if (Hudson.getInstance().getPlugin("parameterized-trigger") != null) {
+			for (final hudson.plugins.parameterizedtrigger.BuildTrigger buildTrigger : postJoinActions
+			        .getAll(hudson.plugins.parameterizedtrigger.BuildTrigger.class)) {
+				for (final BuildTriggerConfig config : buildTrigger
+				        .getConfigs()) {
+					changed |= config.onJobRenamed(oldName, newName);
+				}
+			}
+		}
 		// quick test
 		if (!joinProjects.contains(oldName)) {
-			return false;
+			if (changed) {
+				resolvedProjects = null;
+			}
+			return changed;
 		}
-		boolean changed = false;
 		
 		// we need to do this per string, since old Project object is already
 		// gone.
@@ -427,11 +886,88 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 				b.append(p);
 			}
 			joinProjects = b.toString();
+			resolvedProjects = null;
 		}
 		
 		return changed;
 	}
 	
+	/**
+	 * Join projects of a trigger resolved from their names once for a
+	 * generation of Hudson items.
+	 */
+	private final class ResolvedProjects {
+		
+		/** Generation of Hudson items projects were resolved for */
+		final int generation;
+		/** Join projects of "project list" */
+		final List<AbstractProject> joinProjects;
+		/** Join projects of parameterized post-join actions */
+		final List<AbstractProject> parameterizedJoinProjects;
+		/** Join projects of "project list" and of post-join actions */
+		final List<AbstractProject> allJoinProjects;
+		/** Comma-separated names of allJoinProjects */
+		final String allJoinProjectsValue;
+		
+		/**
+		 * Resolve join projects of this trigger
+		 * 
+		 * @param generation
+		 *            current generation of Hudson items
+		 */
+		ResolvedProjects(final int generation) {
+			this.generation = generation;
+			if (DiamondJoinTrigger.this.joinProjects == null
+			        || "".equals(DiamondJoinTrigger.this.joinProjects.trim())) {
+				joinProjects = Collections.emptyList();
+			} else {
+				joinProjects = Collections.unmodifiableList(Items.fromNameList(
+				        DiamondJoinTrigger.this.joinProjects,
+				        AbstractProject.class));
+			}
+			final List<AbstractProject> parameterizedProjects = new ArrayList<AbstractProject>();
+			if (Hudson.getInstance().getPlugin("parameterized-trigger") != null) {
+				for (final hudson.plugins.parameterizedtrigger.BuildTrigger buildTrigger : postJoinActions
+				        .getAll(hudson.plugins.parameterizedtrigger.BuildTrigger.class)) {
+					for (final BuildTriggerConfig config : buildTrigger
+					        .getConfigs()) {
+						for (final AbstractProject<?, ?> childProject : Items
+						        .fromNameList(config.getProjects(),
+						                AbstractProject.class)) {
+							if (!parameterizedProjects.contains(childProject)) {
+								parameterizedProjects.add(childProject);
+							}
+						}
+					}
+				}
+			}
+			parameterizedJoinProjects = Collections
+			        .unmodifiableList(parameterizedProjects);
+			final List<AbstractProject> allProjects = new ArrayList<AbstractProject>(
+			        joinProjects);
+			for (final AbstractProject childProject : parameterizedProjects) {
+				if (!allProjects.contains(childProject)) {
+					allProjects.add(childProject);
+				}
+			}
+			allJoinProjects = Collections.unmodifiableList(allProjects);
+			allJoinProjectsValue = Items.toNameList(allJoinProjects);
+		}
+	}
+	
+	/**
+	 * Policy applied to a join whose downstream projects did not complete
+	 * before timeout.
+	 */
+	public static enum TimeoutPolicy {
+		/** Join projects are built if completed projects meet threshold */
+		FIRE,
+		/** Join is dropped, join projects are not built */
+		SKIP,
+		/** Join fails, remaining builds are aborted if configured */
+		FAIL
+	}
+	
 	/**
 	 * {@link DiamondJoinTrigger} UI Descriptor.
 	 */
@@ -439,6 +975,109 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 	public static final class DescriptorImpl extends
 	        BuildStepDescriptor<Publisher> {
 		
+		/**
+		 * Flag indicates if only minimal {@link UnionDependency} should be
+		 * added to dependency graph. Join relationships are then available
+		 * through {@link JoinDependencies}.
+		 */
+		private boolean compactJoinDependencies;
+		
+		/**
+		 * Default maximum time in minutes a join waits for its downstream
+		 * projects, joins never time out if not positive.
+		 */
+		private int joinTimeout;
+		
+		/**
+		 * Construct a new {@link DescriptorImpl} and load global
+		 * configuration.
+		 */
+		public DescriptorImpl() {
+			load();
+		}
+		
+		/**
+		 * Return a flag that indicates if only minimal {@link UnionDependency}
+		 * should be added to dependency graph.
+		 * 
+		 * @return <code>true</code> if {@link UnionDependency} are only added
+		 *         from last joined projects, <code>false</code> if they are
+		 *         added from all joined projects.
+		 */
+		public boolean isCompactJoinDependencies() {
+			return compactJoinDependencies;
+		}
+		
+		/**
+		 * Set flag that indicates if only minimal {@link UnionDependency}
+		 * should be added to dependency graph.
+		 * 
+		 * @param compactJoinDependencies
+		 *            <code>true</code> if {@link UnionDependency} are only
+		 *            added from last joined projects, <code>false</code> if
+		 *            they are added from all joined projects.
+		 */
+		public void setCompactJoinDependencies(
+		        final boolean compactJoinDependencies) {
+			this.compactJoinDependencies = compactJoinDependencies;
+		}
+		
+		/**
+		 * Return default maximum time in minutes a join waits for its
+		 * downstream projects.
+		 * 
+		 * @return default maximum time in minutes, joins never time out if
+		 *         not positive
+		 */
+		public int getJoinTimeout() {
+			return joinTimeout;
+		}
+		
+		/**
+		 * Set default maximum time in minutes a join waits for its downstream
+		 * projects.
+		 * 
+		 * @param joinTimeout
+		 *            default maximum time in minutes, joins never time out if
+		 *            not positive
+		 */
+		public void setJoinTimeout(final int joinTimeout) {
+			this.joinTimeout = joinTimeout;
+		}
+		
+		/**
+		 * Return policies that can be applied to a join that timed out.
+		 * 
+		 * @return all timeout policies
+		 */
+		public TimeoutPolicy[] getTimeoutPolicies() {
+			return TimeoutPolicy.values();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see
+		 * hudson.model.Descriptor#configure(org.kohsuke.stapler.StaplerRequest,
+		 * net.sf.json.JSONObject)
+		 */
+		@Override
+		public boolean configure(final StaplerRequest req,
+		        final JSONObject json) throws FormException {
+			if (json == null) {
+				throw new IllegalArgumentException("json == null");
+			}
+			final boolean compact = json.optBoolean("compactJoinDependencies");
+			final boolean changed = compact != compactJoinDependencies;
+			compactJoinDependencies = compact;
+			joinTimeout = Math.max(json.optInt("joinTimeout"), 0);
+			save();
+			if (changed) {
+				// Dependency graph must be rebuilt with new edge model
+				Hudson.getInstance().rebuildDependencyGraph();
+			}
+			return true;
+		}
+		
 		/*
 		 * (non-Javadoc)
 		 * @see hudson.model.Descriptor#getDisplayName()
@@ -505,7 +1144,7 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 				childProjectsString = childProjectsString.substring(0,
 				        childProjectsString.length() - 1).trim();
 			}
-			return new DiamondJoinTrigger(
+			final DiamondJoinTrigger trigger = new DiamondJoinTrigger(
 			        postJoinActions,
 			        childProjectsString,
 			        formData.has("evenIfDownstreamUnstable")
@@ -513,6 +1152,29 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 			        formData.has("evenIfBuildStartedOnDownstream")
 			                && formData
 			                        .getBoolean("evenIfBuildStartedOnDownstream"));
+			trigger.setFailFast(formData.optBoolean("failFast"));
+			trigger.setAbortRemaining(trigger.isFailFast()
+			        && formData.optBoolean("abortRemaining"));
+			trigger.setCancelledResult(Result.fromString(formData.optString(
+			        "cancelledResult", Result.ABORTED.toString())));
+			trigger.setJoinTimeout(Math.max(formData.optInt("joinTimeout"), 0));
+			try {
+				trigger.setTimeoutPolicy(TimeoutPolicy.valueOf(formData
+				        .optString("timeoutPolicy",
+				                TimeoutPolicy.SKIP.name())));
+			} catch (final IllegalArgumentException e) {
+				trigger.setTimeoutPolicy(TimeoutPolicy.SKIP);
+			}
+			// Post-join actions execution mode
+			if (postJoinActionsValue != null) {
+				trigger.setParallelPostJoinActions(postJoinActionsValue
+				        .optBoolean("parallelPostJoinActions"));
+				trigger.setPostJoinConcurrency(postJoinActionsValue
+				        .optInt("postJoinConcurrency"));
+				trigger.setPostJoinDependencies(postJoinActionsValue.optString(
+				        "postJoinDependencies", "").trim());
+			}
+			return trigger;
 		}
 		
 		/*
@@ -525,6 +1187,17 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 			return true;
 		}
 		
+		/**
+		 * Return results that can settle cancelled or aborted downstream
+		 * builds.
+		 * 
+		 * @return list of results, default one first
+		 */
+		public List<Result> getCancelledResults() {
+			return Arrays.asList(Result.ABORTED, Result.FAILURE,
+			        Result.UNSTABLE, Result.SUCCESS);
+		}
+		
 		/**
 		 * Return a list of all supported {@link Publisher} for post-joi
 		 * Actions.
@@ -613,8 +1286,8 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 		/**
 		 * Autocompletion method for field JoinProjects
 		 * 
-		 * Copied from
-		 * hudson.tasks.BuildTrigger.doAutoCompleteChildProjects(String value)
+		 * Backed by {@link JobNameIndex}, at most
+		 * {@link JobNameIndex#MAX_CANDIDATES} readable jobs are returned.
 		 * 
 		 * @param value
 		 *            current value of field JoinProjects
@@ -624,13 +1297,10 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 		public AutoCompletionCandidates doAutoCompleteJoinProjects(
 		        @QueryParameter final String value) {
 			final AutoCompletionCandidates candidates = new AutoCompletionCandidates();
-			final List<Job> jobs = Hudson.getInstance().getItems(Job.class);
-			for (final Job<?, ?> job : jobs) {
-				if (job.getFullName().startsWith(value)) {
-					if (job.hasPermission(Item.READ)) {
-						candidates.add(job.getFullName());
-					}
-				}
+			for (final String name : JobNameIndex.complete(
+			        value == null ? "" : value.trim(),
+			        JobNameIndex.MAX_CANDIDATES)) {
+				candidates.add(name);
 			}
 			return candidates;
 		}
@@ -664,21 +1334,99 @@ public class DiamondJoinTrigger extends Recorder implements DependecyDeclarer {
 				throw new IllegalArgumentException("newName == null");
 			}
 			// update DiamondTrigger of other projects that point to this
-			// object. can't we generalize this?
-			for (final Project<?, ?> p : Hudson.getInstance().getProjects()) {
-				final DiamondJoinTrigger t = p.getPublishersList().get(
-				        DiamondJoinTrigger.class);
-				if (t != null) {
-					if (t.onJobRenamed(oldName, newName)) {
-						try {
-							p.save();
-						} catch (final IOException e) {
-							LOGGER.log(Level.WARNING,
-							        "Failed to persist project setting during rename from "
-							                + oldName + " to " + newName, e);
-						}
+			// object, only projects that reference it are visited and saved
+			// in one batch
+			JoinConfigSaver.begin();
+			try {
+				for (final AbstractProject<?, ?> p : JoinTriggerIndex
+				        .getOwners(oldName)) {
+					final DiamondJoinTrigger t = p.getPublishersList().get(
+					        DiamondJoinTrigger.class);
+					if (t != null && t.onJobRenamed(oldName, newName)) {
+						JoinConfigSaver.save(p);
+					}
+				}
+			} finally {
+				JoinConfigSaver.end();
+			}
+			JobNameIndex.onRenamed(item, oldName);
+			invalidateResolvedProjects();
+			TriggerGraph.invalidate();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see hudson.model.listeners.ItemListener#onCreated(hudson.model.Item)
+		 */
+		@Override
+		public void onCreated(final Item item) {
+			JobNameIndex.onCreated(item);
+			invalidateResolvedProjects();
+			TriggerGraph.invalidate();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see hudson.model.listeners.ItemListener#onDeleted(hudson.model.Item)
+		 */
+		@Override
+		public void onDeleted(final Item item) {
+			JobNameIndex.onDeleted(item);
+			if (item instanceof AbstractProject) {
+				JoinTriggerIndex.remove((AbstractProject<?, ?>) item);
+			}
+			// Drop deleted project from triggers that reference it
+			JoinConfigSaver.begin();
+			try {
+				for (final AbstractProject<?, ?> p : JoinTriggerIndex
+				        .getOwners(item.getFullName())) {
+					final DiamondJoinTrigger t = p.getPublishersList().get(
+					        DiamondJoinTrigger.class);
+					if (t != null && t.onJobDeleted(item.getFullName())) {
+						JoinConfigSaver.save(p);
 					}
 				}
+			} finally {
+				JoinConfigSaver.end();
+			}
+			invalidateResolvedProjects();
+			TriggerGraph.invalidate();
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see hudson.model.listeners.ItemListener#onLoaded()
+		 */
+		@Override
+		public void onLoaded() {
+			invalidateResolvedProjects();
+			JobNameIndex.invalidate();
+			JoinTriggerIndex.rebuild();
+			TriggerGraph.invalidate();
+			// Restore joins that were active before restart
+			JoinJournal.recover();
+		}
+	}
+	
+	/**
+	 * Watch job configuration saves to drop outdated project hierarchies.
+	 */
+	@Extension
+	public static final class SaveableListenerImpl extends SaveableListener {
+		
+		/*
+		 * (non-Javadoc)
+		 * @see
+		 * hudson.model.listeners.SaveableListener#onChange(hudson.model.Saveable
+		 * , hudson.XmlFile)
+		 */
+		@Override
+		public void onChange(final Saveable o, final XmlFile file) {
+			if (o instanceof Item) {
+				TriggerGraph.invalidate();
+			}
+			if (o instanceof AbstractProject) {
+				JoinTriggerIndex.reindex((AbstractProject<?, ?>) o);
 			}
 		}
 	}
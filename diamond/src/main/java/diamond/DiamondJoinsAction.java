@@ -0,0 +1,264 @@
+package diamond;
+
+import hudson.BulkChange;
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.Api;
+import hudson.model.Descriptor.FormException;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.RootAction;
+import hudson.tasks.Publisher;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletResponse;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Hidden root action that exposes diamond joins activity, see
+ * <code>/diamond-joins/api/json</code>, and bulk configuration of join
+ * triggers, see {@link #doConfigure(StaplerRequest, StaplerResponse)}.
+ * 
+ * @author Julien Bouyoud
+ */
+@Extension
+@ExportedBean
+public class DiamondJoinsAction implements RootAction {
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.Action#getIconFileName()
+	 */
+	@Override
+	public String getIconFileName() {
+		return null;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.Action#getDisplayName()
+	 */
+	@Override
+	public String getDisplayName() {
+		return "Diamond Joins";
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.Action#getUrlName()
+	 */
+	@Override
+	public String getUrlName() {
+		return "diamond-joins";
+	}
+	
+	/**
+	 * Return remote API of this action
+	 * 
+	 * @return remote API of this action
+	 */
+	public Api getApi() {
+		return new Api(this);
+	}
+	
+	/**
+	 * Create, update or remove join triggers of many jobs at once, dependency
+	 * graph is rebuilt once.
+	 * <p>
+	 * Request is a POST of a JSON object
+	 * <code>{"jobs":[{"job":"full/name","joinProjects":"a,b",...}]}</code>.
+	 * Each job entry uses fields of trigger configuration form, like
+	 * <code>evenIfDownstreamUnstable</code> or <code>postJoinActions</code>,
+	 * and replaces trigger of job. <code>"remove":true</code> removes trigger
+	 * of job. All entries are validated before any job is changed, then each
+	 * job is changed in memory and saved once by {@link JoinConfigSaver}.
+	 * 
+	 * @param req
+	 *            request
+	 * @param rsp
+	 *            response, number of updated and removed triggers and of
+	 *            saved jobs as JSON
+	 * @throws IOException
+	 *             if request can not be read
+	 */
+	public void doConfigure(final StaplerRequest req,
+	        final StaplerResponse rsp) throws IOException {
+		if (!"POST".equals(req.getMethod())) {
+			rsp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+			return;
+		}
+		final Hudson hudson = Hudson.getInstance();
+		final DiamondJoinTrigger.DescriptorImpl descriptor = hudson
+		        .getDescriptorByType(DiamondJoinTrigger.DescriptorImpl.class);
+		// Validate all entries before any change, null trigger removes
+		final Map<AbstractProject<?, ?>, DiamondJoinTrigger> triggers = new LinkedHashMap<AbstractProject<?, ?>, DiamondJoinTrigger>();
+		try {
+			final JSONArray jobs = JSONObject.fromObject(
+			        IOUtils.toString(req.getReader())).getJSONArray("jobs");
+			for (int i = 0; i < jobs.size(); i++) {
+				final JSONObject job = jobs.getJSONObject(i);
+				final AbstractProject<?, ?> project = hudson.getItemByFullName(
+				        job.getString("job"), AbstractProject.class);
+				if (project == null) {
+					rsp.sendError(HttpServletResponse.SC_BAD_REQUEST,
+					        "No such job: " + job.getString("job"));
+					return;
+				}
+				project.checkPermission(Item.CONFIGURE);
+				triggers.put(project, job.optBoolean("remove") ? null
+				        : (DiamondJoinTrigger) descriptor.newInstance(req, job));
+			}
+		} catch (final JSONException e) {
+			rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		} catch (final FormException e) {
+			rsp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+			return;
+		}
+		int updated = 0;
+		int removed = 0;
+		int saved = 0;
+		JoinConfigSaver.begin();
+		try {
+			for (final Map.Entry<AbstractProject<?, ?>, DiamondJoinTrigger> entry : triggers
+			        .entrySet()) {
+				final List<Publisher> publishers = new ArrayList<Publisher>();
+				for (final Publisher publisher : entry.getKey()
+				        .getPublishersList()) {
+					if (!(publisher instanceof DiamondJoinTrigger)) {
+						publishers.add(publisher);
+					}
+				}
+				if (entry.getValue() == null) {
+					removed++;
+				} else {
+					publishers.add(entry.getValue());
+					updated++;
+				}
+				// Publishers list saves its job on change, swap in memory only
+				final BulkChange bulkChange = new BulkChange(entry.getKey());
+				try {
+					entry.getKey().getPublishersList().replaceBy(publishers);
+				} finally {
+					bulkChange.abort();
+				}
+				// Job is saved once, graph is rebuilt once batch ends
+				JoinConfigSaver.save(entry.getKey());
+			}
+		} finally {
+			saved = JoinConfigSaver.end();
+		}
+		final JSONObject result = new JSONObject();
+		result.put("updated", Integer.valueOf(updated));
+		result.put("removed", Integer.valueOf(removed));
+		result.put("saved", Integer.valueOf(saved));
+		rsp.setContentType("application/json;charset=UTF-8");
+		rsp.getWriter().print(result.toString());
+	}
+	
+	/**
+	 * Return number of joins waiting for downstream projects
+	 * 
+	 * @return number of active joins
+	 */
+	@Exported
+	public int getActiveJoinCount() {
+		return DiamondJoinRegistry.getActiveJoinActions().size();
+	}
+	
+	/**
+	 * Return number of joins resolved by {@link JoinWatchdog} because they
+	 * timed out
+	 * 
+	 * @return number of expired joins
+	 */
+	@Exported
+	public long getExpiredJoinCount() {
+		return JoinWatchdog.getExpiredCount();
+	}
+	
+	/**
+	 * Return number of join dispatcher threads
+	 * 
+	 * @return number of join dispatcher threads
+	 */
+	@Exported
+	public int getDispatcherPoolSize() {
+		return JoinDispatcher.getPoolSize();
+	}
+	
+	/**
+	 * Return number of join tasks being run
+	 * 
+	 * @return number of running join tasks
+	 */
+	@Exported
+	public int getDispatcherActiveCount() {
+		return JoinDispatcher.getActiveCount();
+	}
+	
+	/**
+	 * Return number of join tasks waiting for a dispatcher thread
+	 * 
+	 * @return number of queued join tasks
+	 */
+	@Exported
+	public int getDispatcherQueuedCount() {
+		return JoinDispatcher.getQueuedCount();
+	}
+	
+	/**
+	 * Return number of dispatched join tasks
+	 * 
+	 * @return number of dispatched join tasks
+	 */
+	@Exported
+	public long getDispatcherSubmittedCount() {
+		return JoinDispatcher.getSubmittedCount();
+	}
+	
+	/**
+	 * Return number of completed join tasks
+	 * 
+	 * @return number of completed join tasks
+	 */
+	@Exported
+	public long getDispatcherCompletedCount() {
+		return JoinDispatcher.getCompletedCount();
+	}
+	
+	/**
+	 * Return number of join tasks that failed
+	 * 
+	 * @return number of failed join tasks
+	 */
+	@Exported
+	public long getDispatcherFailedCount() {
+		return JoinDispatcher.getFailedCount();
+	}
+	
+	/**
+	 * Return number of join tasks that ran on listener thread because
+	 * dispatcher was full or stopped
+	 * 
+	 * @return number of join tasks that ran on listener thread
+	 */
+	@Exported
+	public long getDispatcherCallerRunsCount() {
+		return JoinDispatcher.getCallerRunsCount();
+	}
+}
@@ -0,0 +1,38 @@
+package diamond;
+
+import hudson.Plugin;
+
+/**
+ * Diamond Join plugin entry point.
+ * 
+ * @author Julien Bouyoud
+ */
+public class DiamondPlugin extends Plugin {
+	
+	/** Maximum time to wait for pending join tasks on shutdown */
+	private static final long SHUTDOWN_TIMEOUT = 60 * 1000L;
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.Plugin#start()
+	 */
+	@Override
+	public void start() throws Exception {
+		super.start();
+		// Dispatcher may have been stopped by a previous Hudson of same JVM
+		JoinDispatcher.start();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.Plugin#stop()
+	 */
+	@Override
+	public void stop() throws Exception {
+		// Let dispatched joins schedule their projects before exit
+		JoinDispatcher.shutdown(SHUTDOWN_TIMEOUT);
+		// Active joins are recovered from snapshot at next start
+		JoinJournal.shutdown();
+		super.stop();
+	}
+}
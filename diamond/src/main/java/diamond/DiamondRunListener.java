@@ -4,17 +4,20 @@ import hudson.Extension;
 import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
-import hudson.model.Cause;
 import hudson.model.Cause.UpstreamCause;
-import hudson.model.Hudson;
-import hudson.model.Run;
 import hudson.model.listeners.RunListener;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import diamond.util.TriggerGraph;
+
 /**
  * Receives notifications about builds.<br/>
  * {@link #onStarted(AbstractBuild, TaskListener)} if any
@@ -54,6 +57,10 @@ public class DiamondRunListener
 			throw new IllegalArgumentException("listener == null");
 		}
 		super.onStarted(build, listener);
+		// Nothing to do for projects that never take part in a diamond
+		if (!TriggerGraph.get().isDiamondParticipant(build.getProject())) {
+			return;
+		}
 		
 		// If build was start by upstream project dependency
 		if (build.getCause(UpstreamCause.class) != null) {
@@ -63,12 +70,14 @@ public class DiamondRunListener
 			// if any diamondTrigger was found on project direct hierarchy
 			if (diamondTrigger != null) {
 				// Search All Upstream Join Build dependencies
-				final List<DiamondJoinAction> joinActions = findJoinActions(build);
+				final List<DiamondJoinAction> joinActions = DiamondJoinRegistry
+				        .getUpstreamJoinActions(build);
 				// Add new Join Action on Build
 				final DiamondJoinAction joinAction = new DiamondJoinAction(
 				        build, diamondTrigger);
 				joinAction.addJoinDependencies(joinActions);
 				build.addAction(joinAction);
+				DiamondJoinRegistry.register(build, joinAction);
 				
 				if (LOGGER.isLoggable(Level.FINE)) {
 					LOGGER.fine(joinAction.toString());
@@ -77,20 +86,76 @@ public class DiamondRunListener
 		} else {
 			// User or other automatic Trigger a new Build.
 			// For all Project Upstream hierarchy rebuild dependency Tree.
-			buildJoinActionDependencyTree(build, build.getProject(), true);
+			for (final DiamondJoinAction joinAction : buildJoinActionDependencyTree(build)) {
+				DiamondJoinRegistry.register(build, joinAction);
+			}
+		}
+		// Build now belongs to all active joins of its hierarchy
+		DiamondJoinRegistry.onStarted(build);
+	}
+	
+	/**
+	 * Build all {@link DiamondJoinAction} of a build that was not started by
+	 * an upstream project, searching {@link DiamondJoinTrigger} in whole
+	 * upstream hierarchy of its project.
+	 * 
+	 * @param masterJoinBuild
+	 *            build where join actions are added
+	 * @return list of all added join actions
+	 */
+	private List<DiamondJoinAction> buildJoinActionDependencyTree(
+	        final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> masterJoinBuild) {
+		if (masterJoinBuild == null) {
+			throw new IllegalArgumentException("masterJoinBuild == null");
 		}
+		// Fingerprints of join actions already added on build
+		final Set<String> fingerprints = new HashSet<String>();
+		for (final DiamondJoinAction joinAction : masterJoinBuild
+		        .getActions(DiamondJoinAction.class)) {
+			fingerprints.add(joinAction.getFingerprint());
+		}
+		return buildJoinActionDependencyTree(masterJoinBuild,
+		        masterJoinBuild.getProject(), true,
+		        new HashMap<AbstractProject<?, ?>, List<DiamondJoinAction>>(),
+		        fingerprints);
 	}
 	
+	/**
+	 * Build {@link DiamondJoinAction} of a project and of its upstream
+	 * hierarchy. Each project is visited once per build start.
+	 * 
+	 * @param masterJoinBuild
+	 *            build where join actions are added
+	 * @param project
+	 *            project where {@link DiamondJoinTrigger} is searched
+	 * @param isRootProject
+	 *            flag indicates if project is masterJoinBuild project
+	 * @param visitedProjects
+	 *            join actions of already visited projects
+	 * @param fingerprints
+	 *            fingerprints of join actions added on masterJoinBuild
+	 * @return list of all join actions added for project and its upstream
+	 *         hierarchy
+	 */
 	private List<DiamondJoinAction> buildJoinActionDependencyTree(
 	        final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> masterJoinBuild,
-	        final AbstractProject<?, ?> project, final boolean isRootProject) {
+	        final AbstractProject<?, ?> project, final boolean isRootProject,
+	        final Map<AbstractProject<?, ?>, List<DiamondJoinAction>> visitedProjects,
+	        final Set<String> fingerprints) {
 		if (masterJoinBuild == null) {
 			throw new IllegalArgumentException("masterJoinBuild == null");
 		}
 		if (project == null) {
 			throw new IllegalArgumentException("project == null");
 		}
+		final List<DiamondJoinAction> visitedJoinActions = visitedProjects
+		        .get(project);
+		if (visitedJoinActions != null) {
+			return visitedJoinActions;
+		}
 		final List<DiamondJoinAction> joinActions = new ArrayList<DiamondJoinAction>();
+		// Register before recursion, so that cycles stop here
+		visitedProjects.put(project, joinActions);
 		// Just get the first Join Publisher that we found.
 		// Here i dunno how to solve cross-diamonds.
 		final DiamondJoinTrigger diamondTrigger = project.getPublishersList()
@@ -102,11 +167,11 @@ public class DiamondRunListener
 		                .isEvenIfBuildStartedOnDownstream())) {
 			// Build join Action
 			final DiamondJoinAction tmpJoinAction = new DiamondJoinAction(
-			        masterJoinBuild, diamondTrigger);
+			        masterJoinBuild, project, diamondTrigger);
 			// Check if this join action aleady exist and if it no points it
 			// self.
 			if (!tmpJoinAction.pointsItself()
-			        && !masterJoinBuild.getActions().contains(tmpJoinAction)) {
+			        && fingerprints.add(tmpJoinAction.getFingerprint())) {
 				projectJoinAction = tmpJoinAction;
 				// Add only if build doesn't contains the same joinAction
 				masterJoinBuild.addAction(projectJoinAction);
@@ -126,8 +191,13 @@ public class DiamondRunListener
 			        .getUpstreamProjects()) {
 				// Recursive call
 				final List<DiamondJoinAction> upstreamJoinActions = buildJoinActionDependencyTree(
-				        masterJoinBuild, upstreamProject, false);
-				joinActions.addAll(upstreamJoinActions);
+				        masterJoinBuild, upstreamProject, false,
+				        visitedProjects, fingerprints);
+				for (final DiamondJoinAction upstreamJoinAction : upstreamJoinActions) {
+					if (!joinActions.contains(upstreamJoinAction)) {
+						joinActions.add(upstreamJoinAction);
+					}
+				}
 				// For current JoinAction add all new upstream Dependencies
 				if (projectJoinAction != null) {
 					projectJoinAction.addJoinDependencies(upstreamJoinActions);
@@ -153,56 +223,17 @@ public class DiamondRunListener
 			throw new IllegalArgumentException("listener == null");
 		}
 		super.onCompleted(build, listener);
-		//
-		for (final DiamondJoinAction joinAction : findJoinActions(build)) {
+		// Nothing to do for projects that never take part in a diamond
+		if (!TriggerGraph.get().isDiamondParticipant(build.getProject())) {
+			return;
+		}
+		// Active joins of build hierarchy are already indexed
+		for (final DiamondJoinAction joinAction : DiamondJoinRegistry
+		        .getJoinActions(build)) {
 			// Notify downstream build of masterJoin Action of build
 			// completion
 			joinAction.notifyBuildCompletion(build, listener);
 		}
 	}
 	
-	/**
-	 * Search all {@link DiamondJoinAction} on Build hierarchy through
-	 * {@link UpstreamCause}
-	 * 
-	 * @param build
-	 *            the child where the {@link DiamondJoinAction} will be search
-	 *            in.
-	 * @return list of all found {@link DiamondJoinAction} on build hierarchy
-	 */
-	@SuppressWarnings("rawtypes")
-	private List<DiamondJoinAction> findJoinActions(
-	        final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> build) {
-		if (build == null) {
-			throw new IllegalArgumentException("build == null");
-		}
-		final List<DiamondJoinAction> joinActions = new ArrayList<DiamondJoinAction>();
-		// Scan Upstream build causes
-		for (final Cause cause : build.getCauses()) {
-			if (cause instanceof UpstreamCause) {
-				final UpstreamCause upstreamCause = (UpstreamCause) cause;
-				
-				final AbstractProject project = Hudson.getInstance()
-				        .getItemByFullName(upstreamCause.getUpstreamProject(),
-				                AbstractProject.class);
-				if (project != null) {
-					final Run run = project.getBuildByNumber(upstreamCause
-					        .getUpstreamBuild());
-					if (run instanceof AbstractBuild) {
-						joinActions
-						        .addAll(findJoinActions((AbstractBuild<?, ?>) run));
-					}
-				}
-			}
-		}
-		// Add only not completed Join Action on build
-		for (final DiamondJoinAction availableJoinActionOnBuild : build
-		        .getActions(DiamondJoinAction.class)) {
-			if (!availableJoinActionOnBuild.isCompleted()) {
-				joinActions.add(availableJoinActionOnBuild);
-			}
-		}
-		return joinActions;
-	}
-	
-}
+}
\ No newline at end of file
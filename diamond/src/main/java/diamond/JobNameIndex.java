@@ -0,0 +1,161 @@
+package diamond;
+
+import hudson.matrix.MatrixConfiguration;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Sorted index of full names of all projects that can be join projects,
+ * including projects of folders, used to complete join project names. Matrix
+ * configurations are not indexed, as they are not built on their own.
+ * <p>
+ * Index is built once, then maintained from item events. A completion only
+ * visits names that start with typed prefix, and checks permission of
+ * returned jobs only, until result limit is reached.
+ * 
+ * @author Julien Bouyoud
+ */
+final class JobNameIndex {
+	
+	/** Maximum number of completion candidates */
+	static final int MAX_CANDIDATES = Integer.getInteger(
+	        JobNameIndex.class.getName() + ".maxCandidates", 50).intValue();
+	
+	/** Sorted full names of all indexed projects */
+	private static final NavigableSet<String> NAMES = new ConcurrentSkipListSet<String>();
+	/** Flag indicates if index must be built again */
+	private static volatile boolean outdated = true;
+	
+	/**
+	 * Utility class
+	 */
+	private JobNameIndex() {
+		// Nothing to do
+	}
+	
+	/**
+	 * Return full names of readable projects that start with a prefix
+	 * 
+	 * @param prefix
+	 *            typed prefix
+	 * @param limit
+	 *            maximum number of names
+	 * @return sorted full names of readable projects, at most limit
+	 */
+	static List<String> complete(final String prefix, final int limit) {
+		if (prefix == null) {
+			throw new IllegalArgumentException("prefix == null");
+		}
+		if (outdated) {
+			rebuild();
+		}
+		final Hudson hudson = Hudson.getInstance();
+		final List<String> names = new ArrayList<String>();
+		for (final String name : NAMES.tailSet(prefix, true)) {
+			if (!name.startsWith(prefix) || names.size() >= limit) {
+				break;
+			}
+			final AbstractProject<?, ?> project = hudson.getItemByFullName(
+			        name, AbstractProject.class);
+			if (project != null && project.hasPermission(Item.READ)) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+	
+	/**
+	 * Build index from all projects
+	 */
+	static synchronized void rebuild() {
+		final Hudson hudson = Hudson.getInstance();
+		if (hudson == null) {
+			return;
+		}
+		outdated = false;
+		NAMES.clear();
+		for (final AbstractProject<?, ?> project : hudson
+		        .getAllItems(AbstractProject.class)) {
+			if (isIndexed(project)) {
+				NAMES.add(project.getFullName());
+			}
+		}
+	}
+	
+	/**
+	 * Return if an item can be a join project, i.e. a project that is not a
+	 * matrix configuration
+	 * 
+	 * @param item
+	 *            an item
+	 * @return <code>true</code> if item name is indexed, <code>false</code>
+	 *         else.
+	 */
+	private static boolean isIndexed(final Item item) {
+		return item instanceof AbstractProject
+		        && !(item instanceof MatrixConfiguration);
+	}
+	
+	/**
+	 * Index a created item
+	 * 
+	 * @param item
+	 *            created item
+	 */
+	static void onCreated(final Item item) {
+		if (item instanceof ItemGroup) {
+			// Copied folders come with their jobs
+			outdated = true;
+		} else if (isIndexed(item)) {
+			NAMES.add(item.getFullName());
+		}
+	}
+	
+	/**
+	 * Update index of a renamed item
+	 * 
+	 * @param item
+	 *            renamed item
+	 * @param oldName
+	 *            old name of item
+	 */
+	static void onRenamed(final Item item, final String oldName) {
+		if (item instanceof ItemGroup) {
+			// Full names of all folder jobs changed
+			outdated = true;
+		} else if (isIndexed(item)) {
+			final String parentName = item.getParent().getFullName();
+			NAMES.remove(parentName.length() == 0 ? oldName : parentName
+			        + '/' + oldName);
+			NAMES.add(item.getFullName());
+		}
+	}
+	
+	/**
+	 * Remove a deleted item from index
+	 * 
+	 * @param item
+	 *            deleted item
+	 */
+	static void onDeleted(final Item item) {
+		if (item instanceof ItemGroup) {
+			outdated = true;
+		} else if (isIndexed(item)) {
+			NAMES.remove(item.getFullName());
+		}
+	}
+	
+	/**
+	 * Outdate whole index, once all items were loaded
+	 */
+	static void invalidate() {
+		outdated = true;
+	}
+}
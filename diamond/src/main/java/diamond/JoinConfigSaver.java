@@ -0,0 +1,123 @@
+package diamond;
+
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+
+import java.io.IOException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces configuration saves of projects changed by one logical change,
+ * like a rename that updates all triggers that reference renamed project.
+ * <p>
+ * Between {@link #begin()} and {@link #end()}, {@link #save(AbstractProject)}
+ * only records projects. Outermost {@link #end()} saves each recorded project
+ * once, then rebuilds dependency graph once. Project configurations are
+ * written through {@link hudson.XmlFile}, which replaces files atomically.
+ * Outside of a batch, projects are saved immediately.
+ * 
+ * @author Julien Bouyoud
+ */
+final class JoinConfigSaver {
+	
+	/** Class Logger */
+	private static final Logger LOGGER = Logger
+	        .getLogger(JoinConfigSaver.class.getName());
+	
+	/** Batch of current thread */
+	private static final ThreadLocal<JoinConfigSaver> CURRENT = new ThreadLocal<JoinConfigSaver>();
+	
+	/** Projects to save, in change order */
+	private final Set<AbstractProject<?, ?>> projects = new LinkedHashSet<AbstractProject<?, ?>>();
+	/** Number of nested batches */
+	private int depth;
+	
+	/**
+	 * Utility class
+	 */
+	private JoinConfigSaver() {
+		// Nothing to do
+	}
+	
+	/**
+	 * Start a batch on current thread. Nested batches join outermost one.
+	 */
+	static void begin() {
+		JoinConfigSaver saver = CURRENT.get();
+		if (saver == null) {
+			saver = new JoinConfigSaver();
+			CURRENT.set(saver);
+		}
+		saver.depth++;
+	}
+	
+	/**
+	 * Save a project, once current batch ends if any
+	 * 
+	 * @param project
+	 *            changed project
+	 */
+	static void save(final AbstractProject<?, ?> project) {
+		if (project == null) {
+			throw new IllegalArgumentException("project == null");
+		}
+		final JoinConfigSaver saver = CURRENT.get();
+		if (saver != null) {
+			saver.projects.add(project);
+		} else {
+			write(project);
+		}
+	}
+	
+	/**
+	 * End a batch on current thread. Outermost batch saves all changed
+	 * projects, then rebuilds dependency graph if any project was saved.
+	 * 
+	 * @return number of saved projects
+	 */
+	static int end() {
+		final JoinConfigSaver saver = CURRENT.get();
+		if (saver == null) {
+			throw new IllegalStateException("No batch started");
+		}
+		if (--saver.depth > 0) {
+			return 0;
+		}
+		CURRENT.remove();
+		int saved = 0;
+		for (final AbstractProject<?, ?> project : saver.projects) {
+			if (write(project)) {
+				saved++;
+			}
+		}
+		if (!saver.projects.isEmpty()) {
+			Hudson.getInstance().rebuildDependencyGraph();
+		}
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.fine("Saved " + saved + " projects in one batch");
+		}
+		return saved;
+	}
+	
+	/**
+	 * Write configuration of a project
+	 * 
+	 * @param project
+	 *            project to save
+	 * @return <code>true</code> if project was saved, <code>false</code>
+	 *         else.
+	 */
+	private static boolean write(final AbstractProject<?, ?> project) {
+		try {
+			project.save();
+			return true;
+		} catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Failed to persist project setting of "
+			        + project.getFullName(), e);
+			return false;
+		}
+	}
+}
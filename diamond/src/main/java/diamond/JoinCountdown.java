@@ -0,0 +1,468 @@
+package diamond;
+
+import hudson.model.Result;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock-free countdown of pending projects of a {@link DiamondJoinAction}.
+ * <p>
+ * A countdown only tracks ids of a sorted array of projects, usually the
+ * downstream hierarchy of its master project, so that its state is sized to
+ * that hierarchy instead of to all projects. Each tracked project has a slot,
+ * ids of other projects are ignored.
+ * <p>
+ * Pending project slots are stored in an atomic bitset, each completion
+ * clears its bit, combines its result and decrements remaining count.
+ * Countdown switches once to joined state when no project is left.
+ * <p>
+ * Projects triggered by a completed upstream build are marked, so that
+ * pending projects that no upstream build can trigger anymore are pruned.
+ * <p>
+ * Running builds of each project are counted, so that a project with several
+ * concurrent builds in join hierarchy completes with its last build only.
+ * Projects with a queued build are tracked as well, so that a queued build
+ * removed from queue before it started can be detected.
+ * 
+ * @author Julien Bouyoud
+ */
+public final class JoinCountdown {
+	
+	/** Number of bits by word */
+	private static final int WORD_SIZE = 64;
+	
+	/** Queue state of a project without queued build */
+	private static final int NOT_QUEUED = 0;
+	/** Queue state of a project with a queued build */
+	private static final int QUEUED = 1;
+	/** Queue state of a project whose queued build was not found once */
+	private static final int MISSING = 2;
+	
+	/** Sorted ids of tracked projects, slot of a project is its index */
+	private final int[] projectIds;
+	/** Slots of pending projects */
+	private final AtomicLongArray pendingProjects;
+	/** Slots of projects triggered by a completed upstream build */
+	private final AtomicLongArray triggeredProjects;
+	/** Number of running builds by project slot */
+	private final AtomicIntegerArray runningBuilds;
+	/** Queue state by project slot */
+	private final AtomicIntegerArray queueStates;
+	/** Next build number of project seen at last queue check, by slot */
+	private final AtomicIntegerArray nextBuildNumbers;
+	/** Number of pending projects */
+	private final AtomicInteger remaining;
+	/** Combined result of completed projects */
+	private final AtomicReference<Result> result;
+	/** Flag indicates if countdown switched to joined state */
+	private final AtomicBoolean joined;
+	
+	/**
+	 * Create a new JoinCountdown that tracks all ids lower than size
+	 * 
+	 * @param pendingProjects
+	 *            ids of all projects to wait for
+	 * @param size
+	 *            number of project ids
+	 */
+	public JoinCountdown(final BitSet pendingProjects, final int size) {
+		this(range(size), pendingProjects, Result.SUCCESS);
+	}
+	
+	/**
+	 * Create a new JoinCountdown with a combined result of already completed
+	 * projects
+	 * 
+	 * @param projectIds
+	 *            sorted ids of all projects countdown may track, this array is
+	 *            shared and must not be modified
+	 * @param pendingProjects
+	 *            ids of all projects to wait for, untracked ids are ignored
+	 * @param result
+	 *            combined result of already completed projects
+	 */
+	public JoinCountdown(final int[] projectIds, final BitSet pendingProjects,
+	        final Result result) {
+		if (projectIds == null) {
+			throw new IllegalArgumentException("projectIds == null");
+		}
+		if (pendingProjects == null) {
+			throw new IllegalArgumentException("pendingProjects == null");
+		}
+		if (result == null) {
+			throw new IllegalArgumentException("result == null");
+		}
+		this.projectIds = projectIds;
+		this.pendingProjects = new AtomicLongArray(
+		        (projectIds.length + WORD_SIZE - 1) / WORD_SIZE);
+		triggeredProjects = new AtomicLongArray(this.pendingProjects.length());
+		runningBuilds = new AtomicIntegerArray(projectIds.length);
+		queueStates = new AtomicIntegerArray(projectIds.length);
+		nextBuildNumbers = new AtomicIntegerArray(projectIds.length);
+		int count = 0;
+		for (int slot = 0; slot < projectIds.length; slot++) {
+			if (pendingProjects.get(projectIds[slot])) {
+				this.pendingProjects.set(slot / WORD_SIZE,
+				        this.pendingProjects.get(slot / WORD_SIZE)
+				                | 1L << slot % WORD_SIZE);
+				count++;
+			}
+		}
+		remaining = new AtomicInteger(count);
+		this.result = new AtomicReference<Result>(result);
+		joined = new AtomicBoolean(false);
+	}
+	
+	/**
+	 * Return ids lower than size
+	 * 
+	 * @param size
+	 *            number of ids
+	 * @return sorted ids from 0 to size - 1
+	 */
+	private static int[] range(final int size) {
+		final int[] ids = new int[Math.max(size, 0)];
+		for (int id = 0; id < ids.length; id++) {
+			ids[id] = id;
+		}
+		return ids;
+	}
+	
+	/**
+	 * Return slot of a project
+	 * 
+	 * @param id
+	 *            project id
+	 * @return slot of project, <code>-1</code> if project is not tracked
+	 */
+	private int slot(final int id) {
+		if (id < 0) {
+			return -1;
+		}
+		final int slot = Arrays.binarySearch(projectIds, id);
+		return slot < 0 ? -1 : slot;
+	}
+	
+	/**
+	 * Add a project to wait for
+	 * 
+	 * @param id
+	 *            project id
+	 * @return <code>true</code> if project was added, <code>false</code> if it
+	 *         was already pending or project is not tracked.
+	 */
+	public boolean add(final int id) {
+		final int slot = slot(id);
+		if (slot < 0) {
+			return false;
+		}
+		final int word = slot / WORD_SIZE;
+		final long mask = 1L << slot % WORD_SIZE;
+		long bits;
+		do {
+			bits = pendingProjects.get(word);
+			if ((bits & mask) != 0) {
+				return false;
+			}
+		} while (!pendingProjects.compareAndSet(word, bits, bits | mask));
+		remaining.incrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Notify completion of a project
+	 * 
+	 * @param id
+	 *            project id
+	 * @param projectResult
+	 *            result of project build
+	 * @return <code>true</code> if project was pending, <code>false</code>
+	 *         else.
+	 */
+	public boolean complete(final int id, final Result projectResult) {
+		final int slot = slot(id);
+		if (slot < 0) {
+			return false;
+		}
+		final int word = slot / WORD_SIZE;
+		final long mask = 1L << slot % WORD_SIZE;
+		long bits;
+		do {
+			bits = pendingProjects.get(word);
+			if ((bits & mask) == 0) {
+				return false;
+			}
+		} while (!pendingProjects.compareAndSet(word, bits, bits & ~mask));
+		// Result must be combined before last project is counted down
+		combine(projectResult);
+		remaining.decrementAndGet();
+		return true;
+	}
+	
+	/**
+	 * Combine a build result without completing its project
+	 * 
+	 * @param projectResult
+	 *            result of project build, ignored if <code>null</code>
+	 */
+	public void combine(final Result projectResult) {
+		if (projectResult == null) {
+			return;
+		}
+		Result current;
+		do {
+			current = result.get();
+		} while (!result.compareAndSet(current, current.combine(projectResult)));
+	}
+	
+	/**
+	 * Notify start of a project build
+	 * 
+	 * @param id
+	 *            project id
+	 */
+	public void started(final int id) {
+		final int slot = slot(id);
+		if (slot < 0) {
+			return;
+		}
+		runningBuilds.incrementAndGet(slot);
+		queueStates.set(slot, NOT_QUEUED);
+	}
+	
+	/**
+	 * Return number of running builds of a project
+	 * 
+	 * @param id
+	 *            project id
+	 * @return number of running builds of project
+	 */
+	public int getRunning(final int id) {
+		final int slot = slot(id);
+		return slot < 0 ? 0 : runningBuilds.get(slot);
+	}
+	
+	/**
+	 * Notify a build of a project was scheduled
+	 * 
+	 * @param id
+	 *            project id
+	 * @param nextBuildNumber
+	 *            next build number of project when build was scheduled
+	 */
+	public void queued(final int id, final int nextBuildNumber) {
+		final int slot = slot(id);
+		if (slot < 0) {
+			return;
+		}
+		nextBuildNumbers.set(slot, nextBuildNumber);
+		queueStates.set(slot, QUEUED);
+	}
+	
+	/**
+	 * Return if a project has a queued build that did not start yet
+	 * 
+	 * @param id
+	 *            project id
+	 * @return <code>true</code> if project has a queued build,
+	 *         <code>false</code> else.
+	 */
+	public boolean isQueued(final int id) {
+		final int slot = slot(id);
+		return slot >= 0 && queueStates.get(slot) != NOT_QUEUED;
+	}
+	
+	/**
+	 * Notify queued build of a project was found in queue
+	 * 
+	 * @param id
+	 *            project id
+	 */
+	public void found(final int id) {
+		final int slot = slot(id);
+		if (slot < 0) {
+			return;
+		}
+		queueStates.compareAndSet(slot, MISSING, QUEUED);
+	}
+	
+	/**
+	 * Notify queued build of a project was not found in queue, and project is
+	 * not building. A build leaves queue a bit before it is started, so it is
+	 * only dropped if it is still missing at next check and no build of
+	 * project was created since previous check.
+	 * 
+	 * @param id
+	 *            project id
+	 * @param nextBuildNumber
+	 *            current next build number of project
+	 * @return <code>true</code> if queued build was already missing at
+	 *         previous check, <code>false</code> else.
+	 */
+	public boolean missing(final int id, final int nextBuildNumber) {
+		final int slot = slot(id);
+		if (slot < 0) {
+			return false;
+		}
+		if (nextBuildNumbers.getAndSet(slot, nextBuildNumber) != nextBuildNumber) {
+			// A build started since previous check, miss count restarts
+			queueStates.compareAndSet(slot, MISSING, QUEUED);
+			return false;
+		}
+		return !queueStates.compareAndSet(slot, QUEUED, MISSING)
+		        && queueStates.compareAndSet(slot, MISSING, NOT_QUEUED);
+	}
+	
+	/**
+	 * Notify end of a project build
+	 * 
+	 * @param id
+	 *            project id
+	 * @return number of builds of project still running
+	 */
+	public int finished(final int id) {
+		final int slot = slot(id);
+		if (slot < 0) {
+			return 0;
+		}
+		int running;
+		do {
+			running = runningBuilds.get(slot);
+			// Builds started before a restart were not counted
+			if (running == 0) {
+				return 0;
+			}
+		} while (!runningBuilds.compareAndSet(slot, running, running - 1));
+		return running - 1;
+	}
+	
+	/**
+	 * Return if a project is pending
+	 * 
+	 * @param id
+	 *            project id
+	 * @return <code>true</code> if project is pending, <code>false</code>
+	 *         else.
+	 */
+	public boolean isPending(final int id) {
+		final int slot = slot(id);
+		return slot >= 0
+		        && (pendingProjects.get(slot / WORD_SIZE) & 1L << slot
+		                % WORD_SIZE) != 0;
+	}
+	
+	/**
+	 * Mark a project as triggered by a completed upstream build. Must be
+	 * called before upstream project completion.
+	 * 
+	 * @param id
+	 *            project id
+	 */
+	public void markTriggered(final int id) {
+		final int slot = slot(id);
+		if (slot < 0) {
+			return;
+		}
+		final int word = slot / WORD_SIZE;
+		final long mask = 1L << slot % WORD_SIZE;
+		long bits;
+		do {
+			bits = triggeredProjects.get(word);
+			if ((bits & mask) != 0) {
+				return;
+			}
+		} while (!triggeredProjects.compareAndSet(word, bits, bits | mask));
+	}
+	
+	/**
+	 * Return if a project was triggered by a completed upstream build
+	 * 
+	 * @param id
+	 *            project id
+	 * @return <code>true</code> if project was triggered, <code>false</code>
+	 *         else.
+	 */
+	public boolean isTriggered(final int id) {
+		final int slot = slot(id);
+		return slot >= 0
+		        && (triggeredProjects.get(slot / WORD_SIZE) & 1L << slot
+		                % WORD_SIZE) != 0;
+	}
+	
+	/**
+	 * Switch to joined state if no project is left.
+	 * <p>
+	 * Only one caller can succeed, whatever number of concurrent completions.
+	 * 
+	 * @return <code>true</code> if this call switched countdown to joined
+	 *         state, <code>false</code> else.
+	 */
+	public boolean tryJoin() {
+		return remaining.get() == 0 && joined.compareAndSet(false, true);
+	}
+	
+	/**
+	 * Switch to joined state even if some projects are left, once outcome is
+	 * already decided.
+	 * <p>
+	 * Only one caller can succeed, including {@link #tryJoin()} callers.
+	 * 
+	 * @return <code>true</code> if this call switched countdown to joined
+	 *         state, <code>false</code> else.
+	 */
+	public boolean forceJoin() {
+		return joined.compareAndSet(false, true);
+	}
+	
+	/**
+	 * Return if countdown switched to joined state
+	 * 
+	 * @return <code>true</code> if countdown is joined, <code>false</code>
+	 *         else.
+	 */
+	public boolean isJoined() {
+		return joined.get();
+	}
+	
+	/**
+	 * Return number of pending projects
+	 * 
+	 * @return number of pending projects
+	 */
+	public int getRemaining() {
+		return remaining.get();
+	}
+	
+	/**
+	 * Return combined result of all completed projects
+	 * 
+	 * @return combined result of all completed projects
+	 */
+	public Result getResult() {
+		return result.get();
+	}
+	
+	/**
+	 * Return a copy of pending project ids
+	 * 
+	 * @return ids of all pending projects
+	 */
+	public BitSet getPendingProjects() {
+		final BitSet projects = new BitSet();
+		for (int word = 0; word < pendingProjects.length(); word++) {
+			final long bits = pendingProjects.get(word);
+			for (int bit = 0; bit < WORD_SIZE; bit++) {
+				if ((bits & 1L << bit) != 0) {
+					projects.set(projectIds[word * WORD_SIZE + bit]);
+				}
+			}
+		}
+		return projects;
+	}
+}
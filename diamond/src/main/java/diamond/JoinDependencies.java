@@ -0,0 +1,295 @@
+package diamond;
+
+import hudson.model.DependencyGraph;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import diamond.util.TriggerGraph;
+
+/**
+ * Join relationships declared by all {@link DiamondJoinTrigger} for one
+ * Hudson dependency graph.
+ * <p>
+ * Each master project is stored once with the set of projects it joins,
+ * whatever number of {@link UnionDependency} were actually added to the
+ * dependency graph. This allows to query join relationships even when
+ * {@link DiamondJoinTrigger.DescriptorImpl#isCompactJoinDependencies()} is
+ * enabled.
+ * 
+ * @author Julien Bouyoud
+ */
+public final class JoinDependencies {
+	
+	/** Join relationships of last built dependency graph */
+	private static volatile JoinDependencies current = new JoinDependencies(
+	        null);
+	
+	/** Dependency graph where relationships are declared */
+	private final DependencyGraph graph;
+	/** Join relationships by master project */
+	private final Map<AbstractProject<?, ?>, MasterJoin> masterJoins = new ConcurrentHashMap<AbstractProject<?, ?>, MasterJoin>();
+	
+	/**
+	 * Create new empty JoinDependencies
+	 * 
+	 * @param graph
+	 *            dependency graph where relationships are declared
+	 */
+	private JoinDependencies(final DependencyGraph graph) {
+		this.graph = graph;
+	}
+	
+	/**
+	 * Return join relationships of current Hudson dependency graph
+	 * 
+	 * @return join relationships of current Hudson dependency graph
+	 */
+	public static JoinDependencies get() {
+		final JoinDependencies joinDependencies = current;
+		final Hudson hudson = Hudson.getInstance();
+		if (hudson != null && joinDependencies.graph != null
+		        && joinDependencies.graph != hudson.getDependencyGraph()
+		        && hudson.getDependencyGraph() != null) {
+			// Graph was rebuilt and no diamond join was declared
+			return new JoinDependencies(hudson.getDependencyGraph());
+		}
+		return joinDependencies;
+	}
+	
+	/**
+	 * Return join relationships of a dependency graph under construction
+	 * 
+	 * @param graph
+	 *            dependency graph under construction
+	 * @return join relationships of graph
+	 */
+	static JoinDependencies forGraph(final DependencyGraph graph) {
+		if (graph == null) {
+			throw new IllegalArgumentException("graph == null");
+		}
+		JoinDependencies joinDependencies = current;
+		if (joinDependencies.graph != graph) {
+			synchronized (JoinDependencies.class) {
+				joinDependencies = current;
+				if (joinDependencies.graph != graph) {
+					joinDependencies = new JoinDependencies(graph);
+					current = joinDependencies;
+				}
+			}
+		}
+		return joinDependencies;
+	}
+	
+	/**
+	 * Declare join relationships of a master project
+	 * 
+	 * @param masterProject
+	 *            project that contains {@link DiamondJoinTrigger}
+	 * @param triggerGraph
+	 *            trigger graph snapshot where ids are defined
+	 * @param joinedProjects
+	 *            ids of all projects that must be completed before join
+	 * @param joinProjects
+	 *            ids of all join projects
+	 */
+	void add(final AbstractProject<?, ?> masterProject,
+	        final TriggerGraph triggerGraph, final BitSet joinedProjects,
+	        final int[] joinProjects) {
+		if (masterProject == null) {
+			throw new IllegalArgumentException("masterProject == null");
+		}
+		if (triggerGraph == null) {
+			throw new IllegalArgumentException("triggerGraph == null");
+		}
+		if (joinedProjects == null) {
+			throw new IllegalArgumentException("joinedProjects == null");
+		}
+		if (joinProjects == null) {
+			throw new IllegalArgumentException("joinProjects == null");
+		}
+		masterJoins.put(masterProject, new MasterJoin(triggerGraph,
+		        joinedProjects, joinProjects));
+	}
+	
+	/**
+	 * Return all master projects that join to a project
+	 * 
+	 * @param joinProject
+	 *            a join project
+	 * @return list of all master projects that contains a
+	 *         {@link DiamondJoinTrigger} to joinProject
+	 */
+	public List<AbstractProject<?, ?>> getMasterProjects(
+	        final AbstractProject<?, ?> joinProject) {
+		if (joinProject == null) {
+			throw new IllegalArgumentException("joinProject == null");
+		}
+		final List<AbstractProject<?, ?>> masterProjects = new ArrayList<AbstractProject<?, ?>>();
+		for (final Map.Entry<AbstractProject<?, ?>, MasterJoin> entry : masterJoins
+		        .entrySet()) {
+			if (entry.getValue().isJoinProject(joinProject)) {
+				masterProjects.add(entry.getKey());
+			}
+		}
+		return masterProjects;
+	}
+	
+	/**
+	 * Return all projects that must be completed before a join project is
+	 * triggered, as if one {@link UnionDependency} was declared for each
+	 * joined project.
+	 * 
+	 * @param joinProject
+	 *            a join project
+	 * @return list of all joined projects
+	 */
+	public List<AbstractProject<?, ?>> getUpstreamProjects(
+	        final AbstractProject<?, ?> joinProject) {
+		if (joinProject == null) {
+			throw new IllegalArgumentException("joinProject == null");
+		}
+		final List<AbstractProject<?, ?>> upstreamProjects = new ArrayList<AbstractProject<?, ?>>();
+		for (final MasterJoin masterJoin : masterJoins.values()) {
+			if (masterJoin.isJoinProject(joinProject)) {
+				for (final AbstractProject<?, ?> project : masterJoin
+				        .getJoinedProjects()) {
+					if (!upstreamProjects.contains(project)) {
+						upstreamProjects.add(project);
+					}
+				}
+			}
+		}
+		return upstreamProjects;
+	}
+	
+	/**
+	 * Return all projects joined by a master project
+	 * 
+	 * @param masterProject
+	 *            project that contains {@link DiamondJoinTrigger}
+	 * @return list of all joined projects, empty if masterProject doesn't
+	 *         contains any {@link DiamondJoinTrigger}
+	 */
+	public List<AbstractProject<?, ?>> getJoinedProjects(
+	        final AbstractProject<?, ?> masterProject) {
+		if (masterProject == null) {
+			throw new IllegalArgumentException("masterProject == null");
+		}
+		final MasterJoin masterJoin = masterJoins.get(masterProject);
+		if (masterJoin == null) {
+			return Collections.emptyList();
+		}
+		return masterJoin.getJoinedProjects();
+	}
+	
+	/**
+	 * Return if a project must be completed before a join project is
+	 * triggered
+	 * 
+	 * @param project
+	 *            a project
+	 * @param joinProject
+	 *            a join project
+	 * @return <code>true</code> if any {@link DiamondJoinTrigger} joins
+	 *         project to joinProject, <code>false</code> else.
+	 */
+	public boolean isJoined(final AbstractProject<?, ?> project,
+	        final AbstractProject<?, ?> joinProject) {
+		if (project == null) {
+			throw new IllegalArgumentException("project == null");
+		}
+		if (joinProject == null) {
+			throw new IllegalArgumentException("joinProject == null");
+		}
+		for (final MasterJoin masterJoin : masterJoins.values()) {
+			if (masterJoin.isJoinProject(joinProject)
+			        && masterJoin.isJoinedProject(project)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Join relationships of one master project.
+	 */
+	private static final class MasterJoin {
+		
+		/** Trigger graph snapshot where ids are defined */
+		private final TriggerGraph triggerGraph;
+		/** Ids of all projects that must be completed before join */
+		private final BitSet joinedProjects;
+		/** Ids of all join projects */
+		private final int[] joinProjects;
+		
+		/**
+		 * Create a new MasterJoin
+		 * 
+		 * @param triggerGraph
+		 *            trigger graph snapshot where ids are defined
+		 * @param joinedProjects
+		 *            ids of all projects that must be completed before join
+		 * @param joinProjects
+		 *            ids of all join projects
+		 */
+		MasterJoin(final TriggerGraph triggerGraph,
+		        final BitSet joinedProjects, final int[] joinProjects) {
+			this.triggerGraph = triggerGraph;
+			this.joinedProjects = joinedProjects;
+			this.joinProjects = joinProjects;
+		}
+		
+		/**
+		 * Return if a project is a join project
+		 * 
+		 * @param project
+		 *            project to search
+		 * @return <code>true</code> if project is a join project,
+		 *         <code>false</code> else.
+		 */
+		boolean isJoinProject(final AbstractProject<?, ?> project) {
+			final int id = triggerGraph.getId(project);
+			for (final int joinProjectId : joinProjects) {
+				if (joinProjectId == id) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Return if a project must be completed before join
+		 * 
+		 * @param project
+		 *            project to search
+		 * @return <code>true</code> if project is joined, <code>false</code>
+		 *         else.
+		 */
+		boolean isJoinedProject(final AbstractProject<?, ?> project) {
+			final int id = triggerGraph.getId(project);
+			return id >= 0 && joinedProjects.get(id);
+		}
+		
+		/**
+		 * Return all projects that must be completed before join
+		 * 
+		 * @return list of all joined projects
+		 */
+		List<AbstractProject<?, ?>> getJoinedProjects() {
+			final List<AbstractProject<?, ?>> projects = new ArrayList<AbstractProject<?, ?>>(
+			        joinedProjects.cardinality());
+			for (int id = joinedProjects.nextSetBit(0); id >= 0; id = joinedProjects
+			        .nextSetBit(id + 1)) {
+				projects.add(triggerGraph.getProject(id));
+			}
+			return projects;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+package diamond;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded dispatcher that runs join tasks (join projects scheduling and
+ * post-join actions) outside of {@link DiamondRunListener} threads.
+ * <p>
+ * Each join is dispatched as a single task, so that its join projects are
+ * always scheduled before its post-join actions run in configuration order.
+ * When dispatcher queue is full or dispatcher is shut down, task runs on
+ * caller thread.
+ * 
+ * @author Julien Bouyoud
+ */
+public final class JoinDispatcher {
+	
+	/** Class Logger */
+	private static final Logger LOGGER = Logger.getLogger(JoinDispatcher.class
+	        .getName());
+	
+	/** Number of dispatcher threads */
+	private static final int POOL_SIZE = Integer.getInteger(
+	        JoinDispatcher.class.getName() + ".poolSize", 4).intValue();
+	/** Maximum number of queued join tasks */
+	private static final int QUEUE_CAPACITY = Integer.getInteger(
+	        JoinDispatcher.class.getName() + ".queueCapacity", 1000).intValue();
+	
+	/** Number of dispatched tasks */
+	private static final AtomicLong SUBMITTED = new AtomicLong();
+	/** Number of completed tasks */
+	private static final AtomicLong COMPLETED = new AtomicLong();
+	/** Number of tasks that threw an exception */
+	private static final AtomicLong FAILED = new AtomicLong();
+	/** Number of tasks that ran on caller thread */
+	private static final AtomicLong CALLER_RUNS = new AtomicLong();
+	/** Number of dispatched tasks not yet completed */
+	private static final AtomicInteger PENDING = new AtomicInteger();
+	/** Lock notified when no task is pending */
+	private static final Object IDLE_LOCK = new Object();
+	
+	/** Dispatcher threads, guarded by class, <code>null</code> if not started */
+	private static ThreadPoolExecutor executor;
+	/** Flag indicates if dispatcher is shut down, guarded by class */
+	private static boolean stopped;
+	
+	/**
+	 * Utility class
+	 */
+	private JoinDispatcher() {
+		// Nothing to do
+	}
+	
+	/**
+	 * Return dispatcher threads, start them if needed
+	 * 
+	 * @return dispatcher threads, <code>null</code> if dispatcher is shut
+	 *         down
+	 */
+	private static synchronized ThreadPoolExecutor getExecutor() {
+		if (stopped) {
+			return null;
+		}
+		if (executor == null) {
+			executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60L,
+			        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(
+			                QUEUE_CAPACITY), new DispatcherThreadFactory());
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+	
+	/**
+	 * Dispatch a join task
+	 * 
+	 * @param name
+	 *            task name, used for logs
+	 * @param task
+	 *            task to run
+	 */
+	public static void dispatch(final String name, final Runnable task) {
+		if (name == null) {
+			throw new IllegalArgumentException("name == null");
+		}
+		if (task == null) {
+			throw new IllegalArgumentException("task == null");
+		}
+		SUBMITTED.incrementAndGet();
+		PENDING.incrementAndGet();
+		final Runnable trackedTask = new TrackedTask(name, task);
+		final ThreadPoolExecutor dispatcherExecutor = getExecutor();
+		if (dispatcherExecutor == null) {
+			// No new daemon thread once Hudson is stopping
+			CALLER_RUNS.incrementAndGet();
+			trackedTask.run();
+			return;
+		}
+		try {
+			dispatcherExecutor.execute(trackedTask);
+		} catch (final RejectedExecutionException e) {
+			// Queue is full or dispatcher is stopping
+			CALLER_RUNS.incrementAndGet();
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Join dispatcher rejected " + name
+				        + ", running it on caller thread");
+			}
+			trackedTask.run();
+		}
+	}
+	
+	/**
+	 * Wait until no dispatched task is pending
+	 * 
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 * @return <code>true</code> if no task is pending, <code>false</code> if
+	 *         timeout elapsed
+	 * @throws InterruptedException
+	 *             if current thread is interrupted
+	 */
+	public static boolean awaitIdle(final long timeout)
+	        throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeout;
+		synchronized (IDLE_LOCK) {
+			while (PENDING.get() > 0) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				IDLE_LOCK.wait(remaining);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Allow dispatcher threads to start again after a shutdown
+	 */
+	public static synchronized void start() {
+		stopped = false;
+	}
+	
+	/**
+	 * Stop dispatcher threads, waiting for queued tasks completion. Tasks
+	 * dispatched afterwards run on caller thread until {@link #start()}. Tasks
+	 * still queued after timeout are dropped, their joins stay in
+	 * {@link JoinJournal} and are fired again by recovery at next start.
+	 * 
+	 * @param timeout
+	 *            maximum time to wait in milliseconds
+	 */
+	public static void shutdown(final long timeout) {
+		final ThreadPoolExecutor stoppedExecutor;
+		synchronized (JoinDispatcher.class) {
+			stoppedExecutor = executor;
+			executor = null;
+			stopped = true;
+		}
+		if (stoppedExecutor == null) {
+			return;
+		}
+		stoppedExecutor.shutdown();
+		try {
+			if (!stoppedExecutor.awaitTermination(timeout,
+			        TimeUnit.MILLISECONDS)) {
+				logDropped(stoppedExecutor.shutdownNow().size());
+			}
+		} catch (final InterruptedException e) {
+			logDropped(stoppedExecutor.shutdownNow().size());
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Log join tasks dropped by {@link #shutdown(long)}
+	 * 
+	 * @param dropped
+	 *            number of dropped queued tasks
+	 */
+	private static void logDropped(final int dropped) {
+		LOGGER.warning("Join dispatcher stopped, " + dropped
+		        + " queued join tasks dropped,"
+		        + " joins recovery will fire them again at next start");
+	}
+	
+	/**
+	 * Return number of dispatcher threads
+	 * 
+	 * @return number of dispatcher threads
+	 */
+	public static int getPoolSize() {
+		return POOL_SIZE;
+	}
+	
+	/**
+	 * Return number of tasks being run by dispatcher threads
+	 * 
+	 * @return number of running tasks
+	 */
+	public static synchronized int getActiveCount() {
+		return executor == null ? 0 : executor.getActiveCount();
+	}
+	
+	/**
+	 * Return number of tasks waiting for a dispatcher thread
+	 * 
+	 * @return number of queued tasks
+	 */
+	public static synchronized int getQueuedCount() {
+		return executor == null ? 0 : executor.getQueue().size();
+	}
+	
+	/**
+	 * Return number of dispatched tasks not yet completed
+	 * 
+	 * @return number of pending tasks
+	 */
+	public static int getPendingCount() {
+		return PENDING.get();
+	}
+	
+	/**
+	 * Return number of dispatched tasks
+	 * 
+	 * @return number of dispatched tasks
+	 */
+	public static long getSubmittedCount() {
+		return SUBMITTED.get();
+	}
+	
+	/**
+	 * Return number of completed tasks
+	 * 
+	 * @return number of completed tasks
+	 */
+	public static long getCompletedCount() {
+		return COMPLETED.get();
+	}
+	
+	/**
+	 * Return number of tasks that threw an exception
+	 * 
+	 * @return number of failed tasks
+	 */
+	public static long getFailedCount() {
+		return FAILED.get();
+	}
+	
+	/**
+	 * Return number of tasks that ran on caller thread
+	 * 
+	 * @return number of tasks that ran on caller thread
+	 */
+	public static long getCallerRunsCount() {
+		return CALLER_RUNS.get();
+	}
+	
+	/**
+	 * Task wrapper that maintains dispatcher counters.
+	 */
+	private static final class TrackedTask implements Runnable {
+		
+		/** Task name */
+		private final String name;
+		/** Wrapped task */
+		private final Runnable task;
+		
+		/**
+		 * Create a new TrackedTask
+		 * 
+		 * @param name
+		 *            task name
+		 * @param task
+		 *            wrapped task
+		 */
+		TrackedTask(final String name, final Runnable task) {
+			this.name = name;
+			this.task = task;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} catch (final RuntimeException e) {
+				FAILED.incrementAndGet();
+				LOGGER.log(Level.WARNING, "Join task " + name + " failed", e);
+			} finally {
+				COMPLETED.incrementAndGet();
+				if (PENDING.decrementAndGet() == 0) {
+					synchronized (IDLE_LOCK) {
+						IDLE_LOCK.notifyAll();
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Factory of daemon dispatcher threads.
+	 */
+	private static final class DispatcherThreadFactory implements
+	        ThreadFactory {
+		
+		/** Number of created threads */
+		private final AtomicInteger threadCount = new AtomicInteger();
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable,
+			        "Diamond join dispatcher #"
+			                + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,957 @@
+package diamond;
+
+import hudson.model.Result;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.util.AtomicFileWriter;
+import hudson.util.LogTaskListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable append-only journal of active {@link DiamondJoinAction} state.
+ * <p>
+ * {@link DiamondJoinAction} state is transient, so each transition of an
+ * active join is appended to a journal file under Hudson root directory : join
+ * created (with its whole state), project waited for, branch completed (with
+ * its result, combined on replay), branch pruned and join done. Journal is
+ * compacted into a snapshot of active joins only once enough records were
+ * appended, so that replay at startup is bounded by the number of active
+ * joins rather than by build history.
+ * <p>
+ * Recording a transition only updates in-memory state and queues its record.
+ * A single writer thread appends queued records in batches, one flush per
+ * batch, and compacts journal between batches, so that build threads never
+ * wait for disk.
+ * <p>
+ * Replaying a journal over a snapshot that already contains some of its
+ * records gives same state, so a crash during compaction loses nothing.
+ * 
+ * @author Julien Bouyoud
+ */
+public final class JoinJournal {
+	
+	/** Class Logger */
+	private static final Logger LOGGER = Logger.getLogger(JoinJournal.class
+	        .getName());
+	
+	/** Name of journal file in Hudson root directory */
+	static final String JOURNAL_FILE = "diamond-joins.journal";
+	/** Name of snapshot file in Hudson root directory */
+	static final String SNAPSHOT_FILE = "diamond-joins.snapshot";
+	
+	/** Number of appended records that triggers a compaction */
+	private static final int COMPACTION_THRESHOLD = Integer.getInteger(
+	        JoinJournal.class.getName() + ".compactionThreshold", 1000)
+	        .intValue();
+	
+	/** Encoding of journal files */
+	private static final String ENCODING = "UTF-8";
+	/** Fields separator */
+	private static final char FIELD_SEPARATOR = ' ';
+	/** Values separator in multi-valued fields */
+	private static final char VALUE_SEPARATOR = ',';
+	/** Time an idle writer thread waits for records before it stops */
+	private static final long WRITER_IDLE_TIMEOUT = 60 * 1000L;
+	/** Maximum time to wait for queued records to be written */
+	private static final long FLUSH_TIMEOUT = Long.getLong(
+	        JoinJournal.class.getName() + ".flushTimeout", 30 * 1000L)
+	        .longValue();
+	
+	/** Join created, or whole join state in snapshot */
+	private static final String CREATED = "C";
+	/** Project added to a join pending projects */
+	private static final String WAITING = "W";
+	/** Branch build completed */
+	private static final String BRANCH_COMPLETED = "B";
+	/** Branch that will never be triggered */
+	private static final String PRUNED = "P";
+	/** Join done */
+	private static final String JOINED = "J";
+	
+	/** Journal of current Hudson, replaced under class lock */
+	private static volatile JoinJournal instance;
+	
+	/** Journal directory */
+	private final File directory;
+	/** Journal file */
+	private final File journalFile;
+	/** Snapshot file */
+	private final File snapshotFile;
+	/** Active joins state by join key, in creation order, guarded by this */
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	/** Journal lines not written yet, in record order */
+	private final BlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+	/** Lock of journal files, taken before this */
+	private final Object fileLock = new Object();
+	/** Number of queued lines, guarded by this */
+	private long queuedCount;
+	/** Writer thread, guarded by this, <code>null</code> if not running */
+	private Thread writer;
+	/** Journal file stream, <code>null</code> if closed, guarded by fileLock */
+	private OutputStream out;
+	/** Records appended since last compaction, guarded by fileLock */
+	private int appended;
+	/** Number of written lines, guarded by fileLock */
+	private long writtenCount;
+	
+	/**
+	 * Create a new JoinJournal
+	 * 
+	 * @param directory
+	 *            directory of journal files
+	 */
+	JoinJournal(final File directory) {
+		if (directory == null) {
+			throw new IllegalArgumentException("directory == null");
+		}
+		this.directory = directory;
+		journalFile = new File(directory, JOURNAL_FILE);
+		snapshotFile = new File(directory, SNAPSHOT_FILE);
+	}
+	
+	/**
+	 * Return journal of current Hudson
+	 * 
+	 * @return journal of current Hudson
+	 */
+	public static JoinJournal get() {
+		final File rootDir = Hudson.getInstance().getRootDir();
+		final JoinJournal journal = instance;
+		if (journal != null && journal.directory.equals(rootDir)) {
+			return journal;
+		}
+		synchronized (JoinJournal.class) {
+			if (instance == null || !instance.directory.equals(rootDir)) {
+				if (instance != null) {
+					instance.close();
+				}
+				final JoinJournal loadedJournal = new JoinJournal(rootDir);
+				loadedJournal.load();
+				instance = loadedJournal;
+			}
+			return instance;
+		}
+	}
+	
+	/**
+	 * Close journal of current Hudson, compacting it
+	 */
+	public static synchronized void shutdown() {
+		if (instance != null) {
+			instance.compact();
+			instance.close();
+			instance = null;
+		}
+	}
+	
+	/**
+	 * Restore all active joins of journal. Joins whose build or trigger no
+	 * longer exist are dropped, pending projects with no live build are
+	 * settled, joins with no pending project left are fired.
+	 */
+	@SuppressWarnings("unchecked")
+	public static void recover() {
+		final JoinJournal journal = get();
+		final Hudson hudson = Hudson.getInstance();
+		final Set<String> activeKeys = new LinkedHashSet<String>();
+		for (final DiamondJoinAction joinAction : DiamondJoinRegistry
+		        .getActiveJoinActions()) {
+			activeKeys.add(joinAction.getFingerprint());
+		}
+		int recovered = 0;
+		for (final Entry entry : journal.getEntries()) {
+			// Configuration reload, join is still active
+			if (activeKeys.contains(entry.getKey())) {
+				continue;
+			}
+			final AbstractProject<?, ?> triggerProject = hudson
+			        .getItemByFullName(entry.getTriggerProject(),
+			                AbstractProject.class);
+			final AbstractProject<?, ?> masterProject = hudson
+			        .getItemByFullName(entry.getMasterProject(),
+			                AbstractProject.class);
+			final DiamondJoinTrigger diamondTrigger = triggerProject == null ? null
+			        : triggerProject.getPublishersList().get(
+			                DiamondJoinTrigger.class);
+			final AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>> masterBuild = masterProject == null ? null
+			        : (AbstractBuild<? extends AbstractProject<?, ?>, ? extends AbstractBuild<?, ?>>) masterProject
+			                .getBuildByNumber(entry.getBuildNumber());
+			if (diamondTrigger == null || masterBuild == null) {
+				LOGGER.warning("Unable to recover join of "
+				        + DiamondJoinRegistry.getBuildKey(
+				                entry.getMasterProject(),
+				                entry.getBuildNumber()) + " to "
+				        + entry.getTriggerProject() + ", dropping it");
+				journal.joined(entry.getKey());
+				continue;
+			}
+			final DiamondJoinAction joinAction = new DiamondJoinAction(
+			        masterBuild, triggerProject, diamondTrigger,
+			        entry.getPendingProjects(), entry.getResult(),
+			        entry.getStartTime());
+			if (!joinAction.getFingerprint().equals(entry.getKey())) {
+				// Trigger configuration changed, join key changed too
+				journal.joined(entry.getKey());
+			}
+			DiamondJoinRegistry.restore(masterBuild, joinAction,
+			        entry.getBuildKeys());
+			joinAction.resume(new LogTaskListener(LOGGER, Level.INFO));
+			recovered++;
+		}
+		journal.compact();
+		if (recovered > 0) {
+			LOGGER.info("Recovered " + recovered + " active diamond joins");
+		}
+	}
+	
+	/**
+	 * Record a join creation, or replace whole join state
+	 * 
+	 * @param entry
+	 *            join state
+	 */
+	void created(final Entry entry) {
+		if (entry == null) {
+			throw new IllegalArgumentException("entry == null");
+		}
+		final String line = format(entry.toRecord());
+		synchronized (this) {
+			apply(entry);
+			enqueue(line);
+		}
+	}
+	
+	/**
+	 * Record a project added to join pending projects
+	 * 
+	 * @param key
+	 *            join key
+	 * @param project
+	 *            full name of project
+	 */
+	synchronized void waiting(final String key, final String project) {
+		if (entries.containsKey(key)) {
+			entries.get(key).pendingProjects.add(project);
+			enqueue(format(new String[] { WAITING, key, project }));
+		}
+	}
+	
+	/**
+	 * Record a branch build completion
+	 * 
+	 * @param key
+	 *            join key
+	 * @param project
+	 *            full name of build project
+	 * @param buildKey
+	 *            key of completed build
+	 * @param result
+	 *            result of completed build, may be <code>null</code>
+	 */
+	synchronized void branchCompleted(final String key, final String project,
+	        final String buildKey, final Result result) {
+		if (entries.containsKey(key)) {
+			entries.get(key).complete(project, buildKey, result);
+			enqueue(format(new String[] { BRANCH_COMPLETED, key, project,
+			        buildKey, result == null ? "" : result.toString() }));
+		}
+	}
+	
+	/**
+	 * Record a branch that will never be triggered
+	 * 
+	 * @param key
+	 *            join key
+	 * @param project
+	 *            full name of pruned project
+	 */
+	synchronized void pruned(final String key, final String project) {
+		if (entries.containsKey(key)) {
+			entries.get(key).pendingProjects.remove(project);
+			enqueue(format(new String[] { PRUNED, key, project }));
+		}
+	}
+	
+	/**
+	 * Record a join done, or dropped
+	 * 
+	 * @param key
+	 *            join key
+	 */
+	synchronized void joined(final String key) {
+		if (entries.remove(key) != null) {
+			enqueue(format(new String[] { JOINED, key }));
+		}
+	}
+	
+	/**
+	 * Return state of all active joins
+	 * 
+	 * @return state of all active joins, in creation order
+	 */
+	synchronized List<Entry> getEntries() {
+		final List<Entry> activeEntries = new ArrayList<Entry>(entries.size());
+		for (final Entry entry : entries.values()) {
+			activeEntries.add(entry.copy());
+		}
+		return activeEntries;
+	}
+	
+	/**
+	 * Load snapshot then journal records
+	 */
+	void load() {
+		synchronized (fileLock) {
+			synchronized (this) {
+				entries.clear();
+				read(snapshotFile);
+				appended = read(journalFile);
+			}
+		}
+	}
+	
+	/**
+	 * Write state of all active joins to snapshot, then truncate journal.
+	 * <p>
+	 * Records queued but not written yet are already applied to snapshot
+	 * state, they are appended to truncated journal and replaying them again
+	 * gives same state.
+	 */
+	void compact() {
+		synchronized (fileLock) {
+			final List<String> snapshotLines;
+			synchronized (this) {
+				snapshotLines = new ArrayList<String>(entries.size());
+				for (final Entry entry : entries.values()) {
+					snapshotLines.add(format(entry.toRecord()));
+				}
+			}
+			try {
+				final AtomicFileWriter writer = new AtomicFileWriter(
+				        snapshotFile);
+				try {
+					for (final String line : snapshotLines) {
+						writer.write(line);
+					}
+					writer.commit();
+				} finally {
+					writer.abort();
+				}
+				closeStream();
+				// Snapshot contains all written records
+				new FileOutputStream(journalFile).close();
+				appended = 0;
+			} catch (final IOException e) {
+				LOGGER.log(Level.WARNING,
+				        "Unable to compact diamond join journal", e);
+			}
+		}
+	}
+	
+	/**
+	 * Wait until all queued records are written, or until flush timeout
+	 * elapsed. A writer thread that stopped meanwhile is started again.
+	 * 
+	 * @return <code>true</code> if all queued records are written,
+	 *         <code>false</code> if timeout elapsed before
+	 * @throws InterruptedException
+	 *             if current thread is interrupted
+	 */
+	boolean flush() throws InterruptedException {
+		final long target;
+		synchronized (this) {
+			target = queuedCount;
+		}
+		final long deadline = System.currentTimeMillis() + FLUSH_TIMEOUT;
+		while (true) {
+			synchronized (this) {
+				if (!lines.isEmpty()) {
+					startWriter();
+				}
+			}
+			synchronized (fileLock) {
+				final long remaining = deadline - System.currentTimeMillis();
+				if (writtenCount >= target) {
+					return true;
+				}
+				if (remaining <= 0) {
+					return false;
+				}
+				// Wake up regularly to restart a failed writer
+				fileLock.wait(Math.min(remaining, 1000L));
+			}
+		}
+	}
+	
+	/**
+	 * Write all queued records, then close journal file
+	 */
+	void close() {
+		try {
+			if (!flush()) {
+				LOGGER.warning("Diamond join journal closed with "
+				        + lines.size() + " records not written");
+			}
+		} catch (final InterruptedException e) {
+			LOGGER.warning("Diamond join journal closed with " + lines.size()
+			        + " records not written");
+			Thread.currentThread().interrupt();
+		}
+		synchronized (fileLock) {
+			closeStream();
+		}
+	}
+	
+	/**
+	 * Close journal file stream, fileLock must be held
+	 */
+	private void closeStream() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (final IOException e) {
+				LOGGER.log(Level.FINE, "Unable to close diamond join journal",
+				        e);
+			}
+			out = null;
+		}
+	}
+	
+	/**
+	 * Queue a journal line, this must be held. Record must already be applied
+	 * to active joins state.
+	 * 
+	 * @param line
+	 *            journal line
+	 */
+	private void enqueue(final String line) {
+		lines.add(line);
+		queuedCount++;
+		if (writer == null) {
+			startWriter();
+		}
+	}
+	
+	/**
+	 * Start writer thread, this must be held
+	 */
+	private void startWriter() {
+		if (writer == null) {
+			writer = new Thread(new Writer(), "Diamond join journal writer");
+			writer.setDaemon(true);
+			writer.start();
+		}
+	}
+	
+	/**
+	 * Append a batch of lines to journal, then compact journal if needed
+	 * 
+	 * @param batch
+	 *            journal lines, in record order
+	 */
+	private void write(final List<String> batch) {
+		final boolean compaction;
+		synchronized (fileLock) {
+			try {
+				if (out == null) {
+					out = new FileOutputStream(journalFile, true);
+				}
+				for (final String line : batch) {
+					out.write(line.getBytes(ENCODING));
+				}
+				out.flush();
+			} catch (final IOException e) {
+				LOGGER.log(Level.WARNING,
+				        "Unable to write diamond join journal", e);
+			} finally {
+				// Flushing threads never wait for a failed batch
+				appended += batch.size();
+				writtenCount += batch.size();
+				fileLock.notifyAll();
+			}
+			synchronized (this) {
+				compaction = appended >= COMPACTION_THRESHOLD
+				        && appended >= 2 * entries.size();
+			}
+		}
+		if (compaction) {
+			compact();
+		}
+	}
+	
+	/**
+	 * Read records of a file
+	 * 
+	 * @param file
+	 *            snapshot or journal file
+	 * @return number of read records
+	 */
+	private int read(final File file) {
+		int records = 0;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+			        new FileInputStream(file), ENCODING));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (replay(fromLine(line))) {
+					records++;
+				} else if (LOGGER.isLoggable(Level.FINE)) {
+					// Last record may be truncated by a crash
+					LOGGER.fine("Ignoring diamond join journal record '"
+					        + line + "'");
+				}
+			}
+		} catch (final FileNotFoundException e) {
+			// Nothing recorded yet
+		} catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to read " + file, e);
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (final IOException e) {
+					LOGGER.log(Level.FINE, "Unable to close " + file, e);
+				}
+			}
+		}
+		return records;
+	}
+	
+	/**
+	 * Replay a record
+	 * 
+	 * @param record
+	 *            record fields
+	 * @return <code>true</code> if record is valid, <code>false</code> else
+	 */
+	private boolean replay(final String[] record) {
+		if (record.length < 2) {
+			return false;
+		}
+		final String type = record[0];
+		final Entry entry = entries.get(record[1]);
+		if (CREATED.equals(type)) {
+			final Entry createdEntry = Entry.fromRecord(record);
+			if (createdEntry == null) {
+				return false;
+			}
+			apply(createdEntry);
+		} else if (WAITING.equals(type) && record.length == 3) {
+			if (entry != null) {
+				entry.pendingProjects.add(record[2]);
+			}
+		} else if (BRANCH_COMPLETED.equals(type) && record.length == 5) {
+			if (entry != null) {
+				entry.complete(record[2], record[3], record[4].length() == 0 ? null
+				        : Result.fromString(record[4]));
+			}
+		} else if (PRUNED.equals(type) && record.length == 3) {
+			if (entry != null) {
+				entry.pendingProjects.remove(record[2]);
+			}
+		} else if (JOINED.equals(type) && record.length == 2) {
+			entries.remove(record[1]);
+		} else {
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Replace state of a join
+	 * 
+	 * @param entry
+	 *            join state
+	 */
+	private void apply(final Entry entry) {
+		entries.put(entry.getKey(), entry.copy());
+	}
+	
+	/**
+	 * Format a record as a journal line
+	 * 
+	 * @param record
+	 *            record fields
+	 * @return journal line
+	 */
+	private static String format(final String[] record) {
+		try {
+			return toLine(record);
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Format a record as a journal line
+	 * 
+	 * @param record
+	 *            record fields
+	 * @return journal line
+	 * @throws UnsupportedEncodingException
+	 *             never
+	 */
+	private static String toLine(final String[] record)
+	        throws UnsupportedEncodingException {
+		final StringBuilder line = new StringBuilder();
+		for (final String field : record) {
+			if (line.length() > 0) {
+				line.append(FIELD_SEPARATOR);
+			}
+			line.append(URLEncoder.encode(field, ENCODING));
+		}
+		return line.append('\n').toString();
+	}
+	
+	/**
+	 * Parse a journal line
+	 * 
+	 * @param line
+	 *            journal line
+	 * @return record fields
+	 */
+	private static String[] fromLine(final String line) {
+		final String[] record = line.split(String.valueOf(FIELD_SEPARATOR),
+		        -1);
+		try {
+			for (int index = 0; index < record.length; index++) {
+				record[index] = URLDecoder.decode(record[index], ENCODING);
+			}
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		} catch (final IllegalArgumentException e) {
+			// Truncated record
+			return new String[0];
+		}
+		return record;
+	}
+	
+	/**
+	 * Join multi-valued field
+	 * 
+	 * @param values
+	 *            field values
+	 * @return joined field
+	 */
+	private static String join(final Collection<String> values) {
+		final StringBuilder field = new StringBuilder();
+		try {
+			for (final String value : values) {
+				if (field.length() > 0) {
+					field.append(VALUE_SEPARATOR);
+				}
+				field.append(URLEncoder.encode(value, ENCODING));
+			}
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return field.toString();
+	}
+	
+	/**
+	 * Split multi-valued field
+	 * 
+	 * @param field
+	 *            joined field
+	 * @return field values
+	 */
+	private static Set<String> split(final String field) {
+		final Set<String> values = new LinkedHashSet<String>();
+		if (field.length() == 0) {
+			return values;
+		}
+		try {
+			for (final String value : field.split(String
+			        .valueOf(VALUE_SEPARATOR))) {
+				values.add(URLDecoder.decode(value, ENCODING));
+			}
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return values;
+	}
+	
+	/**
+	 * Single writer of journal lines. Writer stops once idle or on failure, it
+	 * is started again by next queued record or by next flush.
+	 */
+	private final class Writer implements Runnable {
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					final String line = lines.poll(WRITER_IDLE_TIMEOUT,
+					        TimeUnit.MILLISECONDS);
+					if (line == null) {
+						synchronized (JoinJournal.this) {
+							if (lines.isEmpty()) {
+								writer = null;
+								return;
+							}
+						}
+						continue;
+					}
+					final List<String> batch = new ArrayList<String>();
+					batch.add(line);
+					lines.drainTo(batch);
+					write(batch);
+				}
+			} catch (final InterruptedException e) {
+				// Remaining records are written by next writer
+			} catch (final Throwable e) {
+				LOGGER.log(Level.SEVERE, "Diamond join journal writer failed",
+				        e);
+			} finally {
+				synchronized (JoinJournal.this) {
+					if (writer == Thread.currentThread()) {
+						writer = null;
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * State of an active join.
+	 */
+	public static final class Entry {
+		
+		/** Join key */
+		private final String key;
+		/** Full name of project that owns join trigger */
+		private final String triggerProject;
+		/** Full name of master project */
+		private final String masterProject;
+		/** Master build number */
+		private final int buildNumber;
+		/** Time join started, <code>0</code> if unknown */
+		private final long startTime;
+		/** Full names of pending projects */
+		private final Set<String> pendingProjects;
+		/** Keys of completed builds of join hierarchy */
+		private final Set<String> buildKeys;
+		/** Combined result of completed projects */
+		private Result result;
+		
+		/**
+		 * Create a new Entry
+		 * 
+		 * @param key
+		 *            join key
+		 * @param triggerProject
+		 *            full name of project that owns join trigger
+		 * @param masterProject
+		 *            full name of master project
+		 * @param buildNumber
+		 *            master build number
+		 * @param startTime
+		 *            time join started, <code>0</code> if unknown
+		 * @param pendingProjects
+		 *            full names of pending projects
+		 * @param buildKeys
+		 *            keys of completed builds of join hierarchy
+		 * @param result
+		 *            combined result of completed projects
+		 */
+		Entry(final String key, final String triggerProject,
+		        final String masterProject, final int buildNumber,
+		        final long startTime, final Collection<String> pendingProjects,
+		        final Collection<String> buildKeys, final Result result) {
+			if (key == null) {
+				throw new IllegalArgumentException("key == null");
+			}
+			if (triggerProject == null) {
+				throw new IllegalArgumentException("triggerProject == null");
+			}
+			if (masterProject == null) {
+				throw new IllegalArgumentException("masterProject == null");
+			}
+			if (pendingProjects == null) {
+				throw new IllegalArgumentException("pendingProjects == null");
+			}
+			if (buildKeys == null) {
+				throw new IllegalArgumentException("buildKeys == null");
+			}
+			if (result == null) {
+				throw new IllegalArgumentException("result == null");
+			}
+			this.key = key;
+			this.triggerProject = triggerProject;
+			this.masterProject = masterProject;
+			this.buildNumber = buildNumber;
+			this.startTime = startTime;
+			this.pendingProjects = new LinkedHashSet<String>(pendingProjects);
+			this.buildKeys = new LinkedHashSet<String>(buildKeys);
+			this.result = result;
+		}
+		
+		/**
+		 * Parse a created record. Records written before start time was
+		 * journaled have no start time.
+		 * 
+		 * @param record
+		 *            record fields
+		 * @return join state, <code>null</code> if record is invalid
+		 */
+		static Entry fromRecord(final String[] record) {
+			if (record.length != 8 && record.length != 9) {
+				return null;
+			}
+			try {
+				return new Entry(record[1], record[2], record[3],
+				        Integer.parseInt(record[4]), record.length == 9 ? Long
+				                .parseLong(record[8]) : 0L, split(record[6]),
+				        split(record[7]), Result.fromString(record[5]));
+			} catch (final NumberFormatException e) {
+				return null;
+			}
+		}
+		
+		/**
+		 * Format as a created record
+		 * 
+		 * @return record fields
+		 */
+		String[] toRecord() {
+			return new String[] { CREATED, key, triggerProject, masterProject,
+			        String.valueOf(buildNumber), result.toString(),
+			        join(pendingProjects), join(buildKeys),
+			        String.valueOf(startTime) };
+		}
+		
+		/**
+		 * Return a copy of this state
+		 * 
+		 * @return a copy of this state
+		 */
+		Entry copy() {
+			return new Entry(key, triggerProject, masterProject, buildNumber,
+			        startTime, pendingProjects, buildKeys, result);
+		}
+		
+		/**
+		 * Apply a branch build completion
+		 * 
+		 * @param project
+		 *            full name of build project
+		 * @param buildKey
+		 *            key of completed build
+		 * @param projectResult
+		 *            result of completed build, may be <code>null</code>
+		 */
+		void complete(final String project, final String buildKey,
+		        final Result projectResult) {
+			// Cancelled queued builds have no build key
+			if (buildKey.length() > 0) {
+				buildKeys.add(buildKey);
+			}
+			if (pendingProjects.remove(project) && projectResult != null) {
+				result = result.combine(projectResult);
+			}
+		}
+		
+		/**
+		 * Return join key
+		 * 
+		 * @return join key
+		 */
+		public String getKey() {
+			return key;
+		}
+		
+		/**
+		 * Return full name of project that owns join trigger
+		 * 
+		 * @return full name of project that owns join trigger
+		 */
+		public String getTriggerProject() {
+			return triggerProject;
+		}
+		
+		/**
+		 * Return full name of master project
+		 * 
+		 * @return full name of master project
+		 */
+		public String getMasterProject() {
+			return masterProject;
+		}
+		
+		/**
+		 * Return master build number
+		 * 
+		 * @return master build number
+		 */
+		public int getBuildNumber() {
+			return buildNumber;
+		}
+		
+		/**
+		 * Return time join started
+		 * 
+		 * @return time join started in milliseconds, <code>0</code> if
+		 *         unknown
+		 */
+		public long getStartTime() {
+			return startTime;
+		}
+		
+		/**
+		 * Return full names of pending projects
+		 * 
+		 * @return full names of pending projects
+		 */
+		public Set<String> getPendingProjects() {
+			return Collections.unmodifiableSet(pendingProjects);
+		}
+		
+		/**
+		 * Return keys of completed builds of join hierarchy
+		 * 
+		 * @return keys of completed builds
+		 */
+		public Set<String> getBuildKeys() {
+			return Collections.unmodifiableSet(buildKeys);
+		}
+		
+		/**
+		 * Return combined result of completed projects
+		 * 
+		 * @return combined result
+		 */
+		public Result getResult() {
+			return result;
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package diamond;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.Hudson;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Build action that links output of join tasks, written to
+ * {@link DiamondJoinAction#JOIN_LOG} of master build, from master build page.
+ * 
+ * @author Julien Bouyoud
+ */
+public final class JoinLogAction implements Action {
+	
+	/** Class Logger */
+	private static final Logger LOGGER = Logger.getLogger(JoinLogAction.class
+	        .getName());
+	
+	/** Full name of master project */
+	private final String masterProjectName;
+	/** Number of master build */
+	private final int masterBuildNumber;
+	
+	/**
+	 * Create a new JoinLogAction
+	 * 
+	 * @param masterBuild
+	 *            build that contains join log
+	 */
+	JoinLogAction(final AbstractBuild<?, ?> masterBuild) {
+		if (masterBuild == null) {
+			throw new IllegalArgumentException("masterBuild == null");
+		}
+		masterProjectName = masterBuild.getProject().getFullName();
+		masterBuildNumber = masterBuild.getNumber();
+	}
+	
+	/**
+	 * Add a JoinLogAction to a master build, unless it already has one
+	 * 
+	 * @param masterBuild
+	 *            build that contains join log
+	 */
+	static void attach(final AbstractBuild<?, ?> masterBuild) {
+		if (masterBuild == null) {
+			throw new IllegalArgumentException("masterBuild == null");
+		}
+		synchronized (masterBuild) {
+			if (masterBuild.getAction(JoinLogAction.class) != null) {
+				return;
+			}
+			masterBuild.addAction(new JoinLogAction(masterBuild));
+		}
+		try {
+			masterBuild.save();
+		} catch (final IOException e) {
+			LOGGER.log(Level.WARNING, "Unable to save join log link of "
+			        + masterBuild.getFullDisplayName(), e);
+		}
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.Action#getIconFileName()
+	 */
+	@Override
+	public String getIconFileName() {
+		return "clipboard.gif";
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.Action#getDisplayName()
+	 */
+	@Override
+	public String getDisplayName() {
+		return "Diamond Join Log";
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.Action#getUrlName()
+	 */
+	@Override
+	public String getUrlName() {
+		return "diamondJoinLog";
+	}
+	
+	/**
+	 * Return master build that contains join log
+	 * 
+	 * @return master build, <code>null</code> if it no longer exists
+	 */
+	public AbstractBuild<?, ?> getBuild() {
+		final AbstractProject<?, ?> masterProject = Hudson.getInstance()
+		        .getItemByFullName(masterProjectName, AbstractProject.class);
+		return masterProject == null ? null : masterProject
+		        .getBuildByNumber(masterBuildNumber);
+	}
+	
+	/**
+	 * Return output of join tasks
+	 * 
+	 * @return content of join log, empty if there is none
+	 * @throws IOException
+	 *             if join log can not be read
+	 */
+	public String getLog() throws IOException {
+		final AbstractBuild<?, ?> masterBuild = getBuild();
+		if (masterBuild == null) {
+			return "";
+		}
+		final File log = new File(masterBuild.getRootDir(),
+		        DiamondJoinAction.JOIN_LOG);
+		return log.exists() ? FileUtils.readFileToString(log) : "";
+	}
+}
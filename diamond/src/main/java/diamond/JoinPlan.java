@@ -0,0 +1,372 @@
+package diamond;
+
+import hudson.Util;
+import hudson.model.AbstractProject;
+import hudson.model.Items;
+import hudson.tasks.Publisher;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import diamond.util.TriggerGraph;
+
+/**
+ * Immutable join plan of a {@link DiamondJoinTrigger}, compiled once per
+ * {@link TriggerGraph} snapshot.
+ * <p>
+ * A plan contains all projects to wait for, resolved join projects and the
+ * hierarchy of join projects that nested joins must wait for. Each
+ * {@link DiamondJoinAction} only clones the pending set of its plan.
+ * 
+ * @author Julien Bouyoud
+ */
+public final class JoinPlan {
+	
+	/** Plans compiled for current snapshot */
+	private static volatile PlanCache cache = new PlanCache(null);
+	
+	/** Trigger graph snapshot where ids are defined */
+	private final TriggerGraph triggerGraph;
+	/** Project that contains trigger */
+	private final AbstractProject<?, ?> masterProject;
+	/** Ids of all enabled projects to wait for, including master project */
+	private final BitSet pendingProjects;
+	/**
+	 * Sorted ids of master project and of its whole hierarchy, including join
+	 * projects ones, that joins may track
+	 */
+	private final int[] trackedProjects;
+	/** Ids of all join projects, including post-join actions ones */
+	private final int[] allJoinProjects;
+	/** Ids of hierarchy of enabled join projects */
+	private final int[] nestedJoinProjects;
+	/** Ids of all join projects and of their whole hierarchy */
+	private final BitSet joinedHierarchy;
+	/** Fingerprint of trigger configuration */
+	private final String fingerprint;
+	
+	/**
+	 * Compile a new JoinPlan
+	 * 
+	 * @param triggerGraph
+	 *            trigger graph snapshot where ids are defined
+	 * @param masterProject
+	 *            project that contains trigger
+	 * @param diamondTrigger
+	 *            trigger to compile
+	 */
+	private JoinPlan(final TriggerGraph triggerGraph,
+	        final AbstractProject<?, ?> masterProject,
+	        final DiamondJoinTrigger diamondTrigger) {
+		this.triggerGraph = triggerGraph;
+		this.masterProject = masterProject;
+		final int masterProjectId = triggerGraph.getId(masterProject);
+		
+		pendingProjects = new BitSet(triggerGraph.size());
+		for (final int projectId : triggerGraph.getDownstreamHierarchy(
+		        masterProjectId, false, false)) {
+			if (isEnabled(triggerGraph.getProject(projectId))) {
+				pendingProjects.set(projectId);
+			}
+		}
+		if (isEnabled(masterProject)) {
+			pendingProjects.set(masterProjectId);
+		}
+		// Nested joins add their join projects hierarchy to pending projects
+		final BitSet hierarchy = (BitSet) triggerGraph.getDownstreamSet(
+		        masterProjectId, false, true).clone();
+		hierarchy.set(masterProjectId);
+		trackedProjects = toArray(hierarchy);
+		
+		allJoinProjects = triggerGraph.getIds(diamondTrigger
+		        .getAllJoinProjects());
+		joinedHierarchy = triggerGraph.getDownstreamSet(allJoinProjects,
+		        false, false, true);
+		
+		final BitSet nestedProjects = new BitSet(triggerGraph.size());
+		for (final AbstractProject<?, ?> joinProject : diamondTrigger
+		        .getJoinProjects()) {
+			final int joinProjectId = triggerGraph.getId(joinProject);
+			if (joinProjectId >= 0 && isEnabled(joinProject)) {
+				for (final int projectId : triggerGraph
+				        .getDownstreamHierarchy(joinProjectId, false, false)) {
+					nestedProjects.set(projectId);
+				}
+			}
+		}
+		fingerprint = computeFingerprint(diamondTrigger);
+		
+		nestedJoinProjects = toArray(nestedProjects);
+	}
+	
+	/**
+	 * Return join plan of a trigger, compile it if needed
+	 * 
+	 * @param diamondTrigger
+	 *            trigger to compile
+	 * @param masterProject
+	 *            project that contains trigger
+	 * @return join plan of diamondTrigger for current {@link TriggerGraph}
+	 */
+	public static JoinPlan get(final DiamondJoinTrigger diamondTrigger,
+	        final AbstractProject<?, ?> masterProject) {
+		if (diamondTrigger == null) {
+			throw new IllegalArgumentException("diamondTrigger == null");
+		}
+		if (masterProject == null) {
+			throw new IllegalArgumentException("masterProject == null");
+		}
+		final TriggerGraph triggerGraph = TriggerGraph.get(masterProject);
+		PlanCache plans = cache;
+		if (plans.triggerGraph != triggerGraph) {
+			plans = new PlanCache(triggerGraph);
+			cache = plans;
+		}
+		final PlanKey key = new PlanKey(diamondTrigger, masterProject);
+		JoinPlan plan = plans.plans.get(key);
+		if (plan == null) {
+			plan = new JoinPlan(triggerGraph, masterProject, diamondTrigger);
+			plans.plans.put(key, plan);
+		}
+		return plan;
+	}
+	
+	/**
+	 * Compute fingerprint of a trigger configuration : join projects,
+	 * threshold and post-join actions, including their configuration.
+	 * 
+	 * @param diamondTrigger
+	 *            trigger to fingerprint
+	 * @return fingerprint of trigger configuration
+	 */
+	private static String computeFingerprint(
+	        final DiamondJoinTrigger diamondTrigger) {
+		final StringBuilder builder = new StringBuilder(
+		        diamondTrigger.getJoinProjectsValue()).append('|').append(
+		        diamondTrigger.getThreshold());
+		for (final Publisher publisher : diamondTrigger.getPostJoinActions()) {
+			builder.append('|').append(publisher.getClass().getName())
+			        .append(':').append(getConfigurationDigest(publisher));
+		}
+		return builder.toString();
+	}
+	
+	/**
+	 * Compute digest of a post-join action configuration, so that a
+	 * reconfigured action changes trigger fingerprint
+	 * 
+	 * @param publisher
+	 *            post-join action
+	 * @return digest of publisher configuration, or its identity if it can
+	 *         not be serialized
+	 */
+	private static String getConfigurationDigest(final Publisher publisher) {
+		try {
+			return Util.getDigestOf(Items.XSTREAM.toXML(publisher));
+		} catch (final RuntimeException e) {
+			return Integer.toHexString(System.identityHashCode(publisher));
+		}
+	}
+	
+	/**
+	 * Return ids of a set in ascending order
+	 * 
+	 * @param projectIds
+	 *            set of ids
+	 * @return sorted ids of set
+	 */
+	private static int[] toArray(final BitSet projectIds) {
+		final int[] ids = new int[projectIds.cardinality()];
+		int index = 0;
+		for (int projectId = projectIds.nextSetBit(0); projectId >= 0; projectId = projectIds
+		        .nextSetBit(projectId + 1)) {
+			ids[index++] = projectId;
+		}
+		return ids;
+	}
+	
+	/**
+	 * Return if a project can be built
+	 * 
+	 * @param project
+	 *            project to check
+	 * @return <code>true</code> if project is enabled and buildable,
+	 *         <code>false</code> else.
+	 */
+	private static boolean isEnabled(final AbstractProject<?, ?> project) {
+		return !project.isDisabled() && project.isBuildable();
+	}
+	
+	/**
+	 * Return trigger graph snapshot where ids are defined
+	 * 
+	 * @return trigger graph snapshot where ids are defined
+	 */
+	public TriggerGraph getTriggerGraph() {
+		return triggerGraph;
+	}
+	
+	/**
+	 * Return project that contains trigger
+	 * 
+	 * @return project that contains trigger
+	 */
+	public AbstractProject<?, ?> getMasterProject() {
+		return masterProject;
+	}
+	
+	/**
+	 * Return fingerprint of trigger configuration. Two plans with same
+	 * fingerprint trigger same join projects with same threshold and same
+	 * post-join actions.
+	 * 
+	 * @return fingerprint of trigger configuration
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+	
+	/**
+	 * Create a new mutable copy of projects to wait for
+	 * 
+	 * @return ids of all projects to wait for
+	 */
+	public BitSet newPendingProjects() {
+		return (BitSet) pendingProjects.clone();
+	}
+	
+	/**
+	 * Return sorted ids of projects a join may track, see
+	 * {@link JoinCountdown}
+	 * 
+	 * @param extraProjects
+	 *            ids of projects to track even if they are outside master
+	 *            project hierarchy
+	 * @return sorted ids of master project hierarchy and of extra projects,
+	 *         this array must not be modified
+	 */
+	int[] getTrackedProjects(final BitSet extraProjects) {
+		if (extraProjects == null) {
+			throw new IllegalArgumentException("extraProjects == null");
+		}
+		final BitSet projects = (BitSet) extraProjects.clone();
+		for (final int projectId : trackedProjects) {
+			projects.clear(projectId);
+		}
+		if (projects.isEmpty()) {
+			return trackedProjects;
+		}
+		for (final int projectId : trackedProjects) {
+			projects.set(projectId);
+		}
+		return toArray(projects);
+	}
+	
+	/**
+	 * Return ids of all join projects, including post-join actions ones
+	 * 
+	 * @return ids of all join projects, this array must not be modified
+	 */
+	int[] getAllJoinProjects() {
+		return allJoinProjects;
+	}
+	
+	/**
+	 * Return hierarchy of enabled join projects, nested joins must wait for
+	 * them
+	 * 
+	 * @return unmodifiable list of hierarchy of enabled join projects
+	 */
+	public List<AbstractProject<?, ?>> getNestedJoinProjects() {
+		return triggerGraph.asProjectList(nestedJoinProjects);
+	}
+	
+	/**
+	 * Return if any project of a set is a join project or belongs to join
+	 * projects hierarchy
+	 * 
+	 * @param projectIds
+	 *            ids of projects
+	 * @return <code>true</code> if any project belongs to join projects
+	 *         hierarchy, <code>false</code> else.
+	 */
+	public boolean isInJoinedHierarchy(final BitSet projectIds) {
+		if (projectIds == null) {
+			throw new IllegalArgumentException("projectIds == null");
+		}
+		return joinedHierarchy.intersects(projectIds);
+	}
+	
+	/**
+	 * Plans compiled for one {@link TriggerGraph} snapshot.
+	 */
+	private static final class PlanCache {
+		
+		/** Trigger graph snapshot where plans are compiled */
+		private final TriggerGraph triggerGraph;
+		/** Plans by trigger and master project */
+		private final Map<PlanKey, JoinPlan> plans = new ConcurrentHashMap<PlanKey, JoinPlan>();
+		
+		/**
+		 * Create a new empty PlanCache
+		 * 
+		 * @param triggerGraph
+		 *            trigger graph snapshot where plans are compiled
+		 */
+		PlanCache(final TriggerGraph triggerGraph) {
+			this.triggerGraph = triggerGraph;
+		}
+	}
+	
+	/**
+	 * Identity key of a plan : a trigger may be compiled for its own project
+	 * or for a downstream master project.
+	 */
+	private static final class PlanKey {
+		
+		/** Compiled trigger */
+		private final DiamondJoinTrigger diamondTrigger;
+		/** Master project */
+		private final AbstractProject<?, ?> masterProject;
+		
+		/**
+		 * Create a new PlanKey
+		 * 
+		 * @param diamondTrigger
+		 *            compiled trigger
+		 * @param masterProject
+		 *            master project
+		 */
+		PlanKey(final DiamondJoinTrigger diamondTrigger,
+		        final AbstractProject<?, ?> masterProject) {
+			this.diamondTrigger = diamondTrigger;
+			this.masterProject = masterProject;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#hashCode()
+		 */
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(diamondTrigger)
+			        + System.identityHashCode(masterProject);
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.lang.Object#equals(java.lang.Object)
+		 */
+		@Override
+		public boolean equals(final Object obj) {
+			if (obj instanceof PlanKey) {
+				final PlanKey otherKey = (PlanKey) obj;
+				return otherKey.diamondTrigger == diamondTrigger
+				        && otherKey.masterProject == masterProject;
+			}
+			return false;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package diamond;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.Cause.UpstreamCause;
+import hudson.model.CauseAction;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.Queue.Task;
+import hudson.model.queue.QueueDecisionHandler;
+import hudson.util.LogTaskListener;
+
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches queued builds of pending projects of active joins.
+ * <p>
+ * A queued build cancelled before it started never completes, so its join
+ * would wait forever. Scheduled builds triggered by a build of a join
+ * hierarchy are recorded by {@link QueueDecisionHandlerImpl}, then queue is
+ * checked periodically : a build that left queue without being started
+ * settles its project with {@link DiamondJoinTrigger#getCancelledResult()}.
+ * 
+ * @author Julien Bouyoud
+ */
+@Extension
+public class JoinQueueWatcher extends PeriodicWork {
+	
+	/** Class Logger */
+	private static final Logger LOGGER = Logger
+	        .getLogger(JoinQueueWatcher.class.getName());
+	
+	/** Delay between two queue checks in milliseconds */
+	private static final long RECURRENCE_PERIOD = Long.getLong(
+	        JoinQueueWatcher.class.getName() + ".recurrencePeriod", 5000L)
+	        .longValue();
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.PeriodicWork#getRecurrencePeriod()
+	 */
+	@Override
+	public long getRecurrencePeriod() {
+		return RECURRENCE_PERIOD;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.triggers.SafeTimerTask#doRun()
+	 */
+	@Override
+	protected void doRun() {
+		final List<DiamondJoinAction> joinActions = DiamondJoinRegistry
+		        .getActiveJoinActions();
+		if (joinActions.isEmpty()) {
+			return;
+		}
+		final Queue queue = Hudson.getInstance().getQueue();
+		final LogTaskListener listener = new LogTaskListener(LOGGER,
+		        Level.INFO);
+		for (final DiamondJoinAction joinAction : joinActions) {
+			joinAction.checkQueuedBuilds(queue, listener);
+		}
+	}
+	
+	/**
+	 * Records builds scheduled by a build of an active join hierarchy.
+	 */
+	@Extension
+	public static class QueueDecisionHandlerImpl extends QueueDecisionHandler {
+		
+		/*
+		 * (non-Javadoc)
+		 * @see
+		 * hudson.model.queue.QueueDecisionHandler#shouldSchedule(hudson.model
+		 * .Queue.Task, java.util.List)
+		 */
+		@Override
+		public boolean shouldSchedule(final Task p, final List<Action> actions) {
+			if (!(p instanceof AbstractProject) || actions == null) {
+				return true;
+			}
+			final AbstractProject<?, ?> project = (AbstractProject<?, ?>) p;
+			for (final Action action : actions) {
+				if (!(action instanceof CauseAction)) {
+					continue;
+				}
+				for (final Cause cause : ((CauseAction) action).getCauses()) {
+					if (cause instanceof UpstreamCause) {
+						final UpstreamCause upstreamCause = (UpstreamCause) cause;
+						for (final DiamondJoinAction joinAction : DiamondJoinRegistry
+						        .getJoinActions(
+						                upstreamCause.getUpstreamProject(),
+						                upstreamCause.getUpstreamBuild())) {
+							joinAction.notifyBuildQueued(project);
+						}
+					}
+				}
+			}
+			// Never vetoes scheduling
+			return true;
+		}
+	}
+}
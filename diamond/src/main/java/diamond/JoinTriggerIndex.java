@@ -0,0 +1,149 @@
+package diamond;
+
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reverse index from project names to projects whose
+ * {@link DiamondJoinTrigger} references them, as join projects or as
+ * parameterized post-join targets.
+ * <p>
+ * Index is built once from all projects of any type, then maintained on each
+ * project save or deletion, so that a rename or a deletion only updates
+ * projects that reference it.
+ * 
+ * @author Julien Bouyoud
+ */
+final class JoinTriggerIndex {
+	
+	/** Projects whose trigger references a project name */
+	private static final Map<String, Set<AbstractProject<?, ?>>> OWNERS = new HashMap<String, Set<AbstractProject<?, ?>>>();
+	/** Project names referenced by trigger of a project */
+	private static final Map<AbstractProject<?, ?>, Set<String>> REFERENCES = new HashMap<AbstractProject<?, ?>, Set<String>>();
+	/** Flag indicates if index was built */
+	private static boolean built;
+	
+	/**
+	 * Utility class
+	 */
+	private JoinTriggerIndex() {
+		// Nothing to do
+	}
+	
+	/**
+	 * Return projects whose trigger references a project name
+	 * 
+	 * @param projectName
+	 *            full name of referenced project
+	 * @return list of projects whose trigger references projectName
+	 */
+	static synchronized List<AbstractProject<?, ?>> getOwners(
+	        final String projectName) {
+		if (projectName == null) {
+			throw new IllegalArgumentException("projectName == null");
+		}
+		if (!built) {
+			rebuild();
+		}
+		final Set<AbstractProject<?, ?>> owners = OWNERS.get(projectName);
+		if (owners == null) {
+			return Collections.emptyList();
+		}
+		return new ArrayList<AbstractProject<?, ?>>(owners);
+	}
+	
+	/**
+	 * Build index from all projects
+	 */
+	static synchronized void rebuild() {
+		OWNERS.clear();
+		REFERENCES.clear();
+		final Hudson hudson = Hudson.getInstance();
+		if (hudson == null) {
+			return;
+		}
+		for (final AbstractProject<?, ?> project : hudson
+		        .getAllItems(AbstractProject.class)) {
+			add(project);
+		}
+		built = true;
+	}
+	
+	/**
+	 * Update references of a project trigger, once project was saved
+	 * 
+	 * @param project
+	 *            saved project
+	 */
+	static synchronized void reindex(final AbstractProject<?, ?> project) {
+		if (project == null) {
+			throw new IllegalArgumentException("project == null");
+		}
+		if (!built) {
+			// Whole index is built at first use
+			return;
+		}
+		remove(project);
+		add(project);
+	}
+	
+	/**
+	 * Remove references of a project trigger
+	 * 
+	 * @param project
+	 *            saved or deleted project
+	 */
+	static synchronized void remove(final AbstractProject<?, ?> project) {
+		if (project == null) {
+			throw new IllegalArgumentException("project == null");
+		}
+		final Set<String> projectNames = REFERENCES.remove(project);
+		if (projectNames == null) {
+			return;
+		}
+		for (final String projectName : projectNames) {
+			final Set<AbstractProject<?, ?>> owners = OWNERS.get(projectName);
+			if (owners != null) {
+				owners.remove(project);
+				if (owners.isEmpty()) {
+					OWNERS.remove(projectName);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Add references of a project trigger
+	 * 
+	 * @param project
+	 *            a project
+	 */
+	private static void add(final AbstractProject<?, ?> project) {
+		final DiamondJoinTrigger trigger = project.getPublishersList().get(
+		        DiamondJoinTrigger.class);
+		if (trigger == null) {
+			return;
+		}
+		final Set<String> projectNames = trigger.getReferencedProjectNames();
+		if (projectNames.isEmpty()) {
+			return;
+		}
+		REFERENCES.put(project, projectNames);
+		for (final String projectName : projectNames) {
+			Set<AbstractProject<?, ?>> owners = OWNERS.get(projectName);
+			if (owners == null) {
+				owners = new LinkedHashSet<AbstractProject<?, ?>>();
+				OWNERS.put(projectName, owners);
+			}
+			owners.add(project);
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package diamond;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import hudson.util.LogTaskListener;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves active joins that wait for their downstream projects for longer
+ * than join timeout of their trigger, so that stalled joins do not stay in
+ * memory for the life of Hudson.
+ * <p>
+ * Expired joins are resolved with timeout policy of their trigger, see
+ * {@link DiamondJoinTrigger#getTimeoutPolicy()}, then released.
+ * 
+ * @author Julien Bouyoud
+ */
+@Extension
+public class JoinWatchdog extends PeriodicWork {
+	
+	/** Class Logger */
+	private static final Logger LOGGER = Logger.getLogger(JoinWatchdog.class
+	        .getName());
+	
+	/** Delay between two checks in milliseconds */
+	private static final long RECURRENCE_PERIOD = Long.getLong(
+	        JoinWatchdog.class.getName() + ".recurrencePeriod", MIN)
+	        .longValue();
+	
+	/** Number of expired joins */
+	private static final AtomicLong EXPIRED = new AtomicLong();
+	
+	/**
+	 * Return number of joins resolved because they timed out
+	 * 
+	 * @return number of expired joins
+	 */
+	public static long getExpiredCount() {
+		return EXPIRED.get();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.PeriodicWork#getRecurrencePeriod()
+	 */
+	@Override
+	public long getRecurrencePeriod() {
+		return RECURRENCE_PERIOD;
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.triggers.SafeTimerTask#doRun()
+	 */
+	@Override
+	protected void doRun() {
+		expireJoins(System.currentTimeMillis());
+	}
+	
+	/**
+	 * Resolve all active joins that timed out
+	 * 
+	 * @param now
+	 *            current time in milliseconds
+	 * @return number of expired joins
+	 */
+	int expireJoins(final long now) {
+		int expired = 0;
+		LogTaskListener listener = null;
+		for (final DiamondJoinAction joinAction : DiamondJoinRegistry
+		        .getActiveJoinActions()) {
+			if (!joinAction.isExpired(now)) {
+				continue;
+			}
+			if (listener == null) {
+				listener = new LogTaskListener(LOGGER, Level.WARNING);
+			}
+			if (joinAction.expire(listener)) {
+				EXPIRED.incrementAndGet();
+				expired++;
+			}
+		}
+		return expired;
+	}
+}
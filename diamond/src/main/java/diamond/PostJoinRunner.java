@@ -0,0 +1,359 @@
+package diamond;
+
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run post-join actions of a {@link DiamondJoinTrigger}, one after another or
+ * concurrently.
+ * <p>
+ * In parallel mode, each action output is captured and merged in
+ * configuration order once all actions completed. An action only starts once
+ * all actions it depends on completed, dependencies are declared as
+ * <code>A -&gt; B</code> lines where <code>A</code> and <code>B</code> are
+ * action names, so that names must be unique.
+ * 
+ * @author Julien Bouyoud
+ */
+final class PostJoinRunner {
+	
+	/** Dependency declaration separator */
+	private static final String DEPENDENCY_SEPARATOR = "->";
+	/** Factory of threads that run concurrent actions */
+	private static final ThreadFactory THREAD_FACTORY = new UnitThreadFactory();
+	
+	/** Actions in configuration order */
+	private final List<Unit> units;
+	
+	/**
+	 * Create a new PostJoinRunner
+	 * 
+	 * @param units
+	 *            actions in configuration order, with unique names
+	 */
+	PostJoinRunner(final List<Unit> units) {
+		if (units == null) {
+			throw new IllegalArgumentException("units == null");
+		}
+		final Map<String, Unit> names = new HashMap<String, Unit>();
+		for (final Unit unit : units) {
+			if (names.put(unit.getName(), unit) != null) {
+				throw new IllegalArgumentException("Duplicate action name "
+				        + unit.getName());
+			}
+		}
+		this.units = units;
+	}
+	
+	/**
+	 * Run all actions one after another, until current thread is interrupted
+	 * 
+	 * @param listener
+	 *            listener where all actions output is written
+	 */
+	void runSequentially(final BuildListener listener) {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener == null");
+		}
+		for (final Unit unit : units) {
+			if (Thread.currentThread().isInterrupted()) {
+				listener.getLogger().println(
+				        "Post-join actions interrupted, skipping "
+				                + unit.getName() + " and following actions");
+				return;
+			}
+			unit.run(listener);
+		}
+	}
+	
+	/**
+	 * Run all independent actions concurrently
+	 * 
+	 * @param listener
+	 *            listener where all actions output is merged
+	 * @param concurrency
+	 *            maximum number of concurrent actions
+	 * @param dependencies
+	 *            dependencies declarations, one <code>A -&gt; B</code> by
+	 *            line
+	 * @throws InterruptedException
+	 *             if current thread is interrupted
+	 */
+	void runConcurrently(final BuildListener listener, final int concurrency,
+	        final String dependencies) throws InterruptedException {
+		if (listener == null) {
+			throw new IllegalArgumentException("listener == null");
+		}
+		if (units.isEmpty()) {
+			return;
+		}
+		final int size = units.size();
+		// Dependencies graph, indexed by configuration order
+		final int[] remainingDependencies = new int[size];
+		final List<List<Integer>> dependents = new ArrayList<List<Integer>>(
+		        size);
+		for (int index = 0; index < size; index++) {
+			dependents.add(new ArrayList<Integer>());
+		}
+		parseDependencies(listener, dependencies, remainingDependencies,
+		        dependents);
+		
+		final ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[size];
+		final boolean[] started = new boolean[size];
+		final ExecutorService executor = Executors.newFixedThreadPool(
+		        Math.max(1, Math.min(concurrency, size)), THREAD_FACTORY);
+		try {
+			final CompletionService<Integer> completionService = new ExecutorCompletionService<Integer>(
+			        executor);
+			// Action index by future, a failed future has no result
+			final Map<Future<Integer>, Integer> indexes = new HashMap<Future<Integer>, Integer>();
+			int running = 0;
+			int completed = 0;
+			while (completed < size) {
+				// Start all ready actions in configuration order
+				for (int index = 0; index < size; index++) {
+					if (!started[index] && remainingDependencies[index] == 0) {
+						started[index] = true;
+						outputs[index] = new ByteArrayOutputStream();
+						indexes.put(completionService.submit(new UnitCall(units
+						        .get(index), index, outputs[index])), Integer
+						        .valueOf(index));
+						running++;
+					}
+				}
+				if (running == 0) {
+					// Dependency cycle : release first blocked action
+					for (int index = 0; index < size; index++) {
+						if (!started[index]) {
+							listener.getLogger().println(
+							        "Post-join dependency cycle, starting "
+							                + units.get(index).getName());
+							remainingDependencies[index] = 0;
+							break;
+						}
+					}
+					continue;
+				}
+				final Future<Integer> future = completionService.take();
+				final int index = indexes.remove(future).intValue();
+				try {
+					future.get();
+				} catch (final ExecutionException e) {
+					// Dependent actions still run, as in sequential mode
+					listener.error("Post-join action "
+					        + units.get(index).getName() + " failed : "
+					        + e.getCause());
+				}
+				running--;
+				completed++;
+				for (final Integer dependent : dependents.get(index)) {
+					remainingDependencies[dependent.intValue()]--;
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+			// Merge outputs in configuration order
+			for (int index = 0; index < size; index++) {
+				if (outputs[index] != null) {
+					listener.getLogger().println(
+					        "[" + units.get(index).getName() + "]");
+					final byte[] output = outputs[index].toByteArray();
+					listener.getLogger().write(output, 0, output.length);
+				}
+			}
+			listener.getLogger().flush();
+		}
+	}
+	
+	/**
+	 * Parse dependencies declarations
+	 * 
+	 * @param listener
+	 *            listener where invalid declarations are reported
+	 * @param dependencies
+	 *            dependencies declarations, may be <code>null</code>
+	 * @param remainingDependencies
+	 *            number of dependencies by action, filled by this method
+	 * @param dependents
+	 *            dependent actions by action, filled by this method
+	 */
+	private void parseDependencies(final BuildListener listener,
+	        final String dependencies, final int[] remainingDependencies,
+	        final List<List<Integer>> dependents) {
+		if (dependencies == null) {
+			return;
+		}
+		final Map<String, Integer> indexes = new HashMap<String, Integer>();
+		for (int index = 0; index < units.size(); index++) {
+			indexes.put(units.get(index).getName(), Integer.valueOf(index));
+		}
+		final StringTokenizer tokens = new StringTokenizer(dependencies,
+		        "\r\n;");
+		while (tokens.hasMoreTokens()) {
+			final String declaration = tokens.nextToken().trim();
+			if (declaration.length() == 0) {
+				continue;
+			}
+			final int separator = declaration.indexOf(DEPENDENCY_SEPARATOR);
+			final Integer before = separator < 0 ? null : indexes
+			        .get(declaration.substring(0, separator).trim());
+			final Integer after = separator < 0 ? null : indexes
+			        .get(declaration.substring(
+			                separator + DEPENDENCY_SEPARATOR.length()).trim());
+			if (before == null || after == null) {
+				listener.getLogger().println(
+				        "Ignoring post-join dependency '" + declaration + "'");
+			} else if (!dependents.get(before.intValue()).contains(after)) {
+				dependents.get(before.intValue()).add(after);
+				remainingDependencies[after.intValue()]++;
+			}
+		}
+	}
+	
+	/**
+	 * A post-join action.
+	 */
+	abstract static class Unit {
+		
+		/** Action name */
+		private final String name;
+		
+		/**
+		 * Create a new Unit
+		 * 
+		 * @param name
+		 *            action name
+		 */
+		Unit(final String name) {
+			if (name == null) {
+				throw new IllegalArgumentException("name == null");
+			}
+			this.name = name;
+		}
+		
+		/**
+		 * Return action name
+		 * 
+		 * @return action name
+		 */
+		String getName() {
+			return name;
+		}
+		
+		/**
+		 * Perform action
+		 * 
+		 * @param listener
+		 *            action listener
+		 * @throws InterruptedException
+		 *             if action is interrupted
+		 * @throws IOException
+		 *             if any IO error occurred
+		 */
+		abstract void perform(BuildListener listener)
+		        throws InterruptedException, IOException;
+		
+		/**
+		 * Perform action, reporting errors to listener, so that a failed
+		 * action never stops other actions. An interrupted action keeps
+		 * current thread interrupted.
+		 * 
+		 * @param listener
+		 *            action listener
+		 */
+		final void run(final BuildListener listener) {
+			try {
+				perform(listener);
+			} catch (final InterruptedException e) {
+				listener.getLogger().println(e.toString());
+				Thread.currentThread().interrupt();
+			} catch (final IOException e) {
+				listener.getLogger().println(e.toString());
+			} catch (final RuntimeException e) {
+				e.printStackTrace(listener.error("Post-join action " + name
+				        + " failed"));
+			}
+		}
+	}
+	
+	/**
+	 * Run a unit with a captured output.
+	 */
+	private static final class UnitCall implements Callable<Integer> {
+		
+		/** Action to run */
+		private final Unit unit;
+		/** Action index */
+		private final int index;
+		/** Captured output */
+		private final ByteArrayOutputStream output;
+		
+		/**
+		 * Create a new UnitCall
+		 * 
+		 * @param unit
+		 *            action to run
+		 * @param index
+		 *            action index
+		 * @param output
+		 *            captured output
+		 */
+		UnitCall(final Unit unit, final int index,
+		        final ByteArrayOutputStream output) {
+			this.unit = unit;
+			this.index = index;
+			this.output = output;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.Callable#call()
+		 */
+		@Override
+		public Integer call() {
+			final BuildListener listener = new StreamBuildListener(output);
+			unit.run(listener);
+			listener.getLogger().flush();
+			return Integer.valueOf(index);
+		}
+	}
+	
+	/**
+	 * Factory of daemon threads that run concurrent actions.
+	 */
+	private static final class UnitThreadFactory implements ThreadFactory {
+		
+		/** Number of created threads */
+		private final AtomicInteger threadCount = new AtomicInteger();
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.ThreadFactory#newThread(java.lang.Runnable)
+		 */
+		@Override
+		public Thread newThread(final Runnable runnable) {
+			final Thread thread = new Thread(runnable,
+			        "Diamond post-join action #"
+			                + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -1,17 +1,28 @@
 package diamond.util;
 
+import hudson.EnvVars;
+import hudson.model.Action;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Cause;
 import hudson.model.Run;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Class to override global run result due to assert in {@link Run}. Act as
  * Proxy.
+ * <p>
+ * Publishers only accept an {@link AbstractBuild}, and result of a completed
+ * build can not be changed, so post-join actions get this view of master
+ * build with joined result. Actions, environment, build variables and
+ * directory are the master build ones, so that publishers see its
+ * parameters. Join builds never reference it, they get a lightweight cause.
  * 
  * @param <P>
  * @param <R>
@@ -86,4 +97,41 @@ public final class FakeRun<P extends AbstractProject<P, R>, R extends AbstractBu
 	public int getNumber() {
 		return originalBuild.getNumber();
 	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.Actionable#getActions()
+	 */
+	@Override
+	public List<Action> getActions() {
+		return originalBuild.getActions();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.AbstractBuild#getEnvironment(hudson.model.TaskListener)
+	 */
+	@Override
+	public EnvVars getEnvironment(final TaskListener listener)
+	        throws IOException, InterruptedException {
+		return originalBuild.getEnvironment(listener);
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.AbstractBuild#getBuildVariables()
+	 */
+	@Override
+	public Map<String, String> getBuildVariables() {
+		return originalBuild.getBuildVariables();
+	}
+	
+	/*
+	 * (non-Javadoc)
+	 * @see hudson.model.Run#getRootDir()
+	 */
+	@Override
+	public File getRootDir() {
+		return originalBuild.getRootDir();
+	}
 }
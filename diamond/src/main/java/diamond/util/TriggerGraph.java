@@ -0,0 +1,1123 @@
+package diamond.util;
+
+import hudson.model.DependencyGraph;
+import hudson.model.Items;
+import hudson.model.Result;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.plugins.downstream_ext.DownstreamTrigger;
+import hudson.plugins.parameterizedtrigger.BuildTriggerConfig;
+import hudson.plugins.parameterizedtrigger.ResultCondition;
+import hudson.tasks.BuildTrigger;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import diamond.DiamondJoinTrigger;
+
+/**
+ * Immutable snapshot of trigger relationships between all Hudson projects.
+ * <p>
+ * Each project is given a dense integer id, edges are stored by kind in
+ * compressed sparse row arrays: children of project <code>id</code> for kind
+ * <code>k</code> are <code>targets[k][offsets[k][id]]</code> to
+ * <code>targets[k][offsets[k][id + 1] - 1]</code>.
+ * <p>
+ * Each edge carries the set of upstream build results that trigger it, so
+ * that branches that will never be triggered can be pruned as builds
+ * complete.
+ * <p>
+ * A snapshot is bound to the Hudson dependency graph it was built for and is
+ * rebuilt lazily once this graph changes or {@link #invalidate()} is called.
+ * Only one thread rebuilds a snapshot, concurrent callers wait for its
+ * result. Most recently used downstream hierarchies and reachability sets are
+ * memoized in the snapshot, up to a bounded number of entries so that memory
+ * does not grow with the square of project count.
+ * 
+ * @author Julien Bouyoud
+ */
+public final class TriggerGraph {
+	
+	/** Class Logger */
+	private static final Logger LOGGER = Logger.getLogger(TriggerGraph.class
+	        .getName());
+	
+	/** Core {@link BuildTrigger} edges */
+	public static final int BUILD_TRIGGER = 0;
+	/** "downstream-ext" {@link DownstreamTrigger} edges */
+	public static final int DOWNSTREAM_EXT = 1;
+	/** "parameterized-trigger" edges */
+	public static final int PARAMETERIZED_TRIGGER = 2;
+	/** {@link DiamondJoinTrigger} edges to all join projects */
+	public static final int DIAMOND_JOIN = 3;
+	/** Number of edge kinds */
+	private static final int EDGE_KINDS = 4;
+	
+	/** All build results, in {@link Result#ordinal} order */
+	private static final Result[] RESULTS = { Result.SUCCESS, Result.UNSTABLE,
+	        Result.FAILURE, Result.NOT_BUILT, Result.ABORTED };
+	/** Condition of an edge triggered whatever upstream result */
+	public static final int ALL_RESULTS = (1 << RESULTS.length) - 1;
+	
+	/** Empty id array */
+	private static final int[] NO_IDS = new int[0];
+	/** Maximum number of memoized hierarchies and of reachability sets */
+	private static final int MEMO_CAPACITY = Integer.getInteger(
+	        TriggerGraph.class.getName() + ".memoCapacity", 512).intValue();
+	
+	/** Current snapshot, <code>null</code> if it must be rebuilt */
+	private static volatile TriggerGraph current;
+	/** Lock held while current snapshot is rebuilt */
+	private static final Object BUILD_LOCK = new Object();
+	/** Generation of project configurations, see {@link #invalidate()} */
+	private static final AtomicLong GENERATION = new AtomicLong();
+	/** Dependency graph being built, see {@link #onDependencyGraphRebuild} */
+	private static volatile DependencyGraph rebuildingGraph;
+	/** Dependency graph replaced by {@link #rebuildingGraph} */
+	private static volatile DependencyGraph replacedGraph;
+	/** Number of dependency graph rebuilds, see {@link #getRebuildCount()} */
+	private static final AtomicLong REBUILD_COUNT = new AtomicLong();
+	/** Number of built snapshots, see {@link #getSnapshotCount()} */
+	private static final AtomicLong SNAPSHOT_COUNT = new AtomicLong();
+	
+	/** Dependency graph for which this snapshot is built */
+	private final DependencyGraph graph;
+	/** Dependency graph replaced by {@link #graph} during rebuild */
+	private final DependencyGraph previousGraph;
+	/** Generation of project configurations this snapshot was built from */
+	private final long generation;
+	/** Projects by id */
+	private final AbstractProject<?, ?>[] projects;
+	/** Ids by project */
+	private final Map<AbstractProject<?, ?>, Integer> ids;
+	/** Edge offsets by kind, size of each array is project count + 1 */
+	private final int[][] offsets;
+	/** Edge targets by kind */
+	private final int[][] targets;
+	/** Edge conditions by kind, see {@link #resultMask(Result)} */
+	private final int[][] conditions;
+	/** Parent offsets of all edge kinds, size is project count + 1 */
+	private final int[] parentOffsets;
+	/** Parents of all edge kinds */
+	private final int[] parents;
+	/** Memoized hierarchies, keyed by {@link #hierarchyIndex} */
+	private final Memo<int[]> hierarchies = new Memo<int[]>(MEMO_CAPACITY);
+	/** Memoized reachability sets, keyed by {@link #hierarchyIndex} */
+	private final Memo<BitSet> reachableSets = new Memo<BitSet>(MEMO_CAPACITY);
+	/** Ids of projects that contains a {@link DiamondJoinTrigger} */
+	private final BitSet joinOwners;
+	/** Ids of projects that can take part in a diamond, lazily computed */
+	private volatile BitSet participants;
+	
+	/**
+	 * Build a new snapshot
+	 * 
+	 * @param graph
+	 *            dependency graph for which this snapshot is built
+	 * @param previousGraph
+	 *            dependency graph replaced by graph during rebuild
+	 * @param generation
+	 *            generation of project configurations
+	 * @param roots
+	 *            projects to include, their children are included too
+	 */
+	private TriggerGraph(final DependencyGraph graph,
+	        final DependencyGraph previousGraph, final long generation,
+	        final List<AbstractProject<?, ?>> roots) {
+		this.graph = graph;
+		this.previousGraph = previousGraph;
+		this.generation = generation;
+		
+		final boolean downstreamExt = Hudson.getInstance().getPlugin(
+		        "downstream-ext") != null;
+		final boolean parameterizedTrigger = Hudson.getInstance().getPlugin(
+		        "parameterized-trigger") != null;
+		
+		final List<AbstractProject<?, ?>> projectList = new ArrayList<AbstractProject<?, ?>>(
+		        roots.size());
+		ids = new IdentityHashMap<AbstractProject<?, ?>, Integer>();
+		for (final AbstractProject<?, ?> root : roots) {
+			idOf(root, projectList);
+		}
+		
+		joinOwners = new BitSet();
+		final IntList[] edgeOffsets = new IntList[EDGE_KINDS];
+		final IntList[] edgeTargets = new IntList[EDGE_KINDS];
+		final IntList[] edgeConditions = new IntList[EDGE_KINDS];
+		for (int kind = 0; kind < EDGE_KINDS; kind++) {
+			edgeOffsets[kind] = new IntList(roots.size() + 1);
+			edgeTargets[kind] = new IntList(roots.size());
+			edgeConditions[kind] = new IntList(roots.size());
+		}
+		// Children discovered while scanning are appended to projectList
+		for (int id = 0; id < projectList.size(); id++) {
+			final AbstractProject<?, ?> project = projectList.get(id);
+			for (int kind = 0; kind < EDGE_KINDS; kind++) {
+				edgeOffsets[kind].add(edgeTargets[kind].size());
+			}
+			// Build "normal" Hierarchy
+			final BuildTrigger buildTrigger = project.getPublishersList().get(
+			        BuildTrigger.class);
+			if (buildTrigger != null) {
+				final int condition = thresholdMask(buildTrigger.getThreshold());
+				for (final AbstractProject<?, ?> childProject : buildTrigger
+				        .getChildProjects()) {
+					edgeTargets[BUILD_TRIGGER].add(idOf(childProject,
+					        projectList));
+					edgeConditions[BUILD_TRIGGER].add(condition);
+				}
+			}
+			// Build downstream-ext Plugin Hierarchy
+			if (downstreamExt) {
+				final DownstreamTrigger downstreamTrigger = project
+				        .getPublishersList().get(DownstreamTrigger.class);
+				if (downstreamTrigger != null) {
+					final int condition = downstreamExtMask(downstreamTrigger);
+					for (final AbstractProject<?, ?> childProject : downstreamTrigger
+					        .getChildProjects()) {
+						edgeTargets[DOWNSTREAM_EXT].add(idOf(childProject,
+						        projectList));
+						edgeConditions[DOWNSTREAM_EXT].add(condition);
+					}
+				}
+			}
+			// Build parameterized-trigger
+			if (parameterizedTrigger) {
+				final hudson.plugins.parameterizedtrigger.BuildTrigger parametizedBuildTrigger = project
+				        .getPublishersList()
+				        .get(hudson.plugins.parameterizedtrigger.BuildTrigger.class);
+				if (parametizedBuildTrigger != null) {
+					for (final BuildTriggerConfig config : parametizedBuildTrigger
+					        .getConfigs()) {
+						final int condition = parameterizedMask(config);
+						for (final AbstractProject<?, ?> childProject : Items
+						        .fromNameList(config.getProjects(),
+						                AbstractProject.class)) {
+							edgeTargets[PARAMETERIZED_TRIGGER].add(idOf(
+							        childProject, projectList));
+							edgeConditions[PARAMETERIZED_TRIGGER]
+							        .add(condition);
+						}
+					}
+				}
+			}
+			// Build other join Hierarchy
+			final DiamondJoinTrigger joinTrigger = project.getPublishersList()
+			        .get(DiamondJoinTrigger.class);
+			if (joinTrigger != null) {
+				joinOwners.set(id);
+				// Join projects depend on whole diamond results
+				for (final AbstractProject<?, ?> childProject : joinTrigger
+				        .getAllJoinProjects()) {
+					edgeTargets[DIAMOND_JOIN].add(idOf(childProject,
+					        projectList));
+					edgeConditions[DIAMOND_JOIN].add(ALL_RESULTS);
+				}
+			}
+		}
+		
+		projects = projectList.toArray(new AbstractProject<?, ?>[projectList
+		        .size()]);
+		offsets = new int[EDGE_KINDS][];
+		targets = new int[EDGE_KINDS][];
+		conditions = new int[EDGE_KINDS][];
+		for (int kind = 0; kind < EDGE_KINDS; kind++) {
+			edgeOffsets[kind].add(edgeTargets[kind].size());
+			offsets[kind] = edgeOffsets[kind].toArray();
+			targets[kind] = edgeTargets[kind].toArray();
+			conditions[kind] = edgeConditions[kind].toArray();
+		}
+		
+		// Reverse edges of all kinds, counting sort by target
+		parentOffsets = new int[projects.length + 1];
+		for (int kind = 0; kind < EDGE_KINDS; kind++) {
+			for (final int target : targets[kind]) {
+				parentOffsets[target + 1]++;
+			}
+		}
+		for (int id = 0; id < projects.length; id++) {
+			parentOffsets[id + 1] += parentOffsets[id];
+		}
+		parents = new int[parentOffsets[projects.length]];
+		final int[] parentCounts = new int[projects.length];
+		for (int kind = 0; kind < EDGE_KINDS; kind++) {
+			for (int id = 0; id < projects.length; id++) {
+				for (int index = offsets[kind][id]; index < offsets[kind][id + 1]; index++) {
+					final int target = targets[kind][index];
+					parents[parentOffsets[target] + parentCounts[target]++] = id;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Return condition of an edge that is triggered if upstream result is
+	 * better or equal to a threshold
+	 * 
+	 * @param threshold
+	 *            worst result that triggers edge
+	 * @return edge condition
+	 */
+	private static int thresholdMask(final Result threshold) {
+		if (threshold == null) {
+			return ALL_RESULTS;
+		}
+		int condition = 0;
+		for (final Result result : RESULTS) {
+			if (result.isBetterOrEqualTo(threshold)) {
+				condition |= resultMask(result);
+			}
+		}
+		return condition;
+	}
+	
+	/**
+	 * Return condition of a "downstream-ext" edge
+	 * 
+	 * @param downstreamTrigger
+	 *            trigger of edge
+	 * @return edge condition
+	 */
+	private static int downstreamExtMask(
+	        final DownstreamTrigger downstreamTrigger) {
+		if (downstreamTrigger.getThreshold() == null
+		        || downstreamTrigger.getThresholdStrategy() == null) {
+			return ALL_RESULTS;
+		}
+		int condition = 0;
+		for (final Result result : RESULTS) {
+			if (downstreamTrigger.getThresholdStrategy().evaluate(
+			        downstreamTrigger.getThreshold(), result)) {
+				condition |= resultMask(result);
+			}
+		}
+		return condition;
+	}
+	
+	/**
+	 * Return condition of a "parameterized-trigger" edge
+	 * 
+	 * @param config
+	 *            trigger configuration of edge
+	 * @return edge condition, all results if condition is unknown
+	 */
+	private static int parameterizedMask(final BuildTriggerConfig config) {
+		final ResultCondition resultCondition = config.getCondition();
+		if (resultCondition == null) {
+			return ALL_RESULTS;
+		}
+		switch (resultCondition) {
+		case SUCCESS:
+			return resultMask(Result.SUCCESS);
+		case UNSTABLE:
+			return resultMask(Result.UNSTABLE);
+		case UNSTABLE_OR_BETTER:
+			return resultMask(Result.SUCCESS) | resultMask(Result.UNSTABLE);
+		case FAILED:
+			return resultMask(Result.FAILURE);
+		case ALWAYS:
+			return ALL_RESULTS;
+		default:
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.fine("Unknown condition " + resultCondition
+				        + ", its branches are never pruned");
+			}
+			return ALL_RESULTS;
+		}
+	}
+	
+	/**
+	 * Return condition bit of a build result
+	 * 
+	 * @param result
+	 *            build result
+	 * @return condition bit of result, all results if <code>null</code>
+	 */
+	public static int resultMask(final Result result) {
+		return result == null ? ALL_RESULTS : 1 << result.ordinal;
+	}
+	
+	/**
+	 * Return id of a project, registering it if needed.
+	 * 
+	 * @param project
+	 *            project to register
+	 * @param projectList
+	 *            projects by id
+	 * @return id of project
+	 */
+	private int idOf(final AbstractProject<?, ?> project,
+	        final List<AbstractProject<?, ?>> projectList) {
+		Integer id = ids.get(project);
+		if (id == null) {
+			id = Integer.valueOf(projectList.size());
+			ids.put(project, id);
+			projectList.add(project);
+		}
+		return id.intValue();
+	}
+	
+	/**
+	 * Return snapshot for current dependency graph.
+	 * 
+	 * @return snapshot for current dependency graph
+	 */
+	public static TriggerGraph get() {
+		TriggerGraph snapshot = current;
+		if (isValid(snapshot)) {
+			return snapshot;
+		}
+		synchronized (BUILD_LOCK) {
+			// Another thread may have rebuilt snapshot while we waited
+			snapshot = current;
+			if (!isValid(snapshot)) {
+				snapshot = build(null);
+				current = snapshot;
+			}
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Return if a snapshot matches current dependency graph and project
+	 * configurations
+	 * 
+	 * @param snapshot
+	 *            snapshot to check, may be <code>null</code>
+	 * @return <code>true</code> if snapshot is up to date, <code>false</code>
+	 *         else.
+	 */
+	private static boolean isValid(final TriggerGraph snapshot) {
+		if (snapshot == null || snapshot.generation != GENERATION.get()) {
+			return false;
+		}
+		final DependencyGraph liveGraph = Hudson.getInstance()
+		        .getDependencyGraph();
+		return snapshot.graph == liveGraph
+		        || snapshot.previousGraph == liveGraph
+		        && snapshot.graph == rebuildingGraph;
+	}
+	
+	/**
+	 * Return snapshot for current dependency graph that contains specified
+	 * project.
+	 * 
+	 * @param project
+	 *            project that must be part of snapshot
+	 * @return snapshot that contains project
+	 */
+	public static TriggerGraph get(final AbstractProject<?, ?> project) {
+		if (project == null) {
+			throw new IllegalArgumentException("project == null");
+		}
+		final TriggerGraph snapshot = get();
+		if (snapshot.getId(project) >= 0) {
+			return snapshot;
+		}
+		// Project not reachable from Hudson (i.e. not yet registered), this
+		// snapshot is private to caller
+		return build(project);
+	}
+	
+	/**
+	 * Build a new snapshot, without publishing it.
+	 * 
+	 * @param extraRoot
+	 *            project to include in snapshot even if not registered in
+	 *            Hudson, can be <code>null</code>
+	 * @return built snapshot
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static TriggerGraph build(final AbstractProject<?, ?> extraRoot) {
+		final Hudson hudson = Hudson.getInstance();
+		// Read before projects, so that a concurrent change invalidates it
+		final long generation = GENERATION.get();
+		final DependencyGraph liveGraph = hudson.getDependencyGraph();
+		final DependencyGraph graph;
+		final DependencyGraph previousGraph;
+		if (rebuildingGraph != null && replacedGraph == liveGraph) {
+			// Dependency graph is being rebuilt
+			graph = rebuildingGraph;
+			previousGraph = liveGraph;
+		} else {
+			graph = liveGraph;
+			previousGraph = null;
+		}
+		final List<AbstractProject<?, ?>> roots = new ArrayList<AbstractProject<?, ?>>();
+		for (final AbstractProject project : hudson
+		        .getAllItems(AbstractProject.class)) {
+			roots.add(project);
+		}
+		if (extraRoot != null) {
+			roots.add(extraRoot);
+		}
+		SNAPSHOT_COUNT.incrementAndGet();
+		return new TriggerGraph(graph, previousGraph, generation, roots);
+	}
+	
+	/**
+	 * Drop current snapshot. Must be called when any project configuration is
+	 * changed, or when projects are created, renamed or deleted.
+	 */
+	public static void invalidate() {
+		GENERATION.incrementAndGet();
+		current = null;
+	}
+	
+	/**
+	 * Notify that Hudson dependency graph is being rebuilt. First call for a
+	 * new graph drops current snapshot.
+	 * 
+	 * @param graph
+	 *            dependency graph under construction
+	 */
+	public static void onDependencyGraphRebuild(final DependencyGraph graph) {
+		if (graph == null) {
+			throw new IllegalArgumentException("graph == null");
+		}
+		if (rebuildingGraph != graph) {
+			replacedGraph = Hudson.getInstance().getDependencyGraph();
+			rebuildingGraph = graph;
+			invalidate();
+			REBUILD_COUNT.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Return number of dependency graph rebuilds notified by
+	 * {@link #onDependencyGraphRebuild(DependencyGraph)}. Only rebuilds of a
+	 * graph with at least one {@link DiamondJoinTrigger} are counted.
+	 * 
+	 * @return number of dependency graph rebuilds
+	 */
+	public static long getRebuildCount() {
+		return REBUILD_COUNT.get();
+	}
+	
+	/**
+	 * Return number of snapshots built so far, including private snapshots
+	 * returned by {@link #get(AbstractProject)}.
+	 * 
+	 * @return number of built snapshots
+	 */
+	public static long getSnapshotCount() {
+		return SNAPSHOT_COUNT.get();
+	}
+	
+	/**
+	 * Return number of projects in this snapshot
+	 * 
+	 * @return number of projects in this snapshot
+	 */
+	public int size() {
+		return projects.length;
+	}
+	
+	/**
+	 * Return id of a project
+	 * 
+	 * @param project
+	 *            project to search
+	 * @return id of project, <code>-1</code> if project is not in this
+	 *         snapshot
+	 */
+	public int getId(final AbstractProject<?, ?> project) {
+		final Integer id = ids.get(project);
+		return id == null ? -1 : id.intValue();
+	}
+	
+	/**
+	 * Return project of an id
+	 * 
+	 * @param id
+	 *            project id
+	 * @return project of this id
+	 */
+	public AbstractProject<?, ?> getProject(final int id) {
+		return projects[id];
+	}
+	
+	/**
+	 * Return ids of projects
+	 * 
+	 * @param projectList
+	 *            projects to search
+	 * @return ids of projects, projects that are not in this snapshot are
+	 *         skipped
+	 */
+	@SuppressWarnings("rawtypes")
+	public int[] getIds(final Collection<? extends AbstractProject> projectList) {
+		if (projectList == null) {
+			throw new IllegalArgumentException("projectList == null");
+		}
+		final IntList projectIds = new IntList(projectList.size());
+		for (final AbstractProject<?, ?> project : projectList) {
+			final int id = getId(project);
+			if (id >= 0) {
+				projectIds.add(id);
+			}
+		}
+		return projectIds.toArray();
+	}
+	
+	/**
+	 * Return number of direct children of a project for an edge kind
+	 * 
+	 * @param id
+	 *            project id
+	 * @param kind
+	 *            edge kind
+	 * @return number of direct children
+	 */
+	public int getChildCount(final int id, final int kind) {
+		return offsets[kind][id + 1] - offsets[kind][id];
+	}
+	
+	/**
+	 * Return a direct child of a project for an edge kind
+	 * 
+	 * @param id
+	 *            project id
+	 * @param kind
+	 *            edge kind
+	 * @param index
+	 *            index of child, lower than {@link #getChildCount(int, int)}
+	 * @return id of child
+	 */
+	public int getChild(final int id, final int kind, final int index) {
+		return targets[kind][offsets[kind][id] + index];
+	}
+	
+	/**
+	 * Return if an edge is triggered by an upstream build result
+	 * 
+	 * @param id
+	 *            upstream project id
+	 * @param kind
+	 *            edge kind
+	 * @param index
+	 *            index of child, lower than {@link #getChildCount(int, int)}
+	 * @param result
+	 *            upstream build result
+	 * @return <code>true</code> if child may be triggered,
+	 *         <code>false</code> if it will never be.
+	 */
+	public boolean isTriggered(final int id, final int kind, final int index,
+	        final Result result) {
+		return (conditions[kind][offsets[kind][id] + index] & resultMask(result)) != 0;
+	}
+	
+	/**
+	 * Return number of projects that trigger a project, whatever edge kind
+	 * 
+	 * @param id
+	 *            project id
+	 * @return number of direct parents
+	 */
+	public int getParentCount(final int id) {
+		return parentOffsets[id + 1] - parentOffsets[id];
+	}
+	
+	/**
+	 * Return a project that triggers a project
+	 * 
+	 * @param id
+	 *            project id
+	 * @param index
+	 *            index of parent, lower than {@link #getParentCount(int)}
+	 * @return id of parent
+	 */
+	public int getParent(final int id, final int index) {
+		return parents[parentOffsets[id] + index];
+	}
+	
+	/**
+	 * Return number of edge kinds
+	 * 
+	 * @return number of edge kinds
+	 */
+	public static int getEdgeKinds() {
+		return EDGE_KINDS;
+	}
+	
+	/**
+	 * Find all downstream projects ids for each managed relationship plugins.
+	 * <p>
+	 * Hierarchy is walked in depth-first order, each project is expanded at
+	 * most once so shared subtrees and trigger cycles are processed in linear
+	 * time. Result is memoized while it is recently used.
+	 * 
+	 * @param id
+	 *            root project id
+	 * @param onlyDirectChildrens
+	 *            limit downstream projects to non recursive hierarchy
+	 * @param resolveJoinDependencies
+	 *            flag indicates if diamond join dependencies should be computed
+	 * @return ids of all downstream projects, each project appears once. Must
+	 *         not be modified.
+	 */
+	public int[] getDownstreamHierarchy(final int id,
+	        final boolean onlyDirectChildrens,
+	        final boolean resolveJoinDependencies) {
+		final int index = hierarchyIndex(id, onlyDirectChildrens,
+		        resolveJoinDependencies);
+		int[] hierarchy = hierarchies.get(index);
+		if (hierarchy == null) {
+			hierarchy = hierarchies.putIfAbsent(index,
+			        computeDownstreamHierarchy(id, onlyDirectChildrens,
+			                resolveJoinDependencies));
+		}
+		return hierarchy;
+	}
+	
+	/**
+	 * Return reachability set of a project: bit <code>i</code> is set if
+	 * project <code>i</code> is in downstream hierarchy. Result is memoized
+	 * while it is recently used, so repeated reachability checks are single
+	 * bit tests.
+	 * 
+	 * @param id
+	 *            root project id
+	 * @param onlyDirectChildrens
+	 *            limit downstream projects to non recursive hierarchy
+	 * @param resolveJoinDependencies
+	 *            flag indicates if diamond join dependencies should be computed
+	 * @return reachability set of project. Must not be modified.
+	 */
+	public BitSet getDownstreamSet(final int id,
+	        final boolean onlyDirectChildrens,
+	        final boolean resolveJoinDependencies) {
+		final int index = hierarchyIndex(id, onlyDirectChildrens,
+		        resolveJoinDependencies);
+		BitSet reachable = reachableSets.get(index);
+		if (reachable == null) {
+			reachable = new BitSet(projects.length);
+			for (final int downstreamId : getDownstreamHierarchy(id,
+			        onlyDirectChildrens, resolveJoinDependencies)) {
+				reachable.set(downstreamId);
+			}
+			reachable = reachableSets.putIfAbsent(index, reachable);
+		}
+		return reachable;
+	}
+	
+	/**
+	 * Compute union of reachability sets of many projects.
+	 * 
+	 * @param projectIds
+	 *            root projects ids
+	 * @param includeRoots
+	 *            flag indicates if root projects are part of result
+	 * @param onlyDirectChildrens
+	 *            limit downstream projects to non recursive hierarchy
+	 * @param resolveJoinDependencies
+	 *            flag indicates if diamond join dependencies should be computed
+	 * @return a new set of all projects reachable from any root project
+	 */
+	public BitSet getDownstreamSet(final int[] projectIds,
+	        final boolean includeRoots, final boolean onlyDirectChildrens,
+	        final boolean resolveJoinDependencies) {
+		if (projectIds == null) {
+			throw new IllegalArgumentException("projectIds == null");
+		}
+		final BitSet reachable = new BitSet(projects.length);
+		for (final int id : projectIds) {
+			if (includeRoots) {
+				reachable.set(id);
+			}
+			reachable.or(getDownstreamSet(id, onlyDirectChildrens,
+			        resolveJoinDependencies));
+		}
+		return reachable;
+	}
+	
+	/**
+	 * Return if a project is part of downstream hierarchy of another project.
+	 * 
+	 * @param id
+	 *            root project id
+	 * @param candidate
+	 *            id of project to search
+	 * @param onlyDirectChildrens
+	 *            limit downstream projects to non recursive hierarchy
+	 * @param resolveJoinDependencies
+	 *            flag indicates if diamond join dependencies should be computed
+	 * @return <code>true</code> if candidate is in downstream hierarchy of
+	 *         root project, <code>false</code> else.
+	 */
+	public boolean isInDownstreamHierarchy(final int id, final int candidate,
+	        final boolean onlyDirectChildrens,
+	        final boolean resolveJoinDependencies) {
+		return getDownstreamSet(id, onlyDirectChildrens,
+		        resolveJoinDependencies).get(candidate);
+	}
+	
+	/**
+	 * Return if a project can take part in a diamond, as a project that
+	 * contains a {@link DiamondJoinTrigger} or as one of their downstream
+	 * projects, including join projects and their hierarchy.
+	 * 
+	 * @param project
+	 *            project to check
+	 * @return <code>true</code> if project can take part in a diamond,
+	 *         <code>false</code> else.
+	 */
+	public boolean isDiamondParticipant(final AbstractProject<?, ?> project) {
+		if (project == null) {
+			throw new IllegalArgumentException("project == null");
+		}
+		final int id = getId(project);
+		return id >= 0 && getDiamondParticipants().get(id);
+	}
+	
+	/**
+	 * Return ids of all projects that can take part in a diamond.
+	 * <p>
+	 * Downstream projects are searched through all trigger kinds and through
+	 * Hudson dependency graph, so that dependencies declared by other plugins
+	 * are followed too.
+	 * 
+	 * @return ids of all projects that can take part in a diamond
+	 */
+	@SuppressWarnings("rawtypes")
+	private BitSet getDiamondParticipants() {
+		BitSet participantIds = participants;
+		if (participantIds != null) {
+			return participantIds;
+		}
+		// Dependency graph is only complete once rebuild is done
+		final DependencyGraph liveGraph = Hudson.getInstance()
+		        .getDependencyGraph();
+		final boolean complete = liveGraph == graph;
+		participantIds = (BitSet) joinOwners.clone();
+		final IntList pendingIds = new IntList(joinOwners.cardinality());
+		for (int id = joinOwners.nextSetBit(0); id >= 0; id = joinOwners
+		        .nextSetBit(id + 1)) {
+			pendingIds.add(id);
+		}
+		while (pendingIds.size() > 0) {
+			final int id = pendingIds.get(pendingIds.size() - 1);
+			pendingIds.truncate(pendingIds.size() - 1);
+			for (int kind = 0; kind < EDGE_KINDS; kind++) {
+				for (int index = offsets[kind][id]; index < offsets[kind][id + 1]; index++) {
+					final int childId = targets[kind][index];
+					if (!participantIds.get(childId)) {
+						participantIds.set(childId);
+						pendingIds.add(childId);
+					}
+				}
+			}
+			if (complete) {
+				for (final Object child : liveGraph.getDownstream(projects[id])) {
+					final int childId = getId((AbstractProject) child);
+					if (childId >= 0 && !participantIds.get(childId)) {
+						participantIds.set(childId);
+						pendingIds.add(childId);
+					}
+				}
+			}
+		}
+		if (complete) {
+			participants = participantIds;
+		}
+		return participantIds;
+	}
+	
+	/**
+	 * Return index of a memoized hierarchy
+	 * 
+	 * @param id
+	 *            root project id
+	 * @param onlyDirectChildrens
+	 *            limit downstream projects to non recursive hierarchy
+	 * @param resolveJoinDependencies
+	 *            flag indicates if diamond join dependencies are computed
+	 * @return key in {@link #hierarchies} and {@link #reachableSets}
+	 */
+	private static int hierarchyIndex(final int id,
+	        final boolean onlyDirectChildrens,
+	        final boolean resolveJoinDependencies) {
+		return id * 4 + (onlyDirectChildrens ? 2 : 0)
+		        + (resolveJoinDependencies ? 1 : 0);
+	}
+	
+	/**
+	 * Iterative depth-first walk of downstream hierarchy.
+	 * 
+	 * @param id
+	 *            root project id
+	 * @param onlyDirectChildrens
+	 *            limit downstream projects to non recursive hierarchy
+	 * @param resolveJoinDependencies
+	 *            flag indicates if diamond join dependencies should be computed
+	 * @return ids of all downstream projects in first visit order
+	 */
+	private int[] computeDownstreamHierarchy(final int id,
+	        final boolean onlyDirectChildrens,
+	        final boolean resolveJoinDependencies) {
+		final int lastKind = resolveJoinDependencies ? DIAMOND_JOIN
+		        : PARAMETERIZED_TRIGGER;
+		final boolean[] visited = new boolean[projects.length];
+		final boolean[] expanded = new boolean[projects.length];
+		final IntList hierarchy = new IntList(16);
+		// Stack of (project, kind, child index)
+		final IntList stack = new IntList(48);
+		expanded[id] = true;
+		stack.add(id);
+		stack.add(0);
+		stack.add(0);
+		while (stack.size() > 0) {
+			final int top = stack.size() - 3;
+			final int project = stack.get(top);
+			int kind = stack.get(top + 1);
+			int index = stack.get(top + 2);
+			while (kind <= lastKind && index >= getChildCount(project, kind)) {
+				kind++;
+				index = 0;
+			}
+			if (kind > lastKind) {
+				stack.truncate(top);
+				continue;
+			}
+			stack.set(top + 1, kind);
+			stack.set(top + 2, index + 1);
+			
+			final int child = getChild(project, kind, index);
+			if (!visited[child]) {
+				visited[child] = true;
+				hierarchy.add(child);
+			}
+			// Join projects are always expanded, "normal" children only for
+			// a recursive hierarchy
+			if ((!onlyDirectChildrens || kind == DIAMOND_JOIN)
+			        && !expanded[child]) {
+				expanded[child] = true;
+				stack.add(child);
+				stack.add(0);
+				stack.add(0);
+			}
+		}
+		return hierarchy.size() == 0 ? NO_IDS : hierarchy.toArray();
+	}
+	
+	/**
+	 * Return an unmodifiable view of projects ids
+	 * 
+	 * @param projectIds
+	 *            projects ids, must not be modified
+	 * @return an unmodifiable list of projects
+	 */
+	public List<AbstractProject<?, ?>> asProjectList(final int[] projectIds) {
+		if (projectIds == null) {
+			throw new IllegalArgumentException("projectIds == null");
+		}
+		return new ProjectList(projects, projectIds);
+	}
+	
+	/**
+	 * Bounded memo of values by key, least recently used values are dropped
+	 * first.
+	 * 
+	 * @param <V>
+	 *            value type
+	 */
+	private static final class Memo<V> {
+		
+		/** Values by key, in access order */
+		private final Map<Integer, V> values;
+		
+		/**
+		 * Create a new Memo
+		 * 
+		 * @param capacity
+		 *            maximum number of values
+		 */
+		Memo(final int capacity) {
+			values = new LinkedHashMap<Integer, V>(16, 0.75f, true) {
+				
+				/** Serial version UID */
+				private static final long serialVersionUID = 1L;
+				
+				/*
+				 * (non-Javadoc)
+				 * @see java.util.LinkedHashMap#removeEldestEntry(java.util.Map.Entry)
+				 */
+				@Override
+				protected boolean removeEldestEntry(
+				        final Map.Entry<Integer, V> eldest) {
+					return size() > capacity;
+				}
+			};
+		}
+		
+		/**
+		 * Return a memoized value
+		 * 
+		 * @param key
+		 *            key of value
+		 * @return memoized value, <code>null</code> if none
+		 */
+		synchronized V get(final int key) {
+			return values.get(Integer.valueOf(key));
+		}
+		
+		/**
+		 * Memoize a value unless another one was memoized meanwhile
+		 * 
+		 * @param key
+		 *            key of value
+		 * @param value
+		 *            computed value
+		 * @return memoized value
+		 */
+		synchronized V putIfAbsent(final int key, final V value) {
+			final Integer boxedKey = Integer.valueOf(key);
+			final V memoized = values.get(boxedKey);
+			if (memoized != null) {
+				return memoized;
+			}
+			values.put(boxedKey, value);
+			return value;
+		}
+	}
+	
+	/**
+	 * Unmodifiable list of projects backed by an id array.
+	 */
+	private static final class ProjectList extends
+	        AbstractList<AbstractProject<?, ?>> implements RandomAccess {
+		
+		/** Projects by id */
+		private final AbstractProject<?, ?>[] projects;
+		/** Listed ids */
+		private final int[] projectIds;
+		
+		/**
+		 * Create a new ProjectList
+		 * 
+		 * @param projects
+		 *            projects by id
+		 * @param projectIds
+		 *            listed ids
+		 */
+		ProjectList(final AbstractProject<?, ?>[] projects,
+		        final int[] projectIds) {
+			this.projects = projects;
+			this.projectIds = projectIds;
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.AbstractList#get(int)
+		 */
+		@Override
+		public AbstractProject<?, ?> get(final int index) {
+			return projects[projectIds[index]];
+		}
+		
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.AbstractCollection#size()
+		 */
+		@Override
+		public int size() {
+			return projectIds.length;
+		}
+	}
+	
+	/**
+	 * Growable array of primitive int.
+	 */
+	static final class IntList {
+		
+		/** Values */
+		private int[] values;
+		/** Number of values */
+		private int size;
+		
+		/**
+		 * Create a new IntList
+		 * 
+		 * @param capacity
+		 *            initial capacity
+		 */
+		IntList(final int capacity) {
+			values = new int[Math.max(capacity, 4)];
+		}
+		
+		/**
+		 * Append a value
+		 * 
+		 * @param value
+		 *            value to append
+		 */
+		void add(final int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+		
+		/**
+		 * Return a value
+		 * 
+		 * @param index
+		 *            index of value
+		 * @return value at index
+		 */
+		int get(final int index) {
+			return values[index];
+		}
+		
+		/**
+		 * Replace a value
+		 * 
+		 * @param index
+		 *            index of value
+		 * @param value
+		 *            new value
+		 */
+		void set(final int index, final int value) {
+			values[index] = value;
+		}
+		
+		/**
+		 * Return number of values
+		 * 
+		 * @return number of values
+		 */
+		int size() {
+			return size;
+		}
+		
+		/**
+		 * Drop all values from index
+		 * 
+		 * @param newSize
+		 *            new number of values
+		 */
+		void truncate(final int newSize) {
+			size = newSize;
+		}
+		
+		/**
+		 * Return a copy of values
+		 * 
+		 * @return a copy of values
+		 */
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
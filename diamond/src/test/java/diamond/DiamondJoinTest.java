@@ -1,16 +1,29 @@
 package diamond;
 
+import hudson.model.DependencyGraph;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Queue;
+import hudson.model.Result;
+import hudson.model.Cause.UserCause;
+import hudson.plugins.parameterizedtrigger.BuildTriggerConfig;
+import hudson.plugins.parameterizedtrigger.ResultCondition;
+import hudson.tasks.Publisher;
 import hudson.util.FormValidation;
 
 import java.io.IOException;
+import java.net.URL;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
 import org.apache.commons.collections.CollectionUtils;
 
+import com.gargoylesoftware.htmlunit.HttpMethod;
+import com.gargoylesoftware.htmlunit.WebRequestSettings;
+
+import diamond.util.TriggerGraph;
+
 public class DiamondJoinTest extends DiamondJointestCase {
 	
 	public void testBasicValidation() throws IOException {
@@ -67,6 +80,113 @@ public class DiamondJoinTest extends DiamondJointestCase {
 		for (final FreeStyleBuild joinBuild : joinBuilds) {
 			assertInSequence(masterBuild, joinBuild);
 		}
+		// Join tasks output is linked from master build
+		final JoinLogAction joinLogAction = masterBuild
+		        .getAction(JoinLogAction.class);
+		assertNotNull(joinLogAction);
+		assertSame(masterBuild, joinLogAction.getBuild());
+	}
+	
+	/**
+	 * Join projects are resolved once, then again when items change.
+	 */
+	public void testJoinProjectsResolution() throws Exception {
+		final DiamondJoinTrigger trigger = new DiamondJoinTrigger(
+		        Collections.<Publisher> emptyList(), "later,"
+		                + joinProjects.get(0).getName(), false, false);
+		assertEquals(Arrays.asList(joinProjects.get(0)),
+		        trigger.getJoinProjects());
+		assertSame(trigger.getJoinProjects(), trigger.getJoinProjects());
+		
+		final FreeStyleProject later = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("later");
+		assertEquals(Arrays.asList(later, joinProjects.get(0)),
+		        trigger.getJoinProjects());
+		
+		later.delete();
+		assertEquals(Arrays.asList(joinProjects.get(0)),
+		        trigger.getAllJoinProjects());
+	}
+	
+	/**
+	 * Reconfigured post-join actions change join plan fingerprint, even if
+	 * their kinds are unchanged.
+	 */
+	public void testPostJoinConfigurationFingerprint() throws Exception {
+		final String joinProjectName = joinProjects.get(0).getName();
+		final JoinPlan plan = JoinPlan.get(new DiamondJoinTrigger(
+		        newPostJoinActions("first"), joinProjectName, false, false),
+		        masterProject);
+		final JoinPlan samePlan = JoinPlan.get(new DiamondJoinTrigger(
+		        newPostJoinActions("first"), joinProjectName, false, false),
+		        masterProject);
+		final JoinPlan otherPlan = JoinPlan.get(new DiamondJoinTrigger(
+		        newPostJoinActions("second"), joinProjectName, false, false),
+		        masterProject);
+		assertEquals(plan.getFingerprint(), samePlan.getFingerprint());
+		assertFalse(plan.getFingerprint().equals(otherPlan.getFingerprint()));
+	}
+	
+	private static List<Publisher> newPostJoinActions(final String projectName) {
+		return Collections
+		        .<Publisher> singletonList(new hudson.plugins.parameterizedtrigger.BuildTrigger(
+		                new BuildTriggerConfig(projectName,
+		                        ResultCondition.SUCCESS)));
+	}
+	
+	/**
+	 * Renamed and deleted join projects are updated in triggers that
+	 * reference them only.
+	 */
+	public void testJoinProjectRenamedAndDeleted() throws Exception {
+		final FreeStyleProject other = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("other");
+		masterProject.getPublishersList().add(
+		        new DiamondJoinTrigger(Collections.<Publisher> emptyList(),
+		                "other," + joinProjects.get(0).getName(), false, false));
+		masterProject.save();
+		
+		other.renameTo("renamed");
+		final DiamondJoinTrigger renamedTrigger = masterProject
+		        .getPublishersList().get(DiamondJoinTrigger.class);
+		assertEquals("renamed," + joinProjects.get(0).getName(),
+		        renamedTrigger.getJoinProjectsValue());
+		assertEquals(Arrays.asList(masterProject),
+		        JoinTriggerIndex.getOwners("renamed"));
+		assertTrue(JoinTriggerIndex.getOwners("other").isEmpty());
+		
+		other.delete();
+		assertEquals(joinProjects.get(0).getName(), masterProject
+		        .getPublishersList().get(DiamondJoinTrigger.class)
+		        .getJoinProjectsValue());
+		assertTrue(JoinTriggerIndex.getOwners("renamed").isEmpty());
+	}
+	
+	/**
+	 * Projects saved during a batch are saved once, when outermost batch
+	 * ends.
+	 */
+	public void testBatchedSaves() throws Exception {
+		final FreeStyleProject other = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("other");
+		// Only graphs with a join trigger are counted
+		ProjectsUtils.addJoinTriggerTo(masterProject, joinProjects.get(0));
+		hudson.rebuildDependencyGraph();
+		final DependencyGraph graph = hudson.getDependencyGraph();
+		final long rebuilds = TriggerGraph.getRebuildCount();
+		JoinConfigSaver.begin();
+		JoinConfigSaver.save(masterProject);
+		JoinConfigSaver.begin();
+		JoinConfigSaver.save(other);
+		JoinConfigSaver.save(masterProject);
+		assertEquals(0, JoinConfigSaver.end());
+		// Nested batch neither saves nor rebuilds
+		assertSame(graph, hudson.getDependencyGraph());
+		assertEquals(rebuilds, TriggerGraph.getRebuildCount());
+		assertEquals(2, JoinConfigSaver.end());
+		// Outermost batch rebuilds graph once
+		assertNotSame(graph, hudson.getDependencyGraph());
+		assertEquals(rebuilds + 1, TriggerGraph.getRebuildCount());
 	}
 	
 	/**
@@ -85,6 +205,34 @@ public class DiamondJoinTest extends DiamondJointestCase {
 		        ProjectsUtils.getUniqueBuilds(joinProjects));
 	}
 	
+	/**
+	 * <code>master -> inter0 (unstable)<br/>
+	 * 						-> join (even if unstable)
+	 * </code>
+	 */
+	public void testJoinBuildCause() throws Exception {
+		final FreeStyleProject inter = ProjectsUtils
+		        .createUnstableFreeStyleProject();
+		ProjectsUtils.addChildsProjectTo(masterProject, inter);
+		masterProject.getPublishersList().add(
+		        new DiamondJoinTrigger(Collections.<Publisher> emptyList(),
+		                joinProjects.get(0).getName(), true, false));
+		hudson.rebuildDependencyGraph();
+		
+		final FreeStyleBuild masterBuild = masterProject.scheduleBuild2(0,
+		        new UserCause()).get();
+		waitUntilNoActivity();
+		
+		final DiamondJoinCause cause = ProjectsUtils.getUniqueBuild(
+		        joinProjects.get(0)).getCause(DiamondJoinCause.class);
+		assertNotNull(cause);
+		assertEquals(masterProject.getName(), cause.getUpstreamProject());
+		assertEquals(masterBuild.getNumber(), cause.getUpstreamBuild());
+		assertEquals(Result.UNSTABLE, cause.getJoinResult());
+		assertEquals(1, cause.getDownstreamBuildCount());
+		assertEquals(0, cause.getSkippedProjectCount());
+	}
+	
 	/**
 	 * <code>
 	 *  master 	-> inter0<br/>
@@ -453,6 +601,39 @@ public class DiamondJoinTest extends DiamondJointestCase {
 		        ProjectsUtils.getUniqueBuilds(joinProjects));
 	}
 	
+	/**
+	 * <code>
+	 *  up0 	-> shared (build start here)<br/>
+	 *  up1 	-> shared<br/>
+	 *  			-> join0 (same join on up0 and up1)
+	 *  </code>
+	 */
+	public void testSameJoinOnTwoUpstreamProjects() throws Exception {
+		final List<FreeStyleProject> ups = ProjectsUtils
+		        .createFreeStyleProjects("up", 2);
+		final FreeStyleProject shared = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("shared");
+		for (final FreeStyleProject up : ups) {
+			ProjectsUtils.addChildsProjectTo(up, shared);
+			ProjectsUtils.addJoinTriggerTo(up, true, joinProjects.get(0));
+		}
+		hudson.rebuildDependencyGraph();
+		
+		final FreeStyleBuild build = shared.scheduleBuild2(0, new UserCause())
+		        .get();
+		waitUntilNoActivity();
+		// Each upstream trigger keeps its own join
+		assertEquals(2, build.getActions(DiamondJoinAction.class).size());
+		assertNotNull(joinProjects.get(0).getLastBuild());
+		// Resolved joins only keep their names and result
+		for (final DiamondJoinAction joinAction : build
+		        .getActions(DiamondJoinAction.class)) {
+			assertTrue(joinAction.isCompleted());
+			assertTrue(joinAction.getPendingDownstreamProjects().isEmpty());
+			assertEquals(Result.SUCCESS, joinAction.getResult());
+		}
+	}
+	
 	public void testSlave() throws Exception {
 		// Do it manually due to tearDown error ... dunno why
 		// final List<FreeStyleProject> inter = ProjectsUtils
@@ -562,4 +743,222 @@ public class DiamondJoinTest extends DiamondJointestCase {
 		        ProjectsUtils.getUniqueBuilds(joinProjects));
 	}
 	
+	/**
+	 * <code>
+	 *  master 	-> inter0 (unstable)<br/>
+	 *  			-> inter0.0 (never triggered)<br/>
+	 *  		-> inter1<br/>
+	 *  					 -> join (even if unstable)
+	 * </code>
+	 */
+	public void testUntriggeredBranchIsPruned() throws Exception {
+		final FreeStyleProject unstableProject = ProjectsUtils
+		        .createUnstableFreeStyleProject();
+		final FreeStyleProject stableProject = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("inter1");
+		final FreeStyleProject untriggeredProject = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("inter0.0");
+		final List<FreeStyleProject> inters = Arrays.asList(unstableProject,
+		        stableProject);
+		
+		ProjectsUtils.addChildsProjectTo(masterProject, inters);
+		ProjectsUtils.addChildsProjectTo(unstableProject, untriggeredProject);
+		masterProject.getPublishersList().add(
+		        new DiamondJoinTrigger(Collections.<Publisher> emptyList(),
+		                joinProjects.get(0).getName(), true, false));
+		hudson.rebuildDependencyGraph();
+		
+		final FreeStyleBuild masterBuild = masterProject.scheduleBuild2(0,
+		        new UserCause()).get();
+		waitUntilNoActivity();
+		
+		assertNotBuilt(untriggeredProject);
+		assertBuildStatus(Result.UNSTABLE,
+		        ProjectsUtils.getUniqueBuild(unstableProject));
+		assertInSequence(masterBuild, ProjectsUtils.getUniqueBuilds(inters),
+		        ProjectsUtils.getUniqueBuilds(joinProjects));
+	}
+	
+	/**
+	 * <code>
+	 *  master 	-> inter0 (falling)<br/>
+	 *  		-> inter1 (never started)<br/>
+	 *  					 -> join (fail fast)
+	 * </code>
+	 */
+	public void testFailFastAbortsRemainingBranches() throws Exception {
+		final FreeStyleProject failingProject = ProjectsUtils
+		        .createFailingFreeStyleProject();
+		final FreeStyleProject blockedProject = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("inter1");
+		blockedProject.setAssignedLabel(hudson.getLabel("nonexistent"));
+		
+		ProjectsUtils.addChildsProjectTo(masterProject,
+		        Arrays.asList(failingProject, blockedProject));
+		final DiamondJoinTrigger trigger = new DiamondJoinTrigger(
+		        Collections.<Publisher> emptyList(), joinProjects.get(0)
+		                .getName(), false, false);
+		trigger.setFailFast(true);
+		trigger.setAbortRemaining(true);
+		masterProject.getPublishersList().add(trigger);
+		hudson.rebuildDependencyGraph();
+		
+		masterProject.scheduleBuild2(0, new UserCause()).get();
+		// Blocked branch would keep queue busy if not dequeued
+		waitUntilNoActivity();
+		
+		assertBuildStatus(Result.FAILURE,
+		        ProjectsUtils.getUniqueBuild(failingProject));
+		assertNotBuilt(blockedProject);
+		assertNotBuilt(joinProjects);
+		assertTrue(DiamondJoinRegistry.getActiveJoinActions().isEmpty());
+	}
+	
+	/**
+	 * <code>
+	 *  master 	-> inter0<br/>
+	 *  		-> ...<br/>
+	 *  		-> inter48<br/>
+	 *  		-> blocked (cancelled from queue)<br/>
+	 *  					 -> join
+	 * </code>
+	 */
+	public void testCancelledQueuedBranchSettlesJoin() throws Exception {
+		final List<FreeStyleProject> inters = ProjectsUtils
+		        .createFreeStyleProjects("inter", 49);
+		final FreeStyleProject blockedProject = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("blocked");
+		blockedProject.setAssignedLabel(hudson.getLabel("nonexistent"));
+		inters.add(blockedProject);
+		
+		ProjectsUtils.addChildsProjectTo(masterProject, inters);
+		final DiamondJoinTrigger trigger = new DiamondJoinTrigger(
+		        Collections.<Publisher> emptyList(), joinProjects.get(0)
+		                .getName(), false, false);
+		trigger.setCancelledResult(Result.SUCCESS);
+		masterProject.getPublishersList().add(trigger);
+		hudson.rebuildDependencyGraph();
+		
+		masterProject.scheduleBuild2(0, new UserCause()).get();
+		final Queue.Item blockedItem = hudson.getQueue().getItem(
+		        blockedProject);
+		assertNotNull(blockedItem);
+		assertTrue(hudson.getQueue().cancel(blockedItem));
+		waitUntilNoActivity();
+		
+		// Dropped build is settled once it was missing at two checks, the
+		// periodic watcher may run some of them
+		final JoinQueueWatcher watcher = new JoinQueueWatcher();
+		for (int check = 0; check < 2
+		        && !DiamondJoinRegistry.getActiveJoinActions().isEmpty(); check++) {
+			watcher.doRun();
+		}
+		waitUntilNoActivity();
+		
+		assertNotBuilt(blockedProject);
+		assertEquals(1, joinProjects.get(0).getBuilds().size());
+		assertTrue(DiamondJoinRegistry.getActiveJoinActions().isEmpty());
+	}
+	
+	/**
+	 * <code>
+	 *  master 	-> inter0<br/>
+	 *  		-> inter1 (stalled)<br/>
+	 *  					 -> join (timeout, fire)
+	 * </code>
+	 */
+	public void testTimedOutJoinFires() throws Exception {
+		final FreeStyleProject stableProject = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("inter0");
+		final FreeStyleProject stalledProject = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("inter1");
+		stalledProject.setAssignedLabel(hudson.getLabel("nonexistent"));
+		
+		ProjectsUtils.addChildsProjectTo(masterProject,
+		        Arrays.asList(stableProject, stalledProject));
+		final DiamondJoinTrigger trigger = new DiamondJoinTrigger(
+		        Collections.<Publisher> emptyList(), joinProjects.get(0)
+		                .getName(), false, false);
+		trigger.setJoinTimeout(1);
+		trigger.setTimeoutPolicy(DiamondJoinTrigger.TimeoutPolicy.FIRE);
+		masterProject.getPublishersList().add(trigger);
+		hudson.rebuildDependencyGraph();
+		
+		masterProject.scheduleBuild2(0, new UserCause()).get();
+		final JoinWatchdog watchdog = new JoinWatchdog();
+		assertEquals(0, watchdog.expireJoins(System.currentTimeMillis()));
+		final long expired = JoinWatchdog.getExpiredCount();
+		assertEquals(1,
+		        watchdog.expireJoins(System.currentTimeMillis() + 60 * 1000L));
+		assertEquals(expired + 1, JoinWatchdog.getExpiredCount());
+		assertTrue(DiamondJoinRegistry.getActiveJoinActions().isEmpty());
+		
+		hudson.getQueue().cancel(stalledProject);
+		waitUntilNoActivity();
+		assertNotBuilt(stalledProject);
+		assertEquals(1, joinProjects.get(0).getBuilds().size());
+	}
+	
+	/**
+	 * Triggers of many jobs are configured by one request.
+	 */
+	public void testBulkConfiguration() throws Exception {
+		final List<FreeStyleProject> inters = ProjectsUtils
+		        .createFreeStyleProjects("inter", 2);
+		ProjectsUtils.addJoinTriggerTo(inters.get(1), joinProjects.get(0));
+		inters.get(1).save();
+		
+		final WebRequestSettings request = new WebRequestSettings(new URL(
+		        getURL(), "diamond-joins/configure"), HttpMethod.POST);
+		request.setRequestBody("{\"jobs\":[{\"job\":\"masterproject\","
+		        + "\"joinProjects\":\"join0\","
+		        + "\"evenIfDownstreamUnstable\":true,"
+		        + "\"failFast\":true},"
+		        + "{\"job\":\"" + inters.get(0).getName() + "\","
+		        + "\"joinProjects\":\"join0\"},"
+		        + "{\"job\":\"" + inters.get(1).getName() + "\","
+		        + "\"remove\":true}]}");
+		final long rebuilds = TriggerGraph.getRebuildCount();
+		final String response = new WebClient().getPage(request)
+		        .getWebResponse().getContentAsString();
+		
+		// Each job is saved once and graph is rebuilt once
+		assertTrue(response, response.indexOf("\"saved\":3") >= 0);
+		assertEquals(rebuilds + 1, TriggerGraph.getRebuildCount());
+		
+		final DiamondJoinTrigger trigger = masterProject.getPublishersList()
+		        .get(DiamondJoinTrigger.class);
+		assertEquals("join0", trigger.getJoinProjectsValue());
+		assertEquals(Result.UNSTABLE, trigger.getThreshold());
+		assertTrue(trigger.isFailFast());
+		assertNotNull(inters.get(0).getPublishersList()
+		        .get(DiamondJoinTrigger.class));
+		assertNull(inters.get(1).getPublishersList()
+		        .get(DiamondJoinTrigger.class));
+	}
+	
+	/**
+	 * Join projects completion follows created, renamed and deleted jobs.
+	 */
+	public void testAutoCompleteJoinProjects() throws Exception {
+		final List<FreeStyleProject> inters = ProjectsUtils
+		        .createFreeStyleProjects("inter", 3);
+		final DiamondJoinTrigger.DescriptorImpl descriptor = hudson
+		        .getDescriptorByType(DiamondJoinTrigger.DescriptorImpl.class);
+		assertEquals(Arrays.asList("inter0", "inter1", "inter2"), descriptor
+		        .doAutoCompleteJoinProjects("inter").getValues());
+		
+		inters.get(1).renameTo("other");
+		inters.get(2).delete();
+		assertEquals(Arrays.asList("inter0"), descriptor
+		        .doAutoCompleteJoinProjects("inter").getValues());
+		assertEquals(Arrays.asList("other"), descriptor
+		        .doAutoCompleteJoinProjects("ot").getValues());
+		assertEquals(2, JobNameIndex.complete("", 2).size());
+		
+		// Matrix configurations are not join project candidates
+		createMatrixProject("matrix");
+		assertEquals(Arrays.asList("matrix"), descriptor
+		        .doAutoCompleteJoinProjects("matrix").getValues());
+	}
 }
@@ -78,6 +78,21 @@ public abstract class DiamondJointestCase extends HudsonTestCase {
 		        .createFreeStyleProjectWithNoQuietPeriod("join0"));
 	}
 	
+	/*
+	 * Join tasks run asynchronously : wait for them, then for the builds
+	 * they scheduled.
+	 */
+	@Override
+	public void waitUntilNoActivityUpTo(final int timeout) throws Exception {
+		super.waitUntilNoActivityUpTo(timeout);
+		while (JoinDispatcher.getPendingCount() > 0) {
+			if (!JoinDispatcher.awaitIdle(timeout)) {
+				fail("Join tasks still pending after " + timeout + "ms");
+			}
+			super.waitUntilNoActivityUpTo(timeout);
+		}
+	}
+	
 	protected FreeStyleBuild build(final FreeStyleProject buildStartProject)
 	        throws Exception {
 		return build(buildStartProject, false);
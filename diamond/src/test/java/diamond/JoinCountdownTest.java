@@ -0,0 +1,132 @@
+package diamond;
+
+import hudson.model.Result;
+
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class JoinCountdownTest extends TestCase {
+	
+	/** Number of concurrent downstream completions */
+	private static final int COMPLETIONS = 300;
+	
+	/**
+	 * 300 downstream projects complete concurrently, join must fire once
+	 * with combined result.
+	 */
+	public void testConcurrentCompletionsJoinOnce() throws Exception {
+		final BitSet pendingProjects = new BitSet(COMPLETIONS);
+		pendingProjects.set(0, COMPLETIONS);
+		final JoinCountdown countdown = new JoinCountdown(pendingProjects,
+		        COMPLETIONS);
+		assertEquals(COMPLETIONS, countdown.getRemaining());
+		
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(COMPLETIONS);
+		final AtomicInteger joins = new AtomicInteger();
+		for (int i = 0; i < COMPLETIONS; i++) {
+			final int projectId = i;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						countdown.complete(projectId,
+						        projectId == 42 ? Result.UNSTABLE : Result.SUCCESS);
+						// Duplicate completion must be ignored
+						countdown.complete(projectId, Result.FAILURE);
+						if (countdown.tryJoin()) {
+							joins.incrementAndGet();
+						}
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		start.countDown();
+		done.await();
+		
+		assertEquals(1, joins.get());
+		assertTrue(countdown.isJoined());
+		assertEquals(0, countdown.getRemaining());
+		assertEquals(Result.UNSTABLE, countdown.getResult());
+		assertTrue(countdown.getPendingProjects().isEmpty());
+	}
+	
+	public void testAddPendingProject() throws Exception {
+		final BitSet pendingProjects = new BitSet();
+		pendingProjects.set(1);
+		final JoinCountdown countdown = new JoinCountdown(pendingProjects, 130);
+		assertTrue(countdown.add(129));
+		assertFalse(countdown.add(129));
+		assertFalse(countdown.add(130));
+		assertEquals(2, countdown.getRemaining());
+		
+		assertTrue(countdown.complete(1, Result.SUCCESS));
+		assertFalse(countdown.tryJoin());
+		assertTrue(countdown.complete(129, Result.SUCCESS));
+		assertTrue(countdown.tryJoin());
+		assertFalse(countdown.tryJoin());
+	}
+	
+	/**
+	 * Only tracked projects are counted, whatever their ids.
+	 */
+	public void testUntrackedProjects() throws Exception {
+		final BitSet pendingProjects = new BitSet();
+		pendingProjects.set(5);
+		pendingProjects.set(70);
+		final JoinCountdown countdown = new JoinCountdown(new int[] { 3, 70,
+		        1000 }, pendingProjects, Result.SUCCESS);
+		assertEquals(1, countdown.getRemaining());
+		assertFalse(countdown.isPending(5));
+		assertFalse(countdown.add(5));
+		assertTrue(countdown.add(1000));
+		
+		countdown.started(4);
+		assertEquals(0, countdown.getRunning(4));
+		countdown.started(1000);
+		assertEquals(1, countdown.getRunning(1000));
+		
+		final BitSet expected = new BitSet();
+		expected.set(70);
+		expected.set(1000);
+		assertEquals(expected, countdown.getPendingProjects());
+		assertTrue(countdown.complete(70, Result.SUCCESS));
+		assertFalse(countdown.complete(5, Result.FAILURE));
+		assertEquals(0, countdown.finished(1000));
+		assertTrue(countdown.complete(1000, Result.UNSTABLE));
+		assertTrue(countdown.tryJoin());
+		assertEquals(Result.UNSTABLE, countdown.getResult());
+	}
+	
+	/**
+	 * A project with two running builds completes with the last one, with
+	 * results of both.
+	 */
+	public void testConcurrentBuildsOfSameProject() throws Exception {
+		final BitSet pendingProjects = new BitSet();
+		pendingProjects.set(3);
+		final JoinCountdown countdown = new JoinCountdown(pendingProjects, 4);
+		countdown.started(3);
+		countdown.started(3);
+		
+		assertEquals(1, countdown.finished(3));
+		countdown.combine(Result.UNSTABLE);
+		assertTrue(countdown.isPending(3));
+		assertFalse(countdown.tryJoin());
+		
+		assertEquals(0, countdown.finished(3));
+		assertTrue(countdown.complete(3, Result.SUCCESS));
+		assertTrue(countdown.tryJoin());
+		assertEquals(Result.UNSTABLE, countdown.getResult());
+		// Uncounted builds never go negative
+		assertEquals(0, countdown.finished(3));
+	}
+}
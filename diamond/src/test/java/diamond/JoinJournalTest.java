@@ -0,0 +1,125 @@
+package diamond;
+
+import hudson.Util;
+import hudson.model.Result;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class JoinJournalTest extends TestCase {
+	
+	private File directory;
+	
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		directory = Util.createTempDir();
+	}
+	
+	@Override
+	protected void tearDown() throws Exception {
+		Util.deleteRecursive(directory);
+		super.tearDown();
+	}
+	
+	private static JoinJournal.Entry newEntry(final String key) {
+		return new JoinJournal.Entry(key, "master", "master", 1, 1000L,
+		        Arrays.asList("int 1", "int,2", "join"),
+		        Collections.<String> emptySet(), Result.SUCCESS);
+	}
+	
+	private JoinJournal reopen(final JoinJournal journal) {
+		journal.close();
+		final JoinJournal reopened = new JoinJournal(directory);
+		reopened.load();
+		return reopened;
+	}
+	
+	/**
+	 * All transitions are replayed after restart.
+	 */
+	public void testReplay() throws Exception {
+		JoinJournal journal = new JoinJournal(directory);
+		journal.created(newEntry("master#1|join"));
+		journal.created(newEntry("master#2|join"));
+		journal.waiting("master#1|join", "nested");
+		journal.branchCompleted("master#1|join", "int 1", "int 1#3",
+		        Result.UNSTABLE);
+		journal.branchCompleted("master#1|join", "int,2", "int,2#4",
+		        Result.SUCCESS);
+		journal.joined("master#2|join");
+		// Unknown joins are not recorded
+		journal.waiting("unknown", "nested");
+		
+		journal = reopen(journal);
+		final List<JoinJournal.Entry> entries = journal.getEntries();
+		assertEquals(1, entries.size());
+		final JoinJournal.Entry entry = entries.get(0);
+		assertEquals("master#1|join", entry.getKey());
+		assertEquals(1, entry.getBuildNumber());
+		assertEquals(1000L, entry.getStartTime());
+		assertEquals(Result.UNSTABLE, entry.getResult());
+		assertEquals(Arrays.asList("join", "nested"),
+		        Arrays.asList(entry.getPendingProjects().toArray()));
+		assertEquals(Arrays.asList("int 1#3", "int,2#4"),
+		        Arrays.asList(entry.getBuildKeys().toArray()));
+		journal.close();
+	}
+	
+	/**
+	 * Compaction keeps active joins only, replaying an old journal over a
+	 * snapshot gives same state.
+	 */
+	public void testCompaction() throws Exception {
+		JoinJournal journal = new JoinJournal(directory);
+		journal.created(newEntry("master#1|join"));
+		journal.branchCompleted("master#1|join", "join", "join#1",
+		        Result.FAILURE);
+		journal.created(newEntry("master#2|join"));
+		journal.joined("master#2|join");
+		// Records are written by journal writer thread
+		assertTrue(journal.flush());
+		final File journalFile = new File(directory, JoinJournal.JOURNAL_FILE);
+		final byte[] records = Util.loadFile(journalFile).getBytes("UTF-8");
+		
+		journal.compact();
+		assertEquals(0, journalFile.length());
+		
+		// Crash between snapshot write and journal truncation
+		final OutputStream out = new FileOutputStream(journalFile);
+		out.write(records);
+		out.close();
+		
+		journal = reopen(journal);
+		final List<JoinJournal.Entry> entries = journal.getEntries();
+		assertEquals(1, entries.size());
+		assertEquals(Result.FAILURE, entries.get(0).getResult());
+		assertEquals(2, entries.get(0).getPendingProjects().size());
+		journal.close();
+	}
+	
+	/**
+	 * A record truncated by a crash is ignored.
+	 */
+	public void testTruncatedRecord() throws Exception {
+		JoinJournal journal = new JoinJournal(directory);
+		journal.created(newEntry("master#1|join"));
+		journal.close();
+		
+		final OutputStream out = new FileOutputStream(new File(directory,
+		        JoinJournal.JOURNAL_FILE), true);
+		out.write("B master%231%7Cjoin int+1 int+1%23".getBytes("UTF-8"));
+		out.close();
+		
+		journal = reopen(journal);
+		assertEquals(3, journal.getEntries().get(0).getPendingProjects()
+		        .size());
+		journal.close();
+	}
+}
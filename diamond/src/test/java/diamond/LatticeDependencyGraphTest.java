@@ -0,0 +1,100 @@
+package diamond;
+
+import hudson.model.AbstractProject;
+import hudson.model.FreeStyleProject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import diamond.util.TriggerGraph;
+
+public class LatticeDependencyGraphTest extends DiamondJointestCase {
+	
+	/**
+	 * <code>
+	 *  master 	-> inter0.0 .. inter0.2<br/>
+	 *  			-> inter1.0 .. inter1.2<br/>
+	 *  				-> ... (10 levels, each project triggers next level)<br/>
+	 *  					-> join0
+	 *  </code>
+	 */
+	public void testLatticeDependencyGraphConstruction() throws Exception {
+		final List<FreeStyleProject> allInters = new ArrayList<FreeStyleProject>();
+		List<FreeStyleProject> previousLevel = Arrays.asList(masterProject);
+		for (int level = 0; level < 10; level++) {
+			final List<FreeStyleProject> currentLevel = ProjectsUtils
+			        .createFreeStyleProjects("inter" + level + ".", 3);
+			for (final FreeStyleProject project : previousLevel) {
+				ProjectsUtils.addChildsProjectTo(project, currentLevel);
+			}
+			allInters.addAll(currentLevel);
+			previousLevel = currentLevel;
+		}
+		ProjectsUtils.addJoinTriggerTo(masterProject,
+		        joinProjects.toArray(new FreeStyleProject[joinProjects.size()]));
+		
+		final TriggerGraph previous = TriggerGraph.get();
+		final long rebuildCount = TriggerGraph.getRebuildCount();
+		final long snapshotCount = TriggerGraph.getSnapshotCount();
+		hudson.rebuildDependencyGraph();
+		// One rebuild walks lattice on a single snapshot
+		assertEquals(rebuildCount + 1, TriggerGraph.getRebuildCount());
+		assertEquals(snapshotCount + 1, TriggerGraph.getSnapshotCount());
+		final TriggerGraph triggerGraph = TriggerGraph.get();
+		assertNotSame(previous, triggerGraph);
+		assertEquals(snapshotCount + 1, TriggerGraph.getSnapshotCount());
+		
+		final List<AbstractProject> joinUpstreams = hudson.getDependencyGraph()
+		        .getUpstream(joinProjects.get(0));
+		assertTrue(joinUpstreams.contains(masterProject));
+		assertTrue(joinUpstreams.containsAll(allInters));
+	}
+	
+	/**
+	 * <code>
+	 *  master 	-> inter0.0 .. inter0.2<br/>
+	 *  			-> ... (10 levels, each project triggers next level)<br/>
+	 *  				-> join0 (compact join dependencies)
+	 *  </code>
+	 */
+	public void testCompactJoinDependencies() throws Exception {
+		final DiamondJoinTrigger.DescriptorImpl descriptor = hudson
+		        .getDescriptorByType(DiamondJoinTrigger.DescriptorImpl.class);
+		descriptor.setCompactJoinDependencies(true);
+		try {
+			final List<FreeStyleProject> allInters = new ArrayList<FreeStyleProject>();
+			List<FreeStyleProject> previousLevel = Arrays.asList(masterProject);
+			for (int level = 0; level < 10; level++) {
+				final List<FreeStyleProject> currentLevel = ProjectsUtils
+				        .createFreeStyleProjects("inter" + level + ".", 3);
+				for (final FreeStyleProject project : previousLevel) {
+					ProjectsUtils.addChildsProjectTo(project, currentLevel);
+				}
+				allInters.addAll(currentLevel);
+				previousLevel = currentLevel;
+			}
+			ProjectsUtils.addJoinTriggerTo(masterProject, joinProjects
+			        .toArray(new FreeStyleProject[joinProjects.size()]));
+			hudson.rebuildDependencyGraph();
+			
+			// Only last level is a direct upstream of join
+			final List<AbstractProject> joinUpstreams = hudson
+			        .getDependencyGraph().getUpstream(joinProjects.get(0));
+			assertEquals(previousLevel.size(), joinUpstreams.size());
+			assertTrue(joinUpstreams.containsAll(previousLevel));
+			// Whole hierarchy still blocks join
+			assertTrue(joinProjects.get(0).getTransitiveUpstreamProjects()
+			        .containsAll(allInters));
+			// Whole hierarchy is still known as joined
+			final List<AbstractProject<?, ?>> joinedProjects = JoinDependencies
+			        .get().getUpstreamProjects(joinProjects.get(0));
+			assertTrue(joinedProjects.contains(masterProject));
+			assertTrue(joinedProjects.containsAll(allInters));
+			assertEquals(Arrays.asList(masterProject), JoinDependencies.get()
+			        .getMasterProjects(joinProjects.get(0)));
+		} finally {
+			descriptor.setCompactJoinDependencies(false);
+		}
+	}
+}
@@ -0,0 +1,195 @@
+package diamond;
+
+import hudson.model.BuildListener;
+import hudson.model.StreamBuildListener;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class PostJoinRunnerTest extends TestCase {
+	
+	/**
+	 * Independent actions run concurrently, outputs are merged in
+	 * configuration order.
+	 */
+	public void testIndependentActionsRunConcurrently() throws Exception {
+		final CountDownLatch started = new CountDownLatch(2);
+		final List<PostJoinRunner.Unit> units = new ArrayList<PostJoinRunner.Unit>();
+		units.add(new LatchUnit("A", started));
+		units.add(new LatchUnit("B", started));
+		
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new PostJoinRunner(units).runConcurrently(new StreamBuildListener(
+		        output), 2, null);
+		
+		final String log = output.toString();
+		assertTrue(log, log.indexOf("A done") >= 0);
+		assertTrue(log, log.indexOf("B done") >= 0);
+		assertTrue(log, log.indexOf("[A]") < log.indexOf("A done"));
+		assertTrue(log, log.indexOf("A done") < log.indexOf("[B]"));
+		assertTrue(log, log.indexOf("[B]") < log.indexOf("B done"));
+	}
+	
+	/**
+	 * Declared dependencies are honoured, unknown names are ignored.
+	 */
+	public void testDependencies() throws Exception {
+		final List<String> order = Collections
+		        .synchronizedList(new ArrayList<String>());
+		final List<PostJoinRunner.Unit> units = new ArrayList<PostJoinRunner.Unit>();
+		for (final String name : new String[] { "A", "B", "C" }) {
+			units.add(new PostJoinRunner.Unit(name) {
+				@Override
+				void perform(final BuildListener listener) {
+					order.add(name);
+				}
+			});
+		}
+		
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new PostJoinRunner(units).runConcurrently(new StreamBuildListener(
+		        output), 4, "C -> B\nB -> A; X -> A");
+		
+		assertEquals(3, order.size());
+		assertEquals("C", order.get(0));
+		assertEquals("B", order.get(1));
+		assertEquals("A", order.get(2));
+		assertTrue(output.toString().indexOf("Ignoring post-join dependency") >= 0);
+	}
+	
+	/**
+	 * A dependency cycle must not block actions forever.
+	 */
+	public void testDependencyCycle() throws Exception {
+		final List<String> order = Collections
+		        .synchronizedList(new ArrayList<String>());
+		final List<PostJoinRunner.Unit> units = new ArrayList<PostJoinRunner.Unit>();
+		for (final String name : new String[] { "A", "B" }) {
+			units.add(new PostJoinRunner.Unit(name) {
+				@Override
+				void perform(final BuildListener listener) {
+					order.add(name);
+				}
+			});
+		}
+		
+		new PostJoinRunner(units).runConcurrently(new StreamBuildListener(
+		        new ByteArrayOutputStream()), 4, "A -> B\nB -> A");
+		
+		assertEquals(2, order.size());
+	}
+	
+	/**
+	 * A failed action is reported, other actions and its dependents still run.
+	 */
+	public void testFailedActionDoesNotStopOthers() throws Exception {
+		final List<String> order = Collections
+		        .synchronizedList(new ArrayList<String>());
+		final List<PostJoinRunner.Unit> units = new ArrayList<PostJoinRunner.Unit>();
+		units.add(new PostJoinRunner.Unit("A") {
+			@Override
+			void perform(final BuildListener listener) {
+				throw new IllegalStateException("broken publisher");
+			}
+		});
+		for (final String name : new String[] { "B", "C" }) {
+			units.add(new PostJoinRunner.Unit(name) {
+				@Override
+				void perform(final BuildListener listener) {
+					order.add(name);
+				}
+			});
+		}
+		
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		new PostJoinRunner(units).runConcurrently(new StreamBuildListener(
+		        output), 1, "A -> C");
+		
+		assertEquals(2, order.size());
+		assertTrue(order.contains("B"));
+		assertTrue(order.contains("C"));
+		assertTrue(output.toString(),
+		        output.toString().indexOf("broken publisher") >= 0);
+	}
+	
+	/**
+	 * Dependencies refer to actions by name, names must be unique.
+	 */
+	public void testDuplicateNames() throws Exception {
+		final List<PostJoinRunner.Unit> units = new ArrayList<PostJoinRunner.Unit>();
+		for (final String name : new String[] { "A", "A" }) {
+			units.add(new PostJoinRunner.Unit(name) {
+				@Override
+				void perform(final BuildListener listener) {
+					// Nothing to do
+				}
+			});
+		}
+		try {
+			new PostJoinRunner(units);
+			fail("Duplicate action names must be rejected");
+		} catch (final IllegalArgumentException e) {
+			// Expected
+		}
+	}
+	
+	/**
+	 * An interrupted action stops following actions in sequential mode and
+	 * keeps caller thread interrupted.
+	 */
+	public void testInterruptStopsSequentialActions() throws Exception {
+		final List<String> order = new ArrayList<String>();
+		final List<PostJoinRunner.Unit> units = new ArrayList<PostJoinRunner.Unit>();
+		units.add(new PostJoinRunner.Unit("A") {
+			@Override
+			void perform(final BuildListener listener)
+			        throws InterruptedException {
+				order.add("A");
+				throw new InterruptedException("aborted");
+			}
+		});
+		units.add(new PostJoinRunner.Unit("B") {
+			@Override
+			void perform(final BuildListener listener) {
+				order.add("B");
+			}
+		});
+		
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		try {
+			new PostJoinRunner(units).runSequentially(new StreamBuildListener(
+			        output));
+			assertTrue(Thread.currentThread().isInterrupted());
+		} finally {
+			Thread.interrupted();
+		}
+		assertEquals(Collections.singletonList("A"), order);
+		assertTrue(output.toString(), output.toString().indexOf("skipping B") >= 0);
+	}
+	
+	/**
+	 * Action that only completes once all its siblings started.
+	 */
+	private static final class LatchUnit extends PostJoinRunner.Unit {
+		
+		private final CountDownLatch started;
+		
+		LatchUnit(final String name, final CountDownLatch started) {
+			super(name);
+			this.started = started;
+		}
+		
+		@Override
+		void perform(final BuildListener listener) throws InterruptedException {
+			started.countDown();
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			listener.getLogger().println(getName() + " done");
+		}
+	}
+}
@@ -0,0 +1,419 @@
+package diamond;
+
+import hudson.model.AbstractProject;
+import hudson.model.FreeStyleProject;
+import hudson.model.Items;
+import hudson.model.Result;
+import hudson.plugins.downstream_ext.DownstreamTrigger;
+import hudson.plugins.parameterizedtrigger.BuildTriggerConfig;
+import hudson.plugins.parameterizedtrigger.ResultCondition;
+import hudson.tasks.BuildTrigger;
+import hudson.tasks.Publisher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import diamond.util.ProjectsHelper;
+import diamond.util.TriggerGraph;
+
+public class ProjectsHelperTest extends DiamondJointestCase {
+	
+	/**
+	 * <code>
+	 *  master 	-> inter0<br/>
+	 *  			-> inter1<br/>
+	 *  				-> inter0<br/>
+	 *  </code>
+	 */
+	public void testTriggerCycle() throws Exception {
+		final List<FreeStyleProject> inters = ProjectsUtils
+		        .createFreeStyleProjects("inter", 2);
+		ProjectsUtils.addChildsProjectTo(masterProject, inters.get(0));
+		ProjectsUtils.addChildsProjectTo(inters.get(0), inters.get(1));
+		ProjectsUtils.addChildsProjectTo(inters.get(1), inters.get(0));
+		
+		final List<AbstractProject<?, ?>> hierarchy = ProjectsHelper
+		        .getDownstreamProjectsHierarchy(masterProject, false, true);
+		assertEquals(Arrays.asList(inters.get(0), inters.get(1)), hierarchy);
+	}
+	
+	/**
+	 * <code>
+	 *  master 	-> inter0.0 .. inter0.2<br/>
+	 *  			-> inter1.0 .. inter1.2<br/>
+	 *  				-> ... (30 levels, each project triggers next level)<br/>
+	 *  </code>
+	 */
+	public void testLatticeProjectsAppearOnce() throws Exception {
+		final int levels = 30;
+		List<FreeStyleProject> previousLevel = Arrays.asList(masterProject);
+		int projectCount = 0;
+		for (int level = 0; level < levels; level++) {
+			final List<FreeStyleProject> currentLevel = ProjectsUtils
+			        .createFreeStyleProjects("inter" + level + ".", 3);
+			for (final FreeStyleProject project : previousLevel) {
+				ProjectsUtils.addChildsProjectTo(project, currentLevel);
+			}
+			projectCount += currentLevel.size();
+			previousLevel = currentLevel;
+		}
+		
+		final List<AbstractProject<?, ?>> hierarchy = ProjectsHelper
+		        .getDownstreamProjectsHierarchy(masterProject, false, true);
+		assertEquals(projectCount, hierarchy.size());
+		assertEquals(3,
+		        ProjectsHelper.getDownstreamProjectsHierarchy(masterProject,
+		                true, true).size());
+	}
+	
+	/**
+	 * Hierarchies are memoized until dependency graph is rebuilt, and can not
+	 * be modified by callers.
+	 * <p>
+	 * <code>
+	 *  master 	-> inter0<br/>
+	 *  			-> inter1 (added later)<br/>
+	 *  </code>
+	 */
+	public void testHierarchyFollowsGraphRebuild() throws Exception {
+		final List<FreeStyleProject> inters = ProjectsUtils
+		        .createFreeStyleProjects("inter", 2);
+		ProjectsUtils.addChildsProjectTo(masterProject, inters.get(0));
+		hudson.rebuildDependencyGraph();
+		
+		final List<AbstractProject<?, ?>> hierarchy = ProjectsHelper
+		        .getDownstreamProjectsHierarchy(masterProject, false, true);
+		assertEquals(Arrays.asList(inters.get(0)), hierarchy);
+		assertEquals(hierarchy, ProjectsHelper.getDownstreamProjectsHierarchy(
+		        masterProject, false, true));
+		try {
+			hierarchy.add(inters.get(1));
+			fail("Memoized hierarchy must not be modifiable");
+		} catch (final UnsupportedOperationException e) {
+			// Expected
+		}
+		
+		ProjectsUtils.addChildsProjectTo(inters.get(0), inters.get(1));
+		hudson.rebuildDependencyGraph();
+		assertEquals(Arrays.asList(inters.get(0), inters.get(1)),
+		        ProjectsHelper.getDownstreamProjectsHierarchy(masterProject,
+		                false, true));
+		// Previous result is left untouched
+		assertEquals(Arrays.asList(inters.get(0)), hierarchy);
+	}
+	
+	/**
+	 * Snapshot hierarchies of every project match a recursive walk of live
+	 * publishers, for all edge kinds.
+	 * <p>
+	 * <code>
+	 *  master 	-> inter0 -(downstream-ext)-> inter2<br/>
+	 *  		-> inter1 -(parameterized)-> inter2, inter3<br/>
+	 *  					inter3 -> inter4<br/>
+	 *  		-(join)-> join0 -> after<br/>
+	 *  		-(post-join parameterized)-> post<br/>
+	 *  inter1 	-(join)-> join1<br/>
+	 *  </code>
+	 */
+	public void testSnapshotMatchesBaselineWalk() throws Exception {
+		final List<FreeStyleProject> inters = ProjectsUtils
+		        .createFreeStyleProjects("inter", 5);
+		final FreeStyleProject after = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("after");
+		final FreeStyleProject post = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("post");
+		final FreeStyleProject join1 = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("join1");
+		ProjectsUtils.addChildsProjectTo(masterProject,
+		        inters.subList(0, 2));
+		ProjectsUtils.addDownstreamExtChildsProjectTo(inters.get(0),
+		        inters.get(2).getName());
+		inters.get(1)
+		        .getPublishersList()
+		        .add(new hudson.plugins.parameterizedtrigger.BuildTrigger(
+		                new BuildTriggerConfig(inters.get(2).getName() + ","
+		                        + inters.get(3).getName(),
+		                        ResultCondition.SUCCESS)));
+		ProjectsUtils.addChildsProjectTo(inters.get(3), inters.get(4));
+		ProjectsUtils.addChildsProjectTo(joinProjects.get(0), after);
+		// Master joins to join0, with post as post-join target
+		masterProject.getPublishersList().add(
+		        new DiamondJoinTrigger(Collections
+		                .<Publisher> singletonList(new hudson.plugins.parameterizedtrigger.BuildTrigger(
+		                        new BuildTriggerConfig(post.getName(),
+		                                ResultCondition.SUCCESS))),
+		                joinProjects.get(0).getName(), false, false));
+		ProjectsUtils.addParameterizedJoinTriggerToProject(inters.get(1),
+		        join1);
+		hudson.rebuildDependencyGraph();
+		
+		final TriggerGraph triggerGraph = TriggerGraph.get();
+		for (final AbstractProject<?, ?> project : hudson
+		        .getAllItems(FreeStyleProject.class)) {
+			for (final boolean onlyDirectChildrens : new boolean[] { false,
+			        true }) {
+				for (final boolean resolveJoinDependencies : new boolean[] {
+				        false, true }) {
+					final List<AbstractProject<?, ?>> expected = new ArrayList<AbstractProject<?, ?>>(
+					        new LinkedHashSet<AbstractProject<?, ?>>(
+					                baselineWalk(project, onlyDirectChildrens,
+					                        resolveJoinDependencies)));
+					assertEquals(project.getName() + " " + onlyDirectChildrens
+					        + " " + resolveJoinDependencies, expected,
+					        triggerGraph.asProjectList(triggerGraph
+					                .getDownstreamHierarchy(
+					                        triggerGraph.getId(project),
+					                        onlyDirectChildrens,
+					                        resolveJoinDependencies)));
+				}
+			}
+		}
+		assertSame(triggerGraph, TriggerGraph.get());
+	}
+	
+	/**
+	 * Once invalidated, snapshot is rebuilt by one thread and shared by all
+	 * concurrent callers.
+	 */
+	public void testConcurrentCallersShareSnapshot() throws Exception {
+		ProjectsUtils.addChildsProjectTo(masterProject, joinProjects.get(0));
+		hudson.rebuildDependencyGraph();
+		final TriggerGraph previous = TriggerGraph.get();
+		TriggerGraph.invalidate();
+		
+		final int callers = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<TriggerGraph> snapshots = Collections
+		        .synchronizedList(new ArrayList<TriggerGraph>());
+		final List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < callers; i++) {
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						snapshots.add(TriggerGraph.get());
+					} catch (final InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertEquals(callers, snapshots.size());
+		assertNotSame(previous, snapshots.get(0));
+		for (final TriggerGraph snapshot : snapshots) {
+			assertSame(snapshots.get(0), snapshot);
+		}
+		// A project outside Hudson gets a private snapshot
+		final FreeStyleProject outsider = new FreeStyleProject(hudson,
+		        "outsider");
+		assertTrue(TriggerGraph.get(outsider).getId(outsider) >= 0);
+		assertSame(snapshots.get(0), TriggerGraph.get());
+	}
+	
+	/**
+	 * Recursive walk of live publishers, as hierarchies were computed before
+	 * trigger graph snapshots. Graph must be acyclic.
+	 */
+	private static List<AbstractProject<?, ?>> baselineWalk(
+	        final AbstractProject<?, ?> project,
+	        final boolean onlyDirectChildrens,
+	        final boolean resolveJoinDependencies) {
+		final List<AbstractProject<?, ?>> children = new LinkedList<AbstractProject<?, ?>>();
+		final List<AbstractProject<?, ?>> downstreamProjects = new LinkedList<AbstractProject<?, ?>>();
+		final BuildTrigger buildTrigger = project.getPublishersList().get(
+		        BuildTrigger.class);
+		if (buildTrigger != null) {
+			children.addAll(buildTrigger.getChildProjects());
+		}
+		final DownstreamTrigger downstreamTrigger = project
+		        .getPublishersList().get(DownstreamTrigger.class);
+		if (downstreamTrigger != null) {
+			children.addAll(downstreamTrigger.getChildProjects());
+		}
+		final hudson.plugins.parameterizedtrigger.BuildTrigger parameterizedTrigger = project
+		        .getPublishersList().get(
+		                hudson.plugins.parameterizedtrigger.BuildTrigger.class);
+		if (parameterizedTrigger != null) {
+			for (final BuildTriggerConfig config : parameterizedTrigger
+			        .getConfigs()) {
+				children.addAll(Items.fromNameList(config.getProjects(),
+				        AbstractProject.class));
+			}
+		}
+		for (final AbstractProject<?, ?> child : children) {
+			downstreamProjects.add(child);
+			if (!onlyDirectChildrens) {
+				downstreamProjects.addAll(baselineWalk(child, false,
+				        resolveJoinDependencies));
+			}
+		}
+		final DiamondJoinTrigger joinTrigger = project.getPublishersList().get(
+		        DiamondJoinTrigger.class);
+		if (joinTrigger != null && resolveJoinDependencies) {
+			for (final AbstractProject<?, ?> child : joinTrigger
+			        .getAllJoinProjects()) {
+				downstreamProjects.add(child);
+				downstreamProjects.addAll(baselineWalk(child,
+				        onlyDirectChildrens, true));
+			}
+		}
+		return downstreamProjects;
+	}
+	
+	/**
+	 * Reachability answers of snapshot match their hierarchies.
+	 * <p>
+	 * <code>
+	 *  master 	-> inter0 -> inter2<br/>
+	 *  		-> inter1<br/>
+	 *  		-(join)-> join0<br/>
+	 *  </code>
+	 */
+	public void testReachability() throws Exception {
+		final List<FreeStyleProject> inters = ProjectsUtils
+		        .createFreeStyleProjects("inter", 3);
+		ProjectsUtils.addChildsProjectTo(masterProject, inters.subList(0, 2));
+		ProjectsUtils.addChildsProjectTo(inters.get(0), inters.get(2));
+		ProjectsUtils.addJoinTriggerTo(masterProject, joinProjects.get(0));
+		hudson.rebuildDependencyGraph();
+		
+		final TriggerGraph triggerGraph = TriggerGraph.get();
+		final int masterId = triggerGraph.getId(masterProject);
+		final int inter0Id = triggerGraph.getId(inters.get(0));
+		final int inter1Id = triggerGraph.getId(inters.get(1));
+		final int inter2Id = triggerGraph.getId(inters.get(2));
+		final int joinId = triggerGraph.getId(joinProjects.get(0));
+		
+		assertTrue(triggerGraph.isInDownstreamHierarchy(masterId, inter2Id,
+		        false, false));
+		assertFalse(triggerGraph.isInDownstreamHierarchy(masterId, inter2Id,
+		        true, false));
+		assertFalse(triggerGraph.isInDownstreamHierarchy(masterId, joinId,
+		        false, false));
+		assertTrue(triggerGraph.isInDownstreamHierarchy(masterId, joinId,
+		        false, true));
+		assertFalse(triggerGraph.isInDownstreamHierarchy(masterId, masterId,
+		        false, true));
+		assertFalse(triggerGraph.isInDownstreamHierarchy(inter0Id, masterId,
+		        false, true));
+		assertFalse(triggerGraph.isInDownstreamHierarchy(inter1Id, inter2Id,
+		        false, true));
+		
+		final BitSet union = triggerGraph.getDownstreamSet(new int[] {
+		        inter0Id, inter1Id }, true, false, false);
+		assertEquals(3, union.cardinality());
+		assertTrue(union.get(inter0Id));
+		assertTrue(union.get(inter1Id));
+		assertTrue(union.get(inter2Id));
+		assertEquals(1, triggerGraph.getDownstreamSet(new int[] { inter0Id,
+		        inter1Id }, false, false, false).cardinality());
+		
+		// Every reachability set matches the hierarchy it is computed from
+		for (int id = 0; id < triggerGraph.size(); id++) {
+			for (final boolean onlyDirectChildrens : new boolean[] { false,
+			        true }) {
+				for (final boolean resolveJoinDependencies : new boolean[] {
+				        false, true }) {
+					final BitSet expected = new BitSet();
+					for (final int downstreamId : triggerGraph
+					        .getDownstreamHierarchy(id, onlyDirectChildrens,
+					                resolveJoinDependencies)) {
+						expected.set(downstreamId);
+					}
+					assertEquals(expected, triggerGraph.getDownstreamSet(id,
+					        onlyDirectChildrens, resolveJoinDependencies));
+					for (int candidate = 0; candidate < triggerGraph.size(); candidate++) {
+						assertEquals(expected.get(candidate),
+						        triggerGraph.isInDownstreamHierarchy(id,
+						                candidate, onlyDirectChildrens,
+						                resolveJoinDependencies));
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Each "parameterized-trigger" condition maps to the results it is met
+	 * for.
+	 */
+	public void testParameterizedConditions() throws Exception {
+		final ResultCondition[] conditions = { ResultCondition.SUCCESS,
+		        ResultCondition.UNSTABLE, ResultCondition.UNSTABLE_OR_BETTER,
+		        ResultCondition.FAILED, ResultCondition.ALWAYS };
+		final List<FreeStyleProject> childs = ProjectsUtils
+		        .createFreeStyleProjects("child", conditions.length);
+		final BuildTriggerConfig[] configs = new BuildTriggerConfig[conditions.length];
+		for (int i = 0; i < conditions.length; i++) {
+			configs[i] = new BuildTriggerConfig(childs.get(i).getName(),
+			        conditions[i]);
+		}
+		masterProject.getPublishersList().add(
+		        new hudson.plugins.parameterizedtrigger.BuildTrigger(configs));
+		hudson.rebuildDependencyGraph();
+		
+		final Result[][] metResults = {
+		        { Result.SUCCESS },
+		        { Result.UNSTABLE },
+		        { Result.SUCCESS, Result.UNSTABLE },
+		        { Result.FAILURE },
+		        { Result.SUCCESS, Result.UNSTABLE, Result.FAILURE,
+		                Result.NOT_BUILT, Result.ABORTED } };
+		final TriggerGraph triggerGraph = TriggerGraph.get();
+		final int masterId = triggerGraph.getId(masterProject);
+		final int kind = TriggerGraph.PARAMETERIZED_TRIGGER;
+		assertEquals(conditions.length,
+		        triggerGraph.getChildCount(masterId, kind));
+		for (int index = 0; index < conditions.length; index++) {
+			final int condition = childs.indexOf(triggerGraph
+			        .getProject(triggerGraph.getChild(masterId, kind, index)));
+			final List<Result> expected = Arrays.asList(metResults[condition]);
+			for (final Result result : new Result[] { Result.SUCCESS,
+			        Result.UNSTABLE, Result.FAILURE, Result.NOT_BUILT,
+			        Result.ABORTED }) {
+				assertEquals(conditions[condition] + " " + result,
+				        expected.contains(result), triggerGraph.isTriggered(
+				                masterId, kind, index, result));
+			}
+		}
+	}
+	
+	/**
+	 * <code>
+	 *  master 	-> inter0<br/>
+	 *  			-> join0<br/>
+	 *  other 	-> inter1<br/>
+	 *  </code>
+	 */
+	public void testDiamondParticipants() throws Exception {
+		final List<FreeStyleProject> inters = ProjectsUtils
+		        .createFreeStyleProjects("inter", 2);
+		final FreeStyleProject other = ProjectsUtils
+		        .createFreeStyleProjectWithNoQuietPeriod("other");
+		ProjectsUtils.addChildsProjectTo(masterProject, inters.get(0));
+		ProjectsUtils.addChildsProjectTo(other, inters.get(1));
+		ProjectsUtils.addJoinTriggerTo(masterProject, joinProjects.get(0));
+		hudson.rebuildDependencyGraph();
+		
+		final TriggerGraph triggerGraph = TriggerGraph.get();
+		assertTrue(triggerGraph.isDiamondParticipant(masterProject));
+		assertTrue(triggerGraph.isDiamondParticipant(inters.get(0)));
+		assertTrue(triggerGraph.isDiamondParticipant(joinProjects.get(0)));
+		assertFalse(triggerGraph.isDiamondParticipant(other));
+		assertFalse(triggerGraph.isDiamondParticipant(inters.get(1)));
+	}
+}